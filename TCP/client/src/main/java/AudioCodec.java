@@ -0,0 +1,244 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Códecs de voz para el audio de las llamadas. Trabajan sobre PCM de 16 kHz,
+ * 16 bits, mono, little endian (AudioService.FORMAT) y cada paquete se codifica
+ * por separado, así que perder uno no estropea los siguientes.
+ *
+ * El nombre es el que se negocia con el servidor (call_request / call_accept)
+ * y el tipo de carga es el que va en la cabecera MediaPacket.
+ */
+public enum AudioCodec {
+
+    // 256 kbit/s, sin compresión.
+    PCM16("pcm16", 0) {
+        @Override
+        public int encode(byte[] pcm, int offset, int length, byte[] out, int outOffset) {
+            System.arraycopy(pcm, offset, out, outOffset, length);
+            return length;
+        }
+
+        @Override
+        public int decode(byte[] data, int offset, int length, byte[] pcm, int pcmOffset) {
+            System.arraycopy(data, offset, pcm, pcmOffset, length);
+            return length;
+        }
+    },
+
+    // G.711 µ-law: 8 bits por muestra, 128 kbit/s.
+    MULAW("pcmu", 1) {
+        @Override
+        public int encode(byte[] pcm, int offset, int length, byte[] out, int outOffset) {
+            int samples = length / 2;
+            for (int i = 0; i < samples; i++) {
+                out[outOffset + i] = linearToUlaw(sample(pcm, offset + 2 * i));
+            }
+            return samples;
+        }
+
+        @Override
+        public int decode(byte[] data, int offset, int length, byte[] pcm, int pcmOffset) {
+            for (int i = 0; i < length; i++) {
+                putSample(pcm, pcmOffset + 2 * i, ULAW_TO_LINEAR[data[offset + i] & 0xFF]);
+            }
+            return length * 2;
+        }
+    },
+
+    // IMA ADPCM: 4 bits por muestra, 64 kbit/s. Cada paquete empieza con el estado del
+    // codificador (predictor de 16 bits e índice de paso) para decodificarse solo.
+    IMA_ADPCM("ima-adpcm", 2) {
+        @Override
+        public int encode(byte[] pcm, int offset, int length, byte[] out, int outOffset) {
+            int samples = length / 2;
+            int predictor = samples > 0 ? sample(pcm, offset) : 0;
+            int index = initialStepIndex(pcm, offset, samples);
+            putSample(out, outOffset, predictor);
+            out[outOffset + 2] = (byte) index;
+            out[outOffset + 3] = 0;
+            int pos = outOffset + ADPCM_HEADER;
+            for (int i = 0; i < samples; i += 2) {
+                int low = 0;
+                int high = 0;
+                for (int k = 0; k < 2 && i + k < samples; k++) {
+                    int step = STEP_TABLE[index];
+                    int diff = sample(pcm, offset + 2 * (i + k)) - predictor;
+                    int nibble = 0;
+                    if (diff < 0) {
+                        nibble = 8;
+                        diff = -diff;
+                    }
+                    int delta = step >> 3;
+                    if (diff >= step) {
+                        nibble |= 4;
+                        diff -= step;
+                        delta += step;
+                    }
+                    step >>= 1;
+                    if (diff >= step) {
+                        nibble |= 2;
+                        diff -= step;
+                        delta += step;
+                    }
+                    step >>= 1;
+                    if (diff >= step) {
+                        nibble |= 1;
+                        delta += step;
+                    }
+                    predictor = clamp(predictor + ((nibble & 8) != 0 ? -delta : delta));
+                    index = Math.max(0, Math.min(88, index + INDEX_TABLE[nibble]));
+                    if (k == 0) {
+                        low = nibble;
+                    } else {
+                        high = nibble;
+                    }
+                }
+                out[pos++] = (byte) (low | (high << 4));
+            }
+            return pos - outOffset;
+        }
+
+        @Override
+        public int decode(byte[] data, int offset, int length, byte[] pcm, int pcmOffset) {
+            if (length < ADPCM_HEADER) {
+                return 0;
+            }
+            int predictor = sample(data, offset);
+            int index = Math.max(0, Math.min(88, data[offset + 2]));
+            int out = pcmOffset;
+            for (int i = offset + ADPCM_HEADER; i < offset + length; i++) {
+                for (int shift = 0; shift <= 4; shift += 4) {
+                    int nibble = (data[i] >> shift) & 0x0F;
+                    int step = STEP_TABLE[index];
+                    int delta = step >> 3;
+                    if ((nibble & 4) != 0) delta += step;
+                    if ((nibble & 2) != 0) delta += step >> 1;
+                    if ((nibble & 1) != 0) delta += step >> 2;
+                    predictor = clamp(predictor + ((nibble & 8) != 0 ? -delta : delta));
+                    index = Math.max(0, Math.min(88, index + INDEX_TABLE[nibble]));
+                    putSample(pcm, out, predictor);
+                    out += 2;
+                }
+            }
+            return out - pcmOffset;
+        }
+    };
+
+    private static final int ADPCM_HEADER = 4;
+    // Bytes que un paquete codificado puede ocupar de más respecto al PCM original.
+    public static final int MAX_OVERHEAD = ADPCM_HEADER;
+
+    private static final int[] INDEX_TABLE = { -1, -1, -1, -1, 2, 4, 6, 8, -1, -1, -1, -1, 2, 4, 6, 8 };
+
+    private static final int[] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230,
+            253, 279, 307, 337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963,
+            1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024, 3327,
+            3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487,
+            12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767 };
+
+    private static final short[] ULAW_TO_LINEAR = new short[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int u = ~i & 0xFF;
+            int t = ((u & 0x0F) << 3) + 0x84;
+            t <<= (u & 0x70) >> 4;
+            ULAW_TO_LINEAR[i] = (short) ((u & 0x80) != 0 ? 0x84 - t : t - 0x84);
+        }
+    }
+
+    private final String codecName;
+    private final int payloadType;
+
+    AudioCodec(String codecName, int payloadType) {
+        this.codecName = codecName;
+        this.payloadType = payloadType;
+    }
+
+    /** Codifica length bytes de PCM y devuelve cuántos bytes escribió en out (a lo sumo length + MAX_OVERHEAD). */
+    public abstract int encode(byte[] pcm, int offset, int length, byte[] out, int outOffset);
+
+    /** Decodifica un paquete y devuelve cuántos bytes de PCM escribió (hasta 4 veces length). */
+    public abstract int decode(byte[] data, int offset, int length, byte[] pcm, int pcmOffset);
+
+    public String getCodecName() {
+        return codecName;
+    }
+
+    public int getPayloadType() {
+        return payloadType;
+    }
+
+    // Orden de preferencia que se ofrece al negociar: primero el que menos ocupa.
+    public static List<String> supportedNames() {
+        List<String> names = new ArrayList<>();
+        names.add(IMA_ADPCM.codecName);
+        names.add(MULAW.codecName);
+        names.add(PCM16.codecName);
+        return names;
+    }
+
+    // PCM16 si el nombre no se reconoce (p. ej. un servidor que no negocia).
+    public static AudioCodec fromName(String name) {
+        for (AudioCodec codec : values()) {
+            if (codec.codecName.equals(name)) {
+                return codec;
+            }
+        }
+        return PCM16;
+    }
+
+    public static AudioCodec fromPayloadType(int payloadType) {
+        for (AudioCodec codec : values()) {
+            if (codec.payloadType == payloadType) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    private static int sample(byte[] pcm, int pos) {
+        return (short) ((pcm[pos] & 0xFF) | (pcm[pos + 1] << 8));
+    }
+
+    private static void putSample(byte[] pcm, int pos, int sample) {
+        pcm[pos] = (byte) sample;
+        pcm[pos + 1] = (byte) (sample >> 8);
+    }
+
+    // Sin estado entre paquetes: el paso inicial se ajusta a la variación de las primeras muestras.
+    private static int initialStepIndex(byte[] pcm, int offset, int samples) {
+        int n = Math.min(samples, 9);
+        int sum = 0;
+        for (int i = 1; i < n; i++) {
+            sum += Math.abs(sample(pcm, offset + 2 * i) - sample(pcm, offset + 2 * (i - 1)));
+        }
+        int target = n > 1 ? sum / (n - 1) : 0;
+        int index = 0;
+        while (index < 88 && STEP_TABLE[index] < target) {
+            index++;
+        }
+        return index;
+    }
+
+    private static int clamp(int sample) {
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+    }
+
+    private static byte linearToUlaw(int sample) {
+        int sign = (sample >> 8) & 0x80;
+        if (sign != 0) {
+            sample = -sample;
+        }
+        sample = Math.min(sample, 32635) + 0x84;
+        int exponent = 7;
+        for (int mask = 0x4000; (sample & mask) == 0 && exponent > 0; mask >>= 1) {
+            exponent--;
+        }
+        int mantissa = (sample >> (exponent + 3)) & 0x0F;
+        return (byte) ~(sign | (exponent << 4) | mantissa);
+    }
+}
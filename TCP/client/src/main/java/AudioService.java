@@ -10,6 +10,8 @@ import java.util.Arrays;
 public class AudioService {
 
     private static final AudioFormat FORMAT = new AudioFormat(16000, 16, 1, true, false);
+    // Las notas de voz se guardan en WAV µ-law (G.711): la mitad de bytes que el PCM de FORMAT.
+    private static final AudioFormat VOICE_NOTE_FORMAT = new AudioFormat(AudioFormat.Encoding.ULAW, 16000, 8, 1, 1, 16000, false);
     public static final int CALL_BUFFER_SIZE = 2048; // Búfer más grande para capturar más audio
     
     private static final String CLIENT_DOWNLOAD_PATH = "client_downloads/";
@@ -40,7 +42,7 @@ public class AudioService {
             String filePath = String.format("%s%s_audio_%d.wav", CLIENT_RECORDING_PATH, username, audioCounter.getAndIncrement());
             File wavFile = new File(filePath);
             recordingThread = new Thread(() -> {
-                try (AudioInputStream ais = new AudioInputStream(fileMicrophone)) {
+                try (AudioInputStream ais = AudioSystem.getAudioInputStream(VOICE_NOTE_FORMAT, new AudioInputStream(fileMicrophone))) {
                     AudioSystem.write(ais, AudioFileFormat.Type.WAVE, wavFile);
                 } catch (IOException e) {
                     System.err.println("Error al guardar el archivo de audio: " + e.getMessage());
@@ -111,7 +113,7 @@ public class AudioService {
             return;
         }
 
-        try (AudioInputStream audioStream = AudioSystem.getAudioInputStream(audioFile)) {
+        try (AudioInputStream audioStream = toPcm(AudioSystem.getAudioInputStream(audioFile))) {
             Clip clip = AudioSystem.getClip();
             
             // Usamos un CountDownLatch para esperar a que el listener nos avise que terminó.
@@ -137,6 +139,14 @@ public class AudioService {
         }
     }
 
+    // Clip no siempre acepta µ-law: se convierte a PCM al reproducir.
+    private static AudioInputStream toPcm(AudioInputStream stream) {
+        if (AudioFormat.Encoding.PCM_SIGNED.equals(stream.getFormat().getEncoding())) {
+            return stream;
+        }
+        return AudioSystem.getAudioInputStream(AudioFormat.Encoding.PCM_SIGNED, stream);
+    }
+
     public byte[] captureAudioForCall() {
         if (microphone == null || !microphone.isOpen()) {
             try {
@@ -0,0 +1,261 @@
+import com.google.gson.JsonObject;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sube las notas de voz por partes al servidor HTTP, sin ocupar el socket del chat.
+ * UserInputHandler anuncia el archivo con upload_start (tamaño y SHA-256) y, cuando
+ * llega upload_ready, se envían los trozos con PUT y la cabecera Upload-Offset. Si un
+ * trozo falla se pregunta al servidor (HEAD) cuánto tiene ya y se sigue desde ahí.
+ *
+ * Si la subida se corta del todo (reintentos agotados o cliente cerrado), queda
+ * pendiente con el upload_id que dio el servidor, también en disco. Al volver a
+ * entrar o con /reintentar_audio se reenvía upload_start con ese upload_id y el
+ * servidor responde con el desplazamiento desde el que seguir.
+ */
+public class AudioUploader {
+    private static final String SERVER_ADDRESS = "localhost";
+    private static final int HTTP_PORT = 3001;
+    private static final int MAX_RETRIES = 5;
+    private static final String PENDING_FILE = "client_recordings/pending_uploads.properties";
+
+    private enum Outcome { SENT, REJECTED, INTERRUPTED }
+
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    // Subidas sin terminar, por nombre local del archivo.
+    private final ConcurrentHashMap<String, PendingUpload> pending = new ConcurrentHashMap<>();
+
+    public AudioUploader() {
+        loadPending();
+    }
+
+    // Deja el archivo pendiente y devuelve el upload_start que lo anuncia (con su SHA-256).
+    public JsonObject prepare(File file, String recipient) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        PendingUpload upload = new PendingUpload(file, recipient, file.length(), hex.toString(), null);
+        pending.put(file.getName(), upload);
+        savePending();
+        return upload.toUploadStart();
+    }
+
+    /**
+     * upload_start de las subidas que quedaron a medias, con su upload_id si el
+     * servidor ya lo había dado. Las que están subiéndose ahora no se repiten, y las
+     * de archivos que ya no existen o cambiaron de tamaño se olvidan.
+     */
+    public List<JsonObject> resumeRequests() {
+        List<JsonObject> requests = new ArrayList<>();
+        for (PendingUpload upload : pending.values()) {
+            if (upload.running.get()) {
+                continue;
+            }
+            if (upload.file.length() != upload.size) {
+                forget(upload);
+                continue;
+            }
+            requests.add(upload.toUploadStart());
+        }
+        return requests;
+    }
+
+    // upload_ready del servidor: la subida sigue en su propio hilo.
+    public void upload(JsonObject ready) {
+        PendingUpload upload = pending.get(ready.get("file_name").getAsString());
+        if (upload == null || !upload.running.compareAndSet(false, true)) {
+            return;
+        }
+        upload.uploadId = ready.get("upload_id").getAsString();
+        savePending();
+        URI uri = URI.create("http://" + SERVER_ADDRESS + ":" + HTTP_PORT + ready.get("path").getAsString());
+        long offset = ready.get("offset").getAsLong();
+        int chunkSize = ready.get("chunk_size").getAsInt();
+        new Thread(() -> {
+            Outcome outcome = sendChunks(upload.file, uri, offset, chunkSize);
+            upload.running.set(false);
+            if (outcome == Outcome.INTERRUPTED) {
+                System.out.println(">> La subida de " + upload.file.getName()
+                        + " quedó pendiente. Usa /reintentar_audio para continuarla.");
+            } else {
+                forget(upload);
+            }
+        }, "audio-upload").start();
+    }
+
+    private Outcome sendChunks(File file, URI uri, long offset, int chunkSize) {
+        long size = file.length();
+        int failures = 0;
+        byte[] chunk = new byte[chunkSize];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (offset < size) {
+                int length = (int) Math.min(chunkSize, size - offset);
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new EOFException("El archivo cambió durante la subida");
+                    }
+                }
+                try {
+                    HttpRequest request = HttpRequest.newBuilder(uri)
+                            .header("Upload-Offset", Long.toString(offset))
+                            .PUT(HttpRequest.BodyPublishers.ofByteArray(chunk, 0, length))
+                            .build();
+                    HttpResponse<Void> response = http.send(request, HttpResponse.BodyHandlers.discarding());
+                    if (response.statusCode() == 204) {
+                        offset += length;
+                        failures = 0;
+                    } else if (response.statusCode() == 409) {
+                        // El servidor tiene otra cantidad (p. ej. un trozo anterior sí llegó): seguir desde la suya.
+                        offset = serverOffset(response, offset);
+                    } else if (response.statusCode() == 404) {
+                        // La subida caducó en el servidor: al reintentar, upload_start abre una nueva.
+                        return Outcome.INTERRUPTED;
+                    } else {
+                        System.out.println(">> El servidor rechazó la subida del audio (HTTP " + response.statusCode()
+                                + (response.statusCode() == 422 ? ": el archivo llegó dañado" : "") + ").");
+                        return Outcome.REJECTED;
+                    }
+                } catch (IOException e) {
+                    if (++failures > MAX_RETRIES) {
+                        System.out.println(">> No se pudo subir el audio: " + e.getMessage());
+                        return Outcome.INTERRUPTED;
+                    }
+                    Thread.sleep(1000L * failures);
+                    offset = queryOffset(uri, offset);
+                }
+            }
+            return Outcome.SENT;
+        } catch (IOException e) {
+            System.out.println(">> Error leyendo el audio a subir: " + e.getMessage());
+            return Outcome.REJECTED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return Outcome.INTERRUPTED;
+    }
+
+    // Desplazamiento que el servidor ya tiene; si no responde se reintenta desde el local.
+    private long queryOffset(URI uri, long fallback) throws InterruptedException {
+        try {
+            HttpRequest request = HttpRequest.newBuilder(uri).method("HEAD", HttpRequest.BodyPublishers.noBody()).build();
+            return serverOffset(http.send(request, HttpResponse.BodyHandlers.discarding()), fallback);
+        } catch (IOException e) {
+            return fallback;
+        }
+    }
+
+    private static long serverOffset(HttpResponse<Void> response, long fallback) {
+        return response.headers().firstValueAsLong("Upload-Offset").orElse(fallback);
+    }
+
+    private void forget(PendingUpload upload) {
+        if (pending.remove(upload.file.getName(), upload)) {
+            savePending();
+        }
+    }
+
+    // --- Subidas pendientes en disco: nombre local = upload_id|destinatario|tamaño|sha256|ruta ---
+
+    private void loadPending() {
+        File stored = new File(PENDING_FILE);
+        if (!stored.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(stored)) {
+            properties.load(in);
+        } catch (IOException e) {
+            System.err.println("No se pudieron leer las subidas pendientes: " + e.getMessage());
+            return;
+        }
+        for (String name : properties.stringPropertyNames()) {
+            String[] fields = properties.getProperty(name).split("\\|", 5);
+            if (fields.length == 5) {
+                File file = new File(fields[4]);
+                String uploadId = fields[0].isEmpty() ? null : fields[0];
+                pending.put(name, new PendingUpload(file, fields[1], Long.parseLong(fields[2]), fields[3], uploadId));
+            }
+        }
+    }
+
+    private synchronized void savePending() {
+        Properties properties = new Properties();
+        for (PendingUpload upload : pending.values()) {
+            properties.setProperty(upload.file.getName(), (upload.uploadId != null ? upload.uploadId : "") + "|"
+                    + upload.recipient + "|" + upload.size + "|" + upload.sha256 + "|" + upload.file.getPath());
+        }
+        File stored = new File(PENDING_FILE);
+        stored.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(stored)) {
+            properties.store(out, "Subidas de audio sin terminar");
+        } catch (IOException e) {
+            System.err.println("No se pudieron guardar las subidas pendientes: " + e.getMessage());
+        }
+    }
+
+    private static final class PendingUpload {
+        final File file;
+        final String recipient;
+        final long size;
+        final String sha256;
+        final AtomicBoolean running = new AtomicBoolean(false);
+        volatile String uploadId; // null hasta el primer upload_ready
+
+        PendingUpload(File file, String recipient, long size, String sha256, String uploadId) {
+            this.file = file;
+            this.recipient = recipient;
+            this.size = size;
+            this.sha256 = sha256;
+            this.uploadId = uploadId;
+        }
+
+        // Con upload_id el servidor retoma la subida; si ya caducó, abre otra con el tamaño y el SHA-256.
+        JsonObject toUploadStart() {
+            JsonObject request = new JsonObject();
+            request.addProperty("command", "upload_start");
+            if (uploadId != null) {
+                request.addProperty("upload_id", uploadId);
+            }
+            request.addProperty("recipient", recipient);
+            request.addProperty("file_name", file.getName());
+            request.addProperty("file_size", size);
+            request.addProperty("sha256", sha256);
+            return request;
+        }
+    }
+}
@@ -2,14 +2,24 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CallHandler {
     private static final String SERVER_ADDRESS = "localhost";
     private static final int SERVER_UDP_PORT = 12346;
+    // receive() vuelve cada tanto para que el hilo de recepción vea que la llamada terminó.
+    private static final int RECEIVE_TIMEOUT_MS = 200;
+    private static final long JOIN_TIMEOUT_MS = 1000;
     
     private final Client chatClient;
     private final AudioService audioService;
     private volatile boolean isInCall = false;
+    // Cada llamada tiene su número: los hilos de una llamada anterior ven que cambió y terminan.
+    private final AtomicInteger callGeneration = new AtomicInteger();
+    private volatile Thread[] callThreads = new Thread[0];
+    private volatile JitterBuffer jitterBuffer;
+    private volatile SourceMixer sourceMixer;
     private final DatagramSocket socket;
 
     public CallHandler(Client chatClient, AudioService audioService) {
@@ -19,6 +29,7 @@ public class CallHandler {
         try {
             // Se crea el socket una sola vez al instanciar la clase
             tempSocket = new DatagramSocket(); 
+            tempSocket.setSoTimeout(RECEIVE_TIMEOUT_MS);
         } catch (SocketException e) {
             System.err.println("Error fatal: No se pudo crear el socket UDP. Las llamadas no funcionarán.");
         }
@@ -39,45 +50,124 @@ public class CallHandler {
         }).start();
     }
 
-    public void startCall() {
+    // sessionId y codec llegan en call_accepted; el servidor descarta el audio que no lleve sessionId.
+    // multiSource: llamada de grupo reenviada, llegan varias voces que se mezclan aquí.
+    public void startCall(int sessionId, AudioCodec codec, boolean multiSource) {
         if (isInCall || socket == null) return;
+        int call = callGeneration.incrementAndGet();
         isInCall = true;
 
         // Hilo para enviar audio
-        new Thread(() -> {
+        Thread sender = new Thread(() -> {
             try {
-                while (isInCall) {
+                InetAddress serverAddress = InetAddress.getByName(SERVER_ADDRESS);
+                byte[] packetData = new byte[MediaPacket.HEADER_LENGTH + AudioService.CALL_BUFFER_SIZE + AudioCodec.MAX_OVERHEAD];
+                int sequence = 0;
+                int timestamp = 0;
+                while (isCurrent(call)) {
                     byte[] audioData = audioService.captureAudioForCall();
                     if (audioData != null) {
-                        DatagramPacket packet = new DatagramPacket(audioData, audioData.length, InetAddress.getByName(SERVER_ADDRESS), SERVER_UDP_PORT);
+                        MediaPacket.writeHeader(packetData, codec.getPayloadType(), sequence, timestamp, sessionId,
+                                MediaPacket.level(audioData, 0, audioData.length));
+                        int encoded = codec.encode(audioData, 0, audioData.length, packetData, MediaPacket.HEADER_LENGTH);
+                        DatagramPacket packet = new DatagramPacket(packetData, MediaPacket.HEADER_LENGTH + encoded, serverAddress, SERVER_UDP_PORT);
                         socket.send(packet);
+                        sequence = (sequence + 1) & 0xFFFF;
+                        timestamp += audioData.length / 2; // PCM de 16 bits: 2 bytes por muestra
                     }
                 }
             } catch (Exception e) {
-                if(isInCall) System.err.println("Error en el hilo de envío de llamada: " + e.getMessage());
+                if(isCurrent(call)) System.err.println("Error en el hilo de envío de llamada: " + e.getMessage());
             }
-        }).start();
+        });
 
-        // Hilo para recibir audio
-        new Thread(() -> {
-            byte[] buffer = new byte[AudioService.CALL_BUFFER_SIZE];
-            while (isInCall) {
+        // Hilo para recibir audio: sólo lo deja en el búfer de jitter (uno por fuente si hay varias)
+        JitterBuffer jitter = new JitterBuffer();
+        SourceMixer mixer = multiSource ? new SourceMixer() : null;
+        jitterBuffer = jitter;
+        sourceMixer = mixer;
+        Thread receiver = new Thread(() -> {
+            byte[] buffer = new byte[MediaPacket.HEADER_LENGTH + AudioService.CALL_BUFFER_SIZE + AudioCodec.MAX_OVERHEAD];
+            byte[] pcm = new byte[4 * buffer.length];
+            while (isCurrent(call)) {
                 try {
                     DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                     socket.receive(packet);
-                    audioService.playAudioFromCall(packet.getData(), packet.getLength());
+                    // En el modo reenvío el campo de sesión trae el id de fuente, que no se conoce de antemano.
+                    if (multiSource ? !MediaPacket.isMedia(buffer, packet.getLength())
+                            : !MediaPacket.isValid(buffer, packet.getLength(), sessionId)) {
+                        continue;
+                    }
+                    // Se decodifica según el tipo de carga del paquete, no el negociado, por si el otro lado no negoció.
+                    AudioCodec packetCodec = AudioCodec.fromPayloadType(MediaPacket.payloadType(buffer));
+                    if (packetCodec != null) {
+                        int pcmLength = packetCodec.decode(buffer, MediaPacket.HEADER_LENGTH,
+                                packet.getLength() - MediaPacket.HEADER_LENGTH, pcm, 0);
+                        if (mixer != null) {
+                            mixer.push(MediaPacket.sessionId(buffer), MediaPacket.sequence(buffer),
+                                    MediaPacket.timestamp(buffer), pcm, pcmLength);
+                        } else {
+                            jitter.push(MediaPacket.sequence(buffer), MediaPacket.timestamp(buffer), pcm, pcmLength);
+                        }
+                    }
+                } catch (SocketTimeoutException e) {
+                    // Sin audio en este intervalo: se vuelve a comprobar si la llamada sigue.
                 } catch (Exception e) {
-                    if(isInCall) System.err.println("Error en el hilo de recepción de llamada: " + e.getMessage());
+                    if(isCurrent(call)) System.err.println("Error en el hilo de recepción de llamada: " + e.getMessage());
                 }
             }
-        }).start();
+        });
+
+        // Hilo de reproducción: la escritura en el altavoz bloquea y marca el ritmo
+        Thread player = new Thread(() -> {
+            try {
+                while (isCurrent(call)) {
+                    byte[] frame = mixer != null ? mixer.poll(100) : jitter.poll(100);
+                    if (frame != null && isCurrent(call)) {
+                        audioService.playAudioFromCall(frame, frame.length);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        callThreads = new Thread[] { sender, receiver, player };
+        sender.start();
+        receiver.start();
+        player.start();
+    }
+
+    private boolean isCurrent(int call) {
+        return isInCall && callGeneration.get() == call;
     }
 
     public void stopCall() {
         if (!isInCall) return;
         isInCall = false;
+        callGeneration.incrementAndGet();
+        audioService.stopCallAudio();
+        // Esperar a que terminen los hilos: si no, el receptor de esta llamada le quitaría paquetes a la siguiente.
+        for (Thread thread : callThreads) {
+            if (thread != Thread.currentThread()) {
+                try {
+                    thread.join(JOIN_TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        callThreads = new Thread[0];
+        // Un hilo que salía de su vuelta pudo volver a abrir el micrófono o el altavoz.
         audioService.stopCallAudio();
         System.out.println("\n>> Llamada finalizada.");
+        JitterBuffer jitter = jitterBuffer;
+        SourceMixer mixer = sourceMixer;
+        if (mixer != null) {
+            System.out.println(">> Audio recibido: " + mixer.describeMetrics());
+        } else if (jitter != null) {
+            System.out.println(">> Audio recibido: " + jitter.describeMetrics());
+        }
     }
     
     // Método para cerrar el socket cuando el cliente se desconecta
@@ -87,6 +177,11 @@ public class CallHandler {
         }
     }
 
+    // Búfer de jitter de la llamada actual (o la última), para consultar retardo y pérdidas.
+    public JitterBuffer getJitterBuffer() {
+        return jitterBuffer;
+    }
+
     public boolean isInCall() {
         return isInCall;
     }
@@ -0,0 +1,142 @@
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Script de carga para comparar los modos del servidor (chat.tcp.mode = pool | virtual | nio).
+ * Abre N conexiones, registra un usuario por conexión y hace que E de ellas envíen
+ * mensajes públicos a ritmo fijo. Mide cuántas sesiones se establecieron y la
+ * latencia de entrega (envío -> recepción en cada conexión) de los mensajes.
+ *
+ * Uso: java ChatLoadTest [host] [puerto] [conexiones] [emisores] [mensajes por emisor] [intervalo ms]
+ */
+public class ChatLoadTest {
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 12345;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int senders = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int messagesPerSender = args.length > 4 ? Integer.parseInt(args[4]) : 50;
+        long intervalMs = args.length > 5 ? Long.parseLong(args[5]) : 100;
+
+        String runId = Long.toString(System.currentTimeMillis() % 1_000_000, 36);
+        // Marca propia de esta ejecución: ignora mensajes de corridas anteriores que lleguen en el historial.
+        String marker = "lt:" + runId + ":";
+        ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+        Gson gson = new Gson();
+
+        long expected = (long) Math.min(senders, connections) * messagesPerSender * connections;
+        long[] latencies = new long[(int) Math.min(expected, 20_000_000)];
+        AtomicInteger latencyCount = new AtomicInteger();
+        AtomicLong delivered = new AtomicLong();
+        AtomicInteger connected = new AtomicInteger();
+        CountDownLatch loggedIn = new CountDownLatch(connections);
+        List<PrintWriter> writers = new ArrayList<>();
+
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            String username = "lt" + runId + "_" + i;
+            threads.submit(() -> {
+                boolean counted = false;
+                try (Socket socket = new Socket(host, port)) {
+                    BufferedReader in = new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+                    in.readLine(); // auth_required
+                    JsonObject register = new JsonObject();
+                    register.addProperty("command", "register");
+                    register.addProperty("username", username);
+                    register.addProperty("password", "loadtest");
+                    out.println(gson.toJson(register));
+
+                    String line = in.readLine();
+                    if (line != null && line.contains("\"ok\"")) {
+                        synchronized (writers) {
+                            writers.add(out);
+                        }
+                        connected.incrementAndGet();
+                    }
+                    counted = true;
+                    loggedIn.countDown();
+
+                    while ((line = in.readLine()) != null) {
+                        int mark = line.indexOf(marker);
+                        if (mark < 0) {
+                            continue;
+                        }
+                        int end = line.indexOf('"', mark);
+                        long sentAt = Long.parseLong(line.substring(mark + marker.length(), end));
+                        long latency = System.nanoTime() - sentAt;
+                        delivered.incrementAndGet();
+                        int slot = latencyCount.getAndIncrement();
+                        if (slot < latencies.length) {
+                            latencies[slot] = latency;
+                        }
+                    }
+                } catch (IOException e) {
+                    if (!counted) {
+                        loggedIn.countDown();
+                    }
+                }
+                return null;
+            });
+        }
+
+        loggedIn.await(120, TimeUnit.SECONDS);
+        long connectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart);
+        System.out.println("Sesiones establecidas: " + connected.get() + "/" + connections + " en " + connectMillis
+                + " ms");
+
+        List<PrintWriter> active;
+        synchronized (writers) {
+            active = new ArrayList<>(writers.subList(0, Math.min(senders, writers.size())));
+        }
+        CountDownLatch sent = new CountDownLatch(active.size());
+        for (PrintWriter out : active) {
+            threads.submit(() -> {
+                for (int m = 0; m < messagesPerSender; m++) {
+                    JsonObject message = new JsonObject();
+                    message.addProperty("command", "public_message");
+                    message.addProperty("text", marker + System.nanoTime());
+                    out.println(gson.toJson(message));
+                    Thread.sleep(intervalMs);
+                }
+                sent.countDown();
+                return null;
+            });
+        }
+        sent.await();
+        Thread.sleep(5000); // margen para las últimas entregas
+
+        long expectedDeliveries = (long) active.size() * messagesPerSender * connected.get();
+        int samples = Math.min(latencyCount.get(), latencies.length);
+        long[] sorted = Arrays.copyOf(latencies, samples);
+        Arrays.sort(sorted);
+        System.out.println("Entregas: " + delivered.get() + "/" + expectedDeliveries);
+        if (samples > 0) {
+            System.out.printf("Latencia de entrega: p50=%.2f ms  p99=%.2f ms  max=%.2f ms%n",
+                    percentile(sorted, 0.50), percentile(sorted, 0.99), sorted[samples - 1] / 1e6);
+        }
+        System.exit(0);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+}
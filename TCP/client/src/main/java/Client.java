@@ -30,8 +30,10 @@ public class Client {
                 callHandler = new CallHandler(this, audioService);
                 callHandler.registerWithServer();
 
-                new Thread(new ServerListener(this, socket, audioService, callHandler)).start();
-                new UserInputHandler(this, socket, audioService, callHandler).run();
+                AudioUploader audioUploader = new AudioUploader();
+
+                new Thread(new ServerListener(this, socket, audioService, callHandler, audioUploader)).start();
+                new UserInputHandler(this, socket, audioService, callHandler, audioUploader).run();
             }
         } catch (IOException e) {
             
@@ -0,0 +1,231 @@
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Búfer de reproducción adaptativo para el audio de una llamada.
+ * El hilo de recepción entrega los paquetes (push) y el de reproducción los saca
+ * en orden de secuencia (poll). El retardo objetivo sigue al jitter de llegada
+ * medido como en RTP (RFC 3550): crece cuando la red se vuelve irregular y se
+ * recorta cuando se acumula más audio del necesario. Los paquetes que llegan
+ * después de su turno se descartan y las pérdidas cortas se disimulan repitiendo
+ * el último bloque atenuado.
+ */
+public class JitterBuffer {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int MIN_DELAY_MS = 40;
+    private static final int MAX_DELAY_MS = 400;
+    // Más pérdidas seguidas que esto ya no se disimulan: se salta al siguiente paquete disponible.
+    private static final int MAX_CONCEALED_FRAMES = 3;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition framesAvailable = lock.newCondition();
+    // Clave: secuencia extendida (sin la vuelta de 16 bits).
+    private final TreeMap<Integer, byte[]> frames = new TreeMap<>();
+    private int bufferedSamples;
+    private boolean buffering = true;
+
+    private boolean started;
+    private int highestSequence;  // extendida
+    private int nextSequence;     // extendida, la próxima a reproducir
+    private long lastTransit;
+    private double jitterSamples;
+    private int frameSamples = 1024;
+
+    private byte[] lastPlayed;
+    private int concealedRun;
+
+    private long received;
+    private long late;
+    private long lost;
+    private long concealed;
+    private long trimmed;
+    private long underruns;
+
+    // Recibe el audio ya decodificado a PCM y lo copia: el búfer de recepción se reutiliza.
+    public void push(int sequence, int timestamp, byte[] pcm, int payloadLength) {
+        long arrival = System.nanoTime() * SAMPLE_RATE / 1_000_000_000L;
+        lock.lock();
+        try {
+            received++;
+            int extended = extend(sequence);
+            updateJitter(arrival, timestamp);
+            if (extended < nextSequence) {
+                late++;
+                return;
+            }
+            if (frames.containsKey(extended) || bufferedSamples >= ms(MAX_DELAY_MS) * 2) {
+                return;
+            }
+            byte[] payload = new byte[payloadLength];
+            System.arraycopy(pcm, 0, payload, 0, payloadLength);
+            frames.put(extended, payload);
+            bufferedSamples += payloadLength / 2;
+            frameSamples = Math.max(1, payloadLength / 2);
+            framesAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Siguiente bloque PCM a reproducir, o null si en timeoutMs no hay nada listo
+     * (todavía llenando el búfer hasta el retardo objetivo).
+     */
+    public byte[] poll(long timeoutMs) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        lock.lock();
+        try {
+            while (buffering && bufferedSamples < targetSamples()) {
+                if (remaining <= 0) {
+                    return null;
+                }
+                remaining = framesAvailable.awaitNanos(remaining);
+            }
+            buffering = false;
+            if (frames.isEmpty()) {
+                // Se vació: volver a acumular hasta el retardo objetivo.
+                underruns++;
+                buffering = true;
+                return null;
+            }
+            trimExcess();
+            int first = frames.firstKey();
+            if (first > nextSequence) {
+                // Falta el paquete que toca y ya llegaron posteriores: se da por perdido.
+                if (concealedRun < MAX_CONCEALED_FRAMES && lastPlayed != null) {
+                    lost++;
+                    concealed++;
+                    concealedRun++;
+                    nextSequence++;
+                    lastPlayed = attenuate(lastPlayed);
+                    return lastPlayed;
+                }
+                lost += first - nextSequence;
+                nextSequence = first;
+            }
+            byte[] frame = frames.remove(nextSequence);
+            bufferedSamples -= frame.length / 2;
+            nextSequence++;
+            concealedRun = 0;
+            lastPlayed = frame;
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getDelayMs() {
+        lock.lock();
+        try {
+            return bufferedSamples * 1000 / SAMPLE_RATE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getTargetDelayMs() {
+        lock.lock();
+        try {
+            return targetSamples() * 1000 / SAMPLE_RATE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getJitterMs() {
+        lock.lock();
+        try {
+            return (int) (jitterSamples * 1000 / SAMPLE_RATE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Fracción de paquetes perdidos o llegados tarde sobre los esperados.
+    public double getLossRate() {
+        lock.lock();
+        try {
+            long expected = received + lost;
+            return expected == 0 ? 0 : (double) (lost + late) / expected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String describeMetrics() {
+        lock.lock();
+        try {
+            return String.format("retardo %d ms (objetivo %d ms), jitter %d ms, %d recibidos, %d perdidos "
+                            + "(%d disimulados), %d tarde, %d recortados, %d vaciados",
+                    bufferedSamples * 1000 / SAMPLE_RATE, targetSamples() * 1000 / SAMPLE_RATE,
+                    (int) (jitterSamples * 1000 / SAMPLE_RATE), received, lost, concealed, late, trimmed, underruns);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Llamar con el candado tomado.
+    private int extend(int sequence) {
+        if (!started) {
+            started = true;
+            highestSequence = sequence;
+            nextSequence = sequence;
+            return sequence;
+        }
+        int delta = (short) (sequence - (highestSequence & 0xFFFF));
+        int extended = highestSequence + delta;
+        if (extended > highestSequence) {
+            highestSequence = extended;
+        }
+        return extended;
+    }
+
+    // Llamar con el candado tomado. Estimador de jitter de RFC 3550, en muestras.
+    private void updateJitter(long arrival, int timestamp) {
+        long transit = arrival - (timestamp & 0xFFFFFFFFL);
+        long d = Math.abs(transit - lastTransit);
+        // Un salto de más de un segundo es un reinicio del emisor, no jitter.
+        if (received > 1 && d < SAMPLE_RATE) {
+            jitterSamples += (d - jitterSamples) / 16.0;
+        }
+        lastTransit = transit;
+    }
+
+    // Llamar con el candado tomado. Un bloque más el margen que pide el jitter medido.
+    private int targetSamples() {
+        int target = frameSamples + (int) (4 * jitterSamples);
+        return Math.max(ms(MIN_DELAY_MS), Math.min(ms(MAX_DELAY_MS), target));
+    }
+
+    // Llamar con el candado tomado. Descarta lo más antiguo si sobra más de un bloque sobre el objetivo.
+    private void trimExcess() {
+        int limit = targetSamples() + frameSamples;
+        if (bufferedSamples <= limit) {
+            return;
+        }
+        while (bufferedSamples > limit && frames.size() > 1) {
+            byte[] oldest = frames.pollFirstEntry().getValue();
+            bufferedSamples -= oldest.length / 2;
+            trimmed++;
+        }
+        // Lo recortado se salta a propósito: no cuenta como pérdida.
+        nextSequence = frames.firstKey();
+    }
+
+    private static int ms(int millis) {
+        return SAMPLE_RATE * millis / 1000;
+    }
+
+    // PCM de 16 bits little endian a la mitad de volumen.
+    private static byte[] attenuate(byte[] pcm) {
+        byte[] out = new byte[pcm.length];
+        for (int i = 0; i + 1 < pcm.length; i += 2) {
+            int sample = (short) ((pcm[i] & 0xFF) | (pcm[i + 1] << 8)) / 2;
+            out[i] = (byte) sample;
+            out[i + 1] = (byte) (sample >> 8);
+        }
+        return out;
+    }
+}
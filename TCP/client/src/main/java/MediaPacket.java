@@ -0,0 +1,78 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Cabecera de 12 bytes que precede al audio de cada paquete de llamada.
+ * Debe coincidir con MediaHeader del servidor:
+ *
+ *   0      versión en los bits 7-6 (10) y nivel de voz en los bits 5-0 (0 = silencio, 63 = 0 dBFS)
+ *   1      tipo de carga (PAYLOAD_PCM16)
+ *   2-3    número de secuencia (u16)
+ *   4-7    marca de tiempo en muestras (u32)
+ *   8-11   id de sesión recibido en call_accepted; en una llamada de grupo reenviada,
+ *          el id de fuente de quien habla
+ */
+public final class MediaPacket {
+
+    public static final int HEADER_LENGTH = 12;
+    public static final byte VERSION = (byte) 0x80;
+    public static final int PAYLOAD_PCM16 = 0;
+    private static final int VERSION_MASK = 0xC0;
+    private static final int MAX_LEVEL = 0x3F;
+
+    private MediaPacket() {
+    }
+
+    // Escribe la cabecera en las primeras HEADER_LENGTH posiciones de packet.
+    public static void writeHeader(byte[] packet, int payloadType, int sequence, int timestamp, int sessionId,
+            int level) {
+        ByteBuffer.wrap(packet, 0, HEADER_LENGTH)
+                .put((byte) (VERSION | level))
+                .put((byte) payloadType)
+                .putShort((short) sequence)
+                .putInt(timestamp)
+                .putInt(sessionId);
+    }
+
+    public static boolean isMedia(byte[] packet, int length) {
+        return length > HEADER_LENGTH && (packet[0] & VERSION_MASK) == (VERSION & VERSION_MASK);
+    }
+
+    public static boolean isValid(byte[] packet, int length, int sessionId) {
+        return isMedia(packet, length) && sessionId(packet) == sessionId;
+    }
+
+    // Nivel RMS de un bloque PCM16 little endian en dBFS, desplazado a 0..63.
+    public static int level(byte[] pcm, int offset, int length) {
+        int samples = length / 2;
+        if (samples == 0) {
+            return 0;
+        }
+        long sumSquares = 0;
+        for (int i = 0; i < samples; i++) {
+            int sample = (short) ((pcm[offset + 2 * i] & 0xFF) | (pcm[offset + 2 * i + 1] << 8));
+            sumSquares += (long) sample * sample;
+        }
+        double rms = Math.sqrt((double) sumSquares / samples);
+        if (rms < 1) {
+            return 0;
+        }
+        int dbfs = (int) Math.round(20 * Math.log10(rms / 32768));
+        return Math.max(0, Math.min(MAX_LEVEL, MAX_LEVEL + dbfs));
+    }
+
+    public static int payloadType(byte[] packet) {
+        return packet[1] & 0xFF;
+    }
+
+    public static int sequence(byte[] packet) {
+        return ((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF);
+    }
+
+    public static int timestamp(byte[] packet) {
+        return ByteBuffer.wrap(packet).getInt(4);
+    }
+
+    public static int sessionId(byte[] packet) {
+        return ByteBuffer.wrap(packet).getInt(8);
+    }
+}
@@ -1,4 +1,5 @@
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
 import java.io.BufferedReader;
@@ -15,13 +16,16 @@ public class ServerListener implements Runnable {
     private final Gson gson = new Gson();
     private final AudioService audioService; 
     private final CallHandler callHandler;
+    private final AudioUploader audioUploader;
 
-    public ServerListener(Client chatClient, Socket socket, AudioService audioService, CallHandler callHandler) throws IOException {
+    public ServerListener(Client chatClient, Socket socket, AudioService audioService, CallHandler callHandler,
+            AudioUploader audioUploader) throws IOException {
         this.chatClient = chatClient;
         this.inStream = socket.getInputStream();
         this.inReader = new BufferedReader(new InputStreamReader(this.inStream));
         this.audioService = audioService;
         this.callHandler = callHandler;
+        this.audioUploader = audioUploader;
     }
 
     @Override
@@ -48,21 +52,36 @@ public class ServerListener implements Runnable {
                 case "audio_transfer":
                     handleAudioTransfer(json);
                     break;
+                case "upload_ready":
+                    audioUploader.upload(json);
+                    break;
+                case "upload_complete":
+                    System.out.println(">> Archivo de audio enviado.");
+                    break;
                 case "chat":
                     formatAndPrintChatMessage(json);
                     break;
                 case "notification":
                     handleNotification(json);
                     break;
+                case "sync_summary":
+                    handleSyncSummary(json);
+                    break;
                 case "call_request":
                     handleCallRequest(json);
                     break;
                 case "call_accepted":
-                    handleCallAccepted();
+                    handleCallAccepted(json);
                     break;
                 case "call_rejected":
                     handleCallRejected(json);
                     break;
+                case "group_call_joined":
+                    handleGroupCallJoined(json);
+                    break;
+                case "group_call_update":
+                    handleGroupCallUpdate(json);
+                    break;
                 case "call_ended":
                     handleCallEnded();
                     break;
@@ -92,6 +111,27 @@ public class ServerListener implements Runnable {
         }
     }
 
+    // Resumen de conversaciones que envía el servidor al iniciar sesión.
+    private void handleSyncSummary(JsonObject json) {
+        System.out.println("--- Tus conversaciones ---");
+        for (JsonElement element : json.getAsJsonArray("conversations")) {
+            JsonObject conversation = element.getAsJsonObject();
+            String chatType = conversation.get("chat_type").getAsString();
+            String name = conversation.get("chat_name").getAsString();
+            String label = "private".equals(chatType) ? "Privado con " + name : name;
+            int unread = conversation.get("unread").getAsInt();
+            String unreadText = unread == 0 ? "al día"
+                    : unread + (conversation.get("unread_capped").getAsBoolean() ? "+" : "") + " sin leer";
+            String last = "";
+            if (conversation.has("last_message")) {
+                JsonObject message = conversation.getAsJsonObject("last_message");
+                last = " | " + message.get("sender").getAsString() + ": " + message.get("text").getAsString();
+            }
+            System.out.println("[" + label + "] " + unreadText + last);
+        }
+        System.out.println("Usa /chat <grupo> o /historial <usuario> para ver los mensajes.");
+    }
+
     private void handleCallRequest(JsonObject json) {
         String requester = json.get("from").getAsString();
         chatClient.setIncomingCallFrom(requester);
@@ -99,13 +139,34 @@ public class ServerListener implements Runnable {
         System.out.println("\n>> Llamada entrante de " + requester + ". Usa /aceptar o /rechazar.");
     }
     
-    private void handleCallAccepted() {
+    private void handleCallAccepted(JsonObject json) {
         System.out.println(">> Llamada aceptada. ¡Conectando!");
         chatClient.setIncomingCallFrom(null);
         chatClient.setCurrentState(ClientState.IN_CALL);
-        callHandler.startCall();
+        AudioCodec codec = AudioCodec.fromName(json.has("codec") ? json.get("codec").getAsString() : null);
+        System.out.println(">> Códec de audio: " + codec.getCodecName());
+        callHandler.startCall(json.has("session_id") ? json.get("session_id").getAsInt() : 0, codec, false);
     }
     
+    // En la llamada de grupo el servidor mezcla las voces y devuelve un solo flujo PCM16 ("mix"),
+    // o en grupos grandes reenvía a los que hablan y la mezcla se hace aquí ("forward").
+    private void handleGroupCallJoined(JsonObject json) {
+        boolean forward = json.has("mode") && "forward".equals(json.get("mode").getAsString());
+        System.out.println(">> Te uniste a la llamada del grupo " + json.get("group").getAsString()
+                + ". Participantes: " + json.get("participants"));
+        chatClient.setCurrentState(ClientState.IN_CALL);
+        callHandler.startCall(json.get("session_id").getAsInt(), AudioCodec.fromName(json.get("codec").getAsString()),
+                forward);
+    }
+
+    private void handleGroupCallUpdate(JsonObject json) {
+        String group = json.get("group").getAsString();
+        String user = json.get("user").getAsString();
+        boolean joined = "joined".equals(json.get("event").getAsString());
+        System.out.println(">> " + user + (joined ? " se unió a" : " salió de") + " la llamada del grupo " + group
+                + (chatClient.getCurrentState() == ClientState.IN_CALL ? "" : " (/llamar_grupo " + group + ")"));
+    }
+
     private void handleCallRejected(JsonObject json) {
         String user = json.get("user").getAsString();
         System.out.println(">> " + user + " ha rechazado la llamada.");
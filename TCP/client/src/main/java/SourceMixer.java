@@ -0,0 +1,138 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Audio de una llamada de grupo en modo reenvío: el servidor no mezcla, manda los
+ * paquetes de cada hablante con su id de fuente en el campo de sesión. Cada fuente
+ * tiene su propio JitterBuffer y aquí se suman sus bloques para reproducirlos como
+ * un solo flujo. Una fuente que deja de llegar (ya no está entre los elegidos por
+ * el servidor) se descarta a los dos segundos.
+ */
+public class SourceMixer {
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(2000);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition framesAvailable = lock.newCondition();
+    private final Map<Integer, Source> sources = new HashMap<>();
+    private int[] mix = new int[0];
+    private long sourcesSeen;
+    private long framesMixed;
+
+    private static final class Source {
+        final JitterBuffer jitter = new JitterBuffer();
+        long lastPush;
+    }
+
+    public void push(int sourceId, int sequence, int timestamp, byte[] pcm, int payloadLength) {
+        lock.lock();
+        try {
+            Source source = sources.get(sourceId);
+            if (source == null) {
+                source = new Source();
+                sources.put(sourceId, source);
+                sourcesSeen++;
+            }
+            source.lastPush = System.nanoTime();
+            source.jitter.push(sequence, timestamp, pcm, payloadLength);
+            framesAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Suma de los bloques listos de todas las fuentes, o null si en timeoutMs ninguna tiene nada. */
+    public byte[] poll(long timeoutMs) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        lock.lock();
+        try {
+            while (true) {
+                removeIdle();
+                byte[] frame = mixAvailable();
+                if (frame != null) {
+                    return frame;
+                }
+                if (remaining <= 0) {
+                    return null;
+                }
+                remaining = framesAvailable.awaitNanos(remaining);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getSourceCount() {
+        lock.lock();
+        try {
+            return sources.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String describeMetrics() {
+        lock.lock();
+        try {
+            List<String> lines = new ArrayList<>();
+            lines.add(sourcesSeen + " fuentes, " + framesMixed + " bloques mezclados");
+            for (Map.Entry<Integer, Source> entry : sources.entrySet()) {
+                lines.add("fuente " + Integer.toUnsignedString(entry.getKey()) + ": "
+                        + entry.getValue().jitter.describeMetrics());
+            }
+            return String.join("\n   ", lines);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Llamar con el candado tomado.
+    private void removeIdle() {
+        long now = System.nanoTime();
+        Iterator<Source> it = sources.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().lastPush > IDLE_NANOS) {
+                it.remove();
+            }
+        }
+    }
+
+    // Llamar con el candado tomado. PCM16 little endian; los bloques más cortos se completan con silencio.
+    private byte[] mixAvailable() throws InterruptedException {
+        int samples = 0;
+        for (Source source : sources.values()) {
+            byte[] frame = source.jitter.poll(0);
+            if (frame == null) {
+                continue;
+            }
+            int frameSamples = frame.length / 2;
+            if (frameSamples > mix.length) {
+                mix = Arrays.copyOf(mix, frameSamples);
+            }
+            if (samples == 0) {
+                Arrays.fill(mix, 0);
+            }
+            for (int i = 0; i < frameSamples; i++) {
+                mix[i] += (short) ((frame[2 * i] & 0xFF) | (frame[2 * i + 1] << 8));
+            }
+            samples = Math.max(samples, frameSamples);
+        }
+        if (samples == 0) {
+            return null;
+        }
+        byte[] out = new byte[samples * 2];
+        for (int i = 0; i < samples; i++) {
+            int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mix[i]));
+            out[2 * i] = (byte) sample;
+            out[2 * i + 1] = (byte) (sample >> 8);
+        }
+        framesMixed++;
+        return out;
+    }
+}
@@ -1,38 +1,40 @@
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.InputStreamReader;
 import java.net.Socket;
+import java.util.List;
 
 public class UserInputHandler implements Runnable {
 
     private final Client chatClient;
     private final PrintWriter out;
     private final AudioService audioService;
-    private final OutputStream socketOutStream;
     private final BufferedReader userInput;
     private String lastRecordedAudioPath = null;
     private final Gson gson = new Gson();
     private final CallHandler callHandler;
+    private final AudioUploader audioUploader;
 
-    public UserInputHandler(Client chatClient, Socket socket, AudioService audioService, CallHandler callHandler) throws IOException {
+    public UserInputHandler(Client chatClient, Socket socket, AudioService audioService, CallHandler callHandler,
+            AudioUploader audioUploader) throws IOException {
         this.chatClient = chatClient;
         this.out = new PrintWriter(socket.getOutputStream(), true);
-        this.socketOutStream = socket.getOutputStream();
         this.userInput = new BufferedReader(new InputStreamReader(System.in));
         this.audioService = audioService;
         this.callHandler = callHandler;
+        this.audioUploader = audioUploader;
     }
 
     @Override
     public void run() {
         try {
             printWelcomeMessage();
+            resumePendingUploads(false);
             while (true) {
                 // El estado actual determina el prompt que se muestra
                 ClientState currentState = chatClient.getCurrentState();
@@ -142,10 +144,12 @@ public class UserInputHandler implements Runnable {
                     chatClient.setCurrentChatContext(args);
                     request.addProperty("command", "get_group_history");
                     request.addProperty("group_name", args);
+                    sendMarkRead("group", args);
                     break;
                 case "/general":
                     chatClient.setCurrentChatContext("General");
                     System.out.println("Cambiado al chat General.");
+                    sendMarkRead("general", "General");
                     return;
                 case "/msg":
                     String[] msgArgs = args.split("\\s+", 2);
@@ -158,6 +162,7 @@ public class UserInputHandler implements Runnable {
                     if (args.isEmpty()) { System.out.println("Uso: /historial <usuario>"); return; }
                     request.addProperty("command", "get_private_history");
                     request.addProperty("with_user", args);
+                    sendMarkRead("private", args);
                     break;
                 case "/grabar":
                     lastRecordedAudioPath = audioService.startRecording(chatClient.getUsername());
@@ -173,12 +178,23 @@ public class UserInputHandler implements Runnable {
                         System.out.println(">> Primero debes grabar un audio con /grabar.");
                     }
                     return;
+                case "/reintentar_audio":
+                    resumePendingUploads(true);
+                    return;
                 case "/llamar":
                     if (args.isEmpty()) { System.out.println("Uso: /llamar <usuario>"); return; }
                     // El único lugar donde UserInputHandler cambia el estado
                     chatClient.setCurrentState(ClientState.OUTGOING_CALL); 
                     request.addProperty("command", "call_request");
                     request.addProperty("callee", args);
+                    request.add("codecs", supportedCodecs());
+                    break;
+                case "/llamar_grupo":
+                    if (args.isEmpty()) { System.out.println("Uso: /llamar_grupo <grupo>"); return; }
+                    chatClient.setCurrentState(ClientState.OUTGOING_CALL);
+                    request.addProperty("command", "group_call_join");
+                    request.addProperty("group", args);
+                    request.add("codecs", supportedCodecs());
                     break;
                 default:
                     System.out.println(">> Comando desconocido: " + command);
@@ -203,27 +219,45 @@ public class UserInputHandler implements Runnable {
             return;
         }
 
-        JsonObject request = new JsonObject();
-        request.addProperty("command", "send_audio");
-        request.addProperty("recipient", recipient);
-        request.addProperty("file_name", audioFile.getName());
-        request.addProperty("file_size", audioFile.length());
-        
-        out.println(gson.toJson(request));
+        // Sólo se anuncia por el chat; los bytes van por HTTP cuando llegue upload_ready (AudioUploader).
+        out.println(gson.toJson(audioUploader.prepare(audioFile, recipient)));
+        System.out.println(">> Subiendo archivo de audio...");
+    }
 
-        try (FileInputStream fis = new FileInputStream(audioFile)) {
-            fis.transferTo(socketOutStream);
-            socketOutStream.flush();
+    // Reanuncia las subidas a medias con su upload_id; el servidor responde desde dónde seguir.
+    private void resumePendingUploads(boolean verbose) {
+        List<JsonObject> requests = audioUploader.resumeRequests();
+        if (requests.isEmpty()) {
+            if (verbose) System.out.println(">> No hay subidas de audio pendientes.");
+            return;
         }
-        System.out.println(">> Archivo de audio enviado.");
+        System.out.println(">> Retomando " + requests.size() + " subida(s) de audio pendiente(s)...");
+        requests.forEach(request -> out.println(gson.toJson(request)));
     }
     
+    // Marca como leída la conversación que se acaba de abrir (hasta el último mensaje).
+    private void sendMarkRead(String chatType, String chatName) {
+        JsonObject request = new JsonObject();
+        request.addProperty("command", "mark_read");
+        request.addProperty("chat_type", chatType);
+        request.addProperty("chat_name", chatName);
+        out.println(gson.toJson(request));
+    }
+
+    // El servidor elige el primero de quien llama que también soporte quien contesta.
+    private static JsonArray supportedCodecs() {
+        JsonArray codecs = new JsonArray();
+        AudioCodec.supportedNames().forEach(codecs::add);
+        return codecs;
+    }
+
     private void sendAcceptRequest() {
         String requester = chatClient.getIncomingCallFrom();
         if (requester != null) {
             JsonObject request = new JsonObject();
             request.addProperty("command", "call_accept");
             request.addProperty("requester", requester);
+            request.add("codecs", supportedCodecs());
             out.println(gson.toJson(request));
         } else {
             System.out.println(">> No tienes ninguna llamada entrante para aceptar.");
@@ -260,8 +294,10 @@ public class UserInputHandler implements Runnable {
         System.out.println("/historial <usuario>");
         System.out.println("/msg <usuario> <mensaje>");
         System.out.println("/grabar | /detener | /enviar_audio <dest>");
+        System.out.println("/reintentar_audio");
         System.out.println("/reproducir <archivo.wav>");
         System.out.println("/llamar <usuario>");
+        System.out.println("/llamar_grupo <grupo>");
         System.out.println("/exit");
         System.out.println("--------------------------");
     }
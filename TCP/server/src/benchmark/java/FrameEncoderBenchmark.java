@@ -0,0 +1,141 @@
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Script para comparar FrameEncoder con el camino anterior (árbol JsonObject +
+ * gson.toJson, y en el historial un Gson nuevo por fila y un fromJson por mensaje).
+ * Para cada tipo de frame primero comprueba que las dos salidas son idénticas y
+ * después mide, tras calentar, ns y bytes asignados por frame en el hilo actual.
+ *
+ * Uso: java FrameEncoderBenchmark [iteraciones] [mensajes por página de historial]
+ *   (desde Gradle: gradlew :TCP:server:benchmark -Pbench=FrameEncoderBenchmark -Pargs="...")
+ */
+public class FrameEncoderBenchmark {
+    private static final Gson GSON = new Gson();
+    private static final String SENT_AT = "2026-10-18T12:34:56.789";
+    private static final String TEXT = "¿Quedamos a las 5? <ya sabes> \"lo de siempre\" & tal";
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int pageSize = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        List<String> codecs = Arrays.asList("ima-adpcm", "pcmu", "pcm16");
+
+        System.out.printf("%-24s %-10s %10s %12s%n", "frame", "camino", "ns/frame", "bytes/frame");
+        compare("notification", iterations,
+                () -> gsonNotification("Grupo 'equipo' creado exitosamente."),
+                () -> FrameEncoder.notification("Grupo 'equipo' creado exitosamente."));
+        // Como en DatabaseService: un Gson nuevo por cada fila de historial.
+        compare("chat", iterations,
+                () -> gsonChat(new Gson(), "private_from", "ana", "ana", TEXT, null, SENT_AT),
+                () -> FrameEncoder.chat("private_from", "ana", "ana", TEXT, null, SENT_AT));
+        compare("call_request", iterations,
+                () -> gsonCallRequest("ana", codecs),
+                () -> FrameEncoder.begin("call_request").field("from", "ana").field("codecs", codecs).end());
+        compare("chat_history_response", Math.max(1, iterations / pageSize),
+                () -> gsonHistory(pageSize),
+                () -> encoderHistory(pageSize));
+        compare("notification (caché)", iterations,
+                () -> Frames.encode(gsonNotification("¡Bienvenido!")),
+                () -> FrameEncoder.WELCOME.duplicate());
+        System.exit(0);
+    }
+
+    private static void compare(String name, int iterations, Supplier<Object> gson, Supplier<Object> encoder) {
+        Object expected = gson.get();
+        Object actual = encoder.get();
+        if (expected instanceof String && !expected.equals(actual)) {
+            throw new IllegalStateException(name + ": salida distinta\n  gson:    " + expected + "\n  encoder: " + actual);
+        }
+        measure(name, "gson", iterations, gson);
+        measure(name, "encoder", iterations, encoder);
+    }
+
+    private static void measure(String name, String path, int iterations, Supplier<Object> frame) {
+        for (int i = 0; i < iterations; i++) {
+            sink = frame.get();
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long bytesBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink = frame.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = threads.getCurrentThreadAllocatedBytes() - bytesBefore;
+        System.out.printf("%-24s %-10s %10d %12d%n", name, path, elapsed / iterations, bytes / iterations);
+    }
+
+    // --- Camino anterior, tal como estaba en ChatController, DatabaseService y ClientHandler ---
+
+    private static String gsonNotification(String message) {
+        JsonObject json = new JsonObject();
+        json.addProperty("type", "notification");
+        json.addProperty("message", message);
+        return GSON.toJson(json);
+    }
+
+    private static String gsonChat(Gson gson, String subType, String sender, String party, String text, String group,
+            String sentAt) {
+        JsonObject json = new JsonObject();
+        json.addProperty("type", "chat");
+        json.addProperty("sub_type", subType);
+        json.addProperty("sender", sender);
+        json.addProperty("party", party);
+        json.addProperty("text", text);
+        if (group != null) {
+            json.addProperty("group", group);
+        }
+        if (sentAt != null) {
+            json.addProperty("sent_at", sentAt);
+        }
+        return gson.toJson(json);
+    }
+
+    private static String gsonCallRequest(String from, List<String> codecs) {
+        JsonObject callRequest = new JsonObject();
+        callRequest.addProperty("type", "call_request");
+        callRequest.addProperty("from", from);
+        JsonArray offered = new JsonArray();
+        codecs.forEach(offered::add);
+        callRequest.add("codecs", offered);
+        return GSON.toJson(callRequest);
+    }
+
+    // Cada fila del historial se generaba con un Gson nuevo y ClientHandler la volvía a parsear.
+    private static String gsonHistory(int pageSize) {
+        List<String> rows = new ArrayList<>(pageSize);
+        for (int i = 0; i < pageSize; i++) {
+            rows.add(gsonChat(new Gson(), "group", "usuario" + i, null, TEXT + i, "equipo", SENT_AT));
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty("type", "chat_history_response");
+        response.addProperty("chat_type", "group");
+        response.addProperty("chat_name", "equipo");
+        JsonArray messagesArray = new JsonArray();
+        for (String msg : rows) {
+            messagesArray.add(GSON.fromJson(msg, JsonObject.class));
+        }
+        response.add("messages", messagesArray);
+        response.addProperty("next_cursor", "abc");
+        response.addProperty("has_more", true);
+        return GSON.toJson(response);
+    }
+
+    // --- Camino nuevo para el historial: filas con FrameEncoder.chat y copia directa al array ---
+
+    private static String encoderHistory(int pageSize) {
+        List<String> rows = new ArrayList<>(pageSize);
+        for (int i = 0; i < pageSize; i++) {
+            rows.add(FrameEncoder.chat("group", "usuario" + i, null, TEXT + i, "equipo", SENT_AT));
+        }
+        return FrameEncoder.begin("chat_history_response").field("chat_type", "group").field("chat_name", "equipo")
+                .rawArray("messages", rows).field("next_cursor", "abc").field("has_more", true).end();
+    }
+}
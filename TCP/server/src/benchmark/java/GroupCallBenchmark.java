@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Script para comparar el coste del relay en llamadas de grupo según el modo
+ * (MIX: mezcla en el servidor, FORWARD: reenvío de los que hablan) y el tamaño de la sala.
+ * Simula S segundos de audio: cada participante entrega un paquete de 20 ms por tick
+ * y sólo H de ellos hablan. Los paquetes se pasan directamente a GroupCallMixer, sin la
+ * recepción de red, y las salidas van a sockets locales: se mide el trabajo del relay
+ * (recepción, mezcla o reenvío, send()) en CPU del hilo, por participante y segundo de audio.
+ *
+ * Uso: java GroupCallBenchmark [segundos] [hablantes] [tamaños de sala, p. ej. 10,50,200]
+ *   (desde Gradle: gradlew :TCP:server:benchmark -Pbench=GroupCallBenchmark -Pargs="...")
+ */
+public class GroupCallBenchmark {
+    private static final int TICKS_PER_SECOND = 1000 / GroupCallMixer.TICK_MS;
+    private static final int PCM_PAYLOAD = GroupCallMixer.FRAME_SAMPLES * 2;
+    // Un bloque de 20 ms en IMA ADPCM: 4 bytes de estado y 4 bits por muestra.
+    private static final int ADPCM_PAYLOAD = 4 + GroupCallMixer.FRAME_SAMPLES / 2;
+    private static final int SPEECH_LEVEL = 50;
+    private static final int SILENCE_LEVEL = 3;
+    // 400 Hz: un bloque de 20 ms son 8 periodos exactos, así que se repite igual en cada tick.
+    private static final short[] TONE = new short[GroupCallMixer.FRAME_SAMPLES];
+
+    static {
+        for (int s = 0; s < TONE.length; s++) {
+            TONE[s] = (short) (8000 * Math.sin(2 * Math.PI * 400 * s / GroupCallMixer.SAMPLE_RATE));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int speakers = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        String[] sizes = (args.length > 2 ? args[2] : "10,50,200").split(",");
+
+        // Sin los límites de producción, para medir los dos modos en todos los tamaños.
+        setDefault("chat.call.group.maxParticipants", "1000");
+        setDefault("chat.call.group.maxForwardParticipants", "1000");
+
+        System.out.printf("%-8s %6s %14s %22s %16s%n", "modo", "sala", "CPU total ms", "CPU/participante us/s",
+                "paquetes/s");
+        for (String size : sizes) {
+            for (GroupCallMixer.Mode mode : GroupCallMixer.Mode.values()) {
+                run(mode, Integer.parseInt(size.trim()), speakers, seconds);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void run(GroupCallMixer.Mode mode, int size, int speakers, int seconds) throws IOException {
+        GroupCallMixer mixer = new GroupCallMixer();
+        List<DatagramChannel> sinks = new ArrayList<>();
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (DatagramChannel out = DatagramChannel.open()) {
+            out.bind(new InetSocketAddress(loopback, 0));
+            // No se llama a attach(): el tick lo da este hilo, para medir su CPU.
+            GroupCallMixer.Participant[] participants = new GroupCallMixer.Participant[size];
+            for (int i = 0; i < size; i++) {
+                DatagramChannel sink = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+                sinks.add(sink);
+                SocketAddress address = sink.getLocalAddress();
+                mixer.join("bench", "bench" + i, address, mode, "ima-adpcm");
+                participants[i] = mixer.getParticipant(address);
+            }
+            GroupCallMixer.Conference conference = mixer.getConference("bench");
+            int payloadType = mode == GroupCallMixer.Mode.MIX ? MediaHeader.PAYLOAD_PCM16 : MediaHeader.PAYLOAD_IMA_ADPCM;
+            int payloadLength = mode == GroupCallMixer.Mode.MIX ? PCM_PAYLOAD : ADPCM_PAYLOAD;
+            ByteBuffer packet = ByteBuffer.allocateDirect(MediaHeader.LENGTH + payloadLength);
+
+            // Un segundo de calentamiento para el JIT antes de medir.
+            simulate(conference, participants, out, packet, payloadType, payloadLength, speakers, 0, TICKS_PER_SECOND);
+            long packetsBefore = conference.getPacketsForwarded();
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long cpuStart = threads.getCurrentThreadCpuTime();
+            simulate(conference, participants, out, packet, payloadType, payloadLength, speakers, TICKS_PER_SECOND,
+                    TICKS_PER_SECOND * seconds);
+            long cpuNanos = threads.getCurrentThreadCpuTime() - cpuStart;
+            long packetsOut = conference.getPacketsForwarded() - packetsBefore;
+
+            System.out.printf("%-8s %6d %14.1f %22.1f %16d%n", mode, size, cpuNanos / 1e6,
+                    cpuNanos / 1e3 / seconds / size, packetsOut / seconds);
+            System.out.println("         " + conference.describeMetrics());
+            for (int i = 0; i < size; i++) {
+                mixer.leave("bench" + i);
+            }
+        } finally {
+            for (DatagramChannel sink : sinks) {
+                sink.close();
+            }
+        }
+    }
+
+    // Un paquete por participante y tick; hablan los primeros "speakers" con un tono de 400 Hz.
+    private static void simulate(GroupCallMixer.Conference conference, GroupCallMixer.Participant[] participants,
+            DatagramChannel out, ByteBuffer packet, int payloadType, int payloadLength, int speakers, int firstTick,
+            int ticks) throws IOException {
+        for (int tick = firstTick; tick < firstTick + ticks; tick++) {
+            int timestamp = tick * GroupCallMixer.FRAME_SAMPLES;
+            for (int i = 0; i < participants.length; i++) {
+                boolean speaking = i < speakers;
+                packet.clear();
+                MediaHeader.write(packet, payloadType, tick, timestamp, conference.getSessionId());
+                packet.put(0, (byte) (MediaHeader.VERSION | (speaking ? SPEECH_LEVEL : SILENCE_LEVEL)));
+                if (payloadType == MediaHeader.PAYLOAD_PCM16) {
+                    packet.order(ByteOrder.LITTLE_ENDIAN);
+                    for (int s = 0; s < TONE.length; s++) {
+                        packet.putShort(speaking ? TONE[s] : 0);
+                    }
+                    packet.order(ByteOrder.BIG_ENDIAN);
+                } else {
+                    packet.position(MediaHeader.LENGTH + payloadLength);
+                }
+                packet.flip();
+                participants[i].receive(packet, out);
+            }
+            conference.tick(out, tick + 1);
+        }
+    }
+
+    private static void setDefault(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Almacén de notas de voz direccionado por contenido. El id de cada nota es el
+ * SHA-256 de sus bytes más la extensión que indica su firma (p. ej. "3fa9…c1.webm"),
+ * así que la misma nota reenviada a varios chats se guarda una sola vez, en
+ * blobs/3f/a9/&lt;id&gt;. Los mensajes guardan el id; la tabla audio_blobs lleva cuántas
+ * filas de mensajes apuntan a cada nota (ver DatabaseService) y el recolector borra
+ * las que se quedan sin referencias.
+ *
+ * Los archivos se indexan en memoria al arrancar: buscar una nota no toca el disco.
+ * Las notas antiguas, con nombre propio en la raíz del directorio, se siguen sirviendo.
+ * Las notas recién guardadas y las más pedidas se leen de AudioCache (ver read).
+ * AudioTranscoder convierte cada nota nueva en segundo plano. Un blob nunca cambia
+ * de bytes: la versión convertida se guarda como otro blob, con su propio SHA-256, y
+ * la nota original la señala como variante (ver servedId). Las filas de audio_blobs
+ * que la señalan cuentan como referencias para el recolector.
+ */
+public class AudioBlobStore {
+    private static final Pattern BLOB_ID = Pattern.compile("[0-9a-f]{64}\\.(wav|webm|bin)");
+    private static final long GC_INTERVAL_MINUTES = ServerConfig.getLong("chat.audio.gcIntervalMinutes", 360);
+    // Margen, desde la última vez que se guardó la nota, para que llegue a la BD el mensaje que la usa.
+    private static final long GC_GRACE_MINUTES = ServerConfig.getLong("chat.audio.gcGraceMinutes", 60);
+    private static final long CACHE_BYTES = ServerConfig.getLong("chat.audio.cacheBytes", 64L * 1024 * 1024);
+    // Las notas más grandes se envían siempre desde el disco.
+    private static final long CACHE_MAX_ENTRY_BYTES = ServerConfig.getLong("chat.audio.cacheMaxEntryBytes",
+            4L * 1024 * 1024);
+
+    private final Path root;
+    private final Path blobs;
+    private final Path tmp;
+    private final DatabaseService db;
+    // id (o nombre antiguo) -> archivo.
+    private final ConcurrentHashMap<String, Path> index = new ConcurrentHashMap<>();
+    // Serializa la entrada y el borrado de blobs: una nota no se borra mientras otra igual se guarda.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AudioCache cache = new AudioCache(CACHE_BYTES, CACHE_MAX_ENTRY_BYTES);
+    private final AudioTranscoder transcoder;
+    // Duración y forma de onda de las notas ya procesadas; se completa desde la BD bajo demanda.
+    private final ConcurrentHashMap<String, AudioTranscoder.NoteInfo> infos = new ConcurrentHashMap<>();
+    private ScheduledExecutorService collector;
+
+    public AudioBlobStore(String directory, DatabaseService db) {
+        this.root = Paths.get(directory).toAbsolutePath().normalize();
+        this.blobs = root.resolve("blobs");
+        this.tmp = root.resolve("tmp");
+        this.db = db;
+        this.transcoder = new AudioTranscoder(this, db);
+        try {
+            Files.createDirectories(blobs);
+            Files.createDirectories(tmp);
+            loadIndex();
+        } catch (IOException e) {
+            System.err.println("Error preparando el almacén de audio " + root + ": " + e.getMessage());
+        }
+    }
+
+    public static boolean isBlobId(String id) {
+        return id != null && BLOB_ID.matcher(id).matches();
+    }
+
+    /** Archivo de la nota con ese id (o nombre antiguo), o null si no existe. */
+    public File find(String id) {
+        Path path = id != null ? index.get(id) : null;
+        return path != null ? path.toFile() : null;
+    }
+
+    /**
+     * Contenido de la nota desde la caché, cargándola si hace falta. Devuelve null si
+     * no existe o si es demasiado grande para la caché: entonces se envía desde find().
+     * El búfer es compartido y de sólo lectura; usar duplicate() para recorrerlo.
+     */
+    public ByteBuffer read(String id) throws IOException {
+        Path path = id != null ? index.get(id) : null;
+        if (path == null) {
+            return null;
+        }
+        ByteBuffer data = cache.get(id);
+        if (data != null || Files.size(path) > CACHE_MAX_ENTRY_BYTES) {
+            return data;
+        }
+        data = ByteBuffer.wrap(Files.readAllBytes(path)).asReadOnlyBuffer();
+        cache.put(id, data);
+        return data;
+    }
+
+    public AudioCache getCache() {
+        return cache;
+    }
+
+    public AudioTranscoder getTranscoder() {
+        return transcoder;
+    }
+
+    /** Duración y forma de onda de la nota, o null si aún no se ha procesado. */
+    public AudioTranscoder.NoteInfo getInfo(String id) {
+        if (!isBlobId(id)) {
+            return null;
+        }
+        AudioTranscoder.NoteInfo info = infos.get(id);
+        if (info == null) {
+            info = db.findAudioInfo(id);
+            if (info != null) {
+                infos.put(id, info);
+            }
+        }
+        return info;
+    }
+
+    void putInfo(String id, AudioTranscoder.NoteInfo info) {
+        if (index.containsKey(id)) {
+            infos.put(id, info);
+        }
+    }
+
+    /**
+     * Id que conviene enviar para la nota pedida: su variante convertida si ya existe,
+     * o la propia nota. Las dos son inmutables, así que se puede enviar cualquiera entera.
+     */
+    public String servedId(String id) {
+        AudioTranscoder.NoteInfo info = getInfo(id);
+        String variant = info != null ? info.getVariantId() : null;
+        return variant != null && index.containsKey(variant) ? variant : id;
+    }
+
+    /**
+     * Guarda la versión convertida de una nota como un blob más, direccionado por su
+     * propio contenido, y devuelve su id. No se vuelve a pasar por el transcodificador.
+     */
+    String putVariant(Path converted) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream in = Files.newInputStream(converted)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return store(converted, toHex(digest.digest()), false);
+    }
+
+    // Archivo temporal en el mismo disco que los blobs, para moverlo después sin copiarlo.
+    public Path newTempFile() {
+        return tmp.resolve(UUID.randomUUID().toString());
+    }
+
+    public String put(byte[] data) throws IOException {
+        Path temp = newTempFile();
+        Files.write(temp, data);
+        return putFile(temp, toHex(sha256().digest(data)));
+    }
+
+    // Lee exactamente size bytes; null si el stream se corta antes.
+    public String put(InputStream in, long size) throws IOException {
+        MessageDigest digest = sha256();
+        Path temp = newTempFile();
+        long total = 0;
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while (total < size && (read = in.read(buffer, 0, (int) Math.min(buffer.length, size - total))) != -1) {
+                out.write(buffer, 0, read);
+                digest.update(buffer, 0, read);
+                total += read;
+            }
+        }
+        if (total != size) {
+            Files.deleteIfExists(temp);
+            return null;
+        }
+        return putFile(temp, toHex(digest.digest()));
+    }
+
+    /**
+     * Incorpora un archivo temporal cuyo SHA-256 ya se conoce: se mueve a su sitio o,
+     * si esa nota ya estaba, se borra. Devuelve el id.
+     */
+    public String putFile(Path file, String sha256) throws IOException {
+        return store(file, sha256, true);
+    }
+
+    private String store(Path file, String sha256, boolean transcode) throws IOException {
+        String id = sha256.toLowerCase() + "." + extension(file);
+        Path target = pathFor(id);
+        long size = Files.size(file);
+        boolean stored;
+        lock.lock();
+        try {
+            if (index.containsKey(id)) {
+                Files.delete(file);
+                stored = false;
+            } else {
+                Files.createDirectories(target.getParent());
+                Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+                index.put(id, target);
+                stored = true;
+            }
+            // Con el candado, como el borrado del GC: una nota repetida renueva su plazo
+            // antes de que el recolector pueda decidir borrarla.
+            db.registerAudioBlob(id, size);
+        } finally {
+            lock.unlock();
+        }
+        // Los miembros del grupo la pedirán en cuanto llegue el aviso: se deja ya en memoria.
+        if (size <= CACHE_MAX_ENTRY_BYTES) {
+            cache.put(id, ByteBuffer.wrap(Files.readAllBytes(target)).asReadOnlyBuffer());
+        }
+        if (stored && transcode) {
+            transcoder.submit(id);
+        }
+        return id;
+    }
+
+    /** Procesa en segundo plano las notas que llegan y las que quedaron pendientes. */
+    public void startTranscoder() {
+        transcoder.start();
+    }
+
+    public void startGarbageCollector() {
+        if (collector != null) {
+            return;
+        }
+        collector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread t = new Thread(runnable, "audio-blob-gc");
+            t.setDaemon(true);
+            return t;
+        });
+        collector.scheduleWithFixedDelay(this::collectGarbage, GC_INTERVAL_MINUTES, GC_INTERVAL_MINUTES,
+                TimeUnit.MINUTES);
+    }
+
+    /** Recalcula las referencias y borra las notas sin mensajes; devuelve cuántas borró. */
+    public int collectGarbage() {
+        List<String> unreferenced = db.findUnreferencedAudioBlobs(GC_GRACE_MINUTES);
+        int deleted = 0;
+        for (String id : unreferenced) {
+            lock.lock();
+            try {
+                // La fila se borra sólo si sigue sin referencias; entonces el archivo ya no lo pide nadie.
+                if (!db.deleteAudioBlobIfUnreferenced(id, GC_GRACE_MINUTES)) {
+                    continue;
+                }
+                Path path = index.remove(id);
+                cache.invalidate(id);
+                infos.remove(id);
+                Files.deleteIfExists(path != null ? path : pathFor(id));
+                deleted++;
+            } catch (IOException e) {
+                System.err.println("No se pudo borrar la nota " + id + ": " + e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (deleted > 0) {
+            System.out.println("Almacén de audio: " + deleted + " nota(s) sin referencias borradas");
+        }
+        return deleted;
+    }
+
+    private Path pathFor(String id) {
+        return blobs.resolve(id.substring(0, 2)).resolve(id.substring(2, 4)).resolve(id);
+    }
+
+    private void loadIndex() throws IOException {
+        try (Stream<Path> files = Files.walk(blobs)) {
+            files.filter(Files::isRegularFile)
+                    .filter(path -> isBlobId(path.getFileName().toString()))
+                    .forEach(path -> index.put(path.getFileName().toString(), path));
+        }
+        try (DirectoryStream<Path> legacy = Files.newDirectoryStream(root, Files::isRegularFile)) {
+            for (Path path : legacy) {
+                index.put(path.getFileName().toString(), path);
+            }
+        }
+        // Restos de subidas o escrituras interrumpidas.
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(tmp)) {
+            for (Path path : leftovers) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    // Las notas del cliente de consola son WAV y las del navegador WebM; se mira la firma, no el nombre.
+    private static String extension(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            channel.read(magic, 0);
+            if (magic.position() == 4) {
+                int signature = magic.getInt(0);
+                if (signature == 0x52494646) { // "RIFF"
+                    return "wav";
+                }
+                if (signature == 0x1A45DFA3) { // EBML
+                    return "webm";
+                }
+            }
+        }
+        return "bin";
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,254 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caché en memoria de las notas de voz más pedidas, limitada por bytes y no por
+ * número de notas. En un grupo todos los miembros piden la misma nota recién
+ * enviada en pocos segundos; con la caché sólo el primero lee del disco.
+ *
+ * Sigue el esquema W-TinyLFU: las notas nuevas entran en una ventana LRU pequeña
+ * (así una nota recién subida siempre llega a servirse desde memoria) y, al salir
+ * de ella, sólo pasan a la zona principal si se han pedido más veces que la nota
+ * que desplazarían. Las frecuencias se cuentan en un sketch de pocos bytes por nota
+ * que se reduce a la mitad cada cierto número de accesos, para olvidar lo antiguo.
+ *
+ * Las notas son inmutables (el id es su SHA-256; la versión convertida de una nota
+ * es otro blob), así que el búfer cacheado se comparte entre todos los lectores;
+ * nadie debe cambiar su posición ni su límite.
+ */
+public class AudioCache {
+    // Porcentaje de la capacidad que ocupa la ventana de notas recién llegadas.
+    private static final int WINDOW_PERCENT = 20;
+    private static final int METRICS_EVERY_LOOKUPS = 1000;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final long windowMaxBytes;
+    // Orden de acceso: la primera entrada es la menos usada recientemente.
+    private final LinkedHashMap<String, ByteBuffer> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, ByteBuffer> main = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    private final ReentrantLock lock = new ReentrantLock();
+    private long windowBytes;
+    private long mainBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder bytesServed = new LongAdder();
+    // Un solo contador para decidir cuándo registrar: con dos sumas separadas el aviso se saltaba o se repetía.
+    private final AtomicLong lookups = new AtomicLong();
+
+    public AudioCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        this.maxEntryBytes = Math.min(maxEntryBytes, this.maxBytes);
+        this.windowMaxBytes = this.maxBytes * WINDOW_PERCENT / 100;
+        // Un contador por cada 16 KB de capacidad: bastante más que las notas que caben.
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1024, this.maxBytes / (16 * 1024))));
+    }
+
+    /** Búfer de la nota o null si no está; cuenta el acceso aunque falle. */
+    public ByteBuffer get(String id) {
+        ByteBuffer data;
+        lock.lock();
+        try {
+            sketch.increment(id);
+            data = window.get(id);
+            if (data == null) {
+                data = main.get(id);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (data != null) {
+            hits.increment();
+            bytesServed.add(data.remaining());
+        } else {
+            misses.increment();
+        }
+        if (lookups.incrementAndGet() % METRICS_EVERY_LOOKUPS == 0) {
+            System.out.println("Caché de audio: " + describeMetrics());
+        }
+        return data;
+    }
+
+    /** Ofrece una nota recién leída o subida; las más grandes que maxEntryBytes no se guardan. */
+    public void put(String id, ByteBuffer data) {
+        long size = data.remaining();
+        if (size == 0 || size > maxEntryBytes) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (window.containsKey(id) || main.containsKey(id)) {
+                return;
+            }
+            if (size > windowMaxBytes) {
+                // No cabe en la ventana: compite directamente por la zona principal, que sí respeta su límite.
+                admit(id, data);
+                return;
+            }
+            window.put(id, data);
+            windowBytes += size;
+            // Lo que sale de la ventana compite por la zona principal.
+            Iterator<Map.Entry<String, ByteBuffer>> it = window.entrySet().iterator();
+            while (windowBytes > windowMaxBytes && it.hasNext()) {
+                // La recién llegada es la última del orden y cabe sola, así que nunca sale aquí.
+                Map.Entry<String, ByteBuffer> candidate = it.next();
+                it.remove();
+                windowBytes -= candidate.getValue().remaining();
+                admit(candidate.getKey(), candidate.getValue());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidate(String id) {
+        lock.lock();
+        try {
+            ByteBuffer data = window.remove(id);
+            if (data != null) {
+                windowBytes -= data.remaining();
+            }
+            data = main.remove(id);
+            if (data != null) {
+                mainBytes -= data.remaining();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String describeMetrics() {
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        long bytes;
+        int entries;
+        lock.lock();
+        try {
+            bytes = windowBytes + mainBytes;
+            entries = window.size() + main.size();
+        } finally {
+            lock.unlock();
+        }
+        return String.format("%d notas, %d/%d KB, aciertos %.1f%% (%d de %d), %d KB servidos, %d rechazadas, %d desalojadas",
+                entries, bytes / 1024, maxBytes / 1024, lookups == 0 ? 0.0 : 100.0 * hitCount / lookups, hitCount,
+                lookups, bytesServed.sum() / 1024, rejected.sum(), evicted.sum());
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    // Con el candado tomado. Entra si cabe o si se pide más que las notas que tendría que desalojar.
+    private void admit(String id, ByteBuffer data) {
+        long size = data.remaining();
+        long mainMaxBytes = maxBytes - windowMaxBytes;
+        if (size > mainMaxBytes) {
+            rejected.increment();
+            return;
+        }
+        int frequency = sketch.frequency(id);
+        long freed = 0;
+        Iterator<Map.Entry<String, ByteBuffer>> victims = main.entrySet().iterator();
+        while (mainBytes - freed + size > mainMaxBytes) {
+            Map.Entry<String, ByteBuffer> victim = victims.next();
+            if (sketch.frequency(victim.getKey()) >= frequency) {
+                rejected.increment();
+                return;
+            }
+            freed += victim.getValue().remaining();
+        }
+        // Las víctimas son las primeras del orden LRU, las mismas que se acaban de comparar.
+        victims = main.entrySet().iterator();
+        while (freed > 0) {
+            Map.Entry<String, ByteBuffer> victim = victims.next();
+            victims.remove();
+            long victimSize = victim.getValue().remaining();
+            mainBytes -= victimSize;
+            freed -= victimSize;
+            evicted.increment();
+        }
+        main.put(id, data);
+        mainBytes += size;
+    }
+
+    /**
+     * Estimación de cuántas veces se ha pedido cada nota: count-min con cuatro filas
+     * de contadores de un byte, saturados en 15. Cada 10 accesos por contador todos
+     * se dividen entre dos.
+     */
+    static final class FrequencySketch {
+        private static final int MAX_COUNT = 15;
+
+        private final byte[][] rows = new byte[4][];
+        private final int mask;
+        private final int resetAfter;
+        private int additions;
+
+        FrequencySketch(int counters) {
+            int size = Integer.highestOneBit(Math.max(16, counters - 1) << 1);
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = new byte[size];
+            }
+            this.mask = size - 1;
+            this.resetAfter = size * 10;
+        }
+
+        void increment(String key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < rows.length; i++) {
+                int index = indexOf(hash, i);
+                if (rows[i][index] < MAX_COUNT) {
+                    rows[i][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= resetAfter) {
+                reset();
+            }
+        }
+
+        int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int min = MAX_COUNT;
+            for (int i = 0; i < rows.length; i++) {
+                min = Math.min(min, rows[i][indexOf(hash, i)]);
+            }
+            return min;
+        }
+
+        private void reset() {
+            for (byte[] row : rows) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = hash * (0x9E3779B9 + 2 * row * 0x632BE5AB);
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private static int spread(int hash) {
+            hash ^= hash >>> 17;
+            hash *= 0xED5AD4BB;
+            hash ^= hash >>> 11;
+            return hash;
+        }
+    }
+}
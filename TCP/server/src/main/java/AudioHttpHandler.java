@@ -0,0 +1,292 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Contexto /audio del servidor HTTP: sirve las notas de voz de AudioBlobStore por su id.
+ * El id es el SHA-256 del contenido y sus bytes no cambian nunca: la versión que
+ * genera AudioTranscoder es otro blob, y las descargas desde el principio de una nota
+ * que la tiene se redirigen (302) a ella. Por eso se marca como inmutable en caché;
+ * las notas antiguas, con nombre propio, se revalidan. Se responde 304 a las
+ * revalidaciones (ETag con tamaño y fecha / Last-Modified) y 206 a las peticiones
+ * Range de un solo rango, que es lo que piden los reproductores del navegador al
+ * saltar dentro del audio.
+ *
+ * Las notas que están en AudioCache se envían desde memoria; el resto, con
+ * FileChannel.transferTo, sin el bucle de copia con búfer propio.
+ */
+public class AudioHttpHandler implements HttpHandler {
+    // Un id de blob siempre da los mismos bytes; las notas antiguas, con nombre propio, se revalidan.
+    private static final String CACHE_CONTROL_IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final String CACHE_CONTROL_LEGACY = "public, no-cache";
+
+    private final AudioBlobStore store;
+
+    public AudioHttpHandler(AudioBlobStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            Headers response = exchange.getResponseHeaders();
+            response.add("Access-Control-Allow-Origin", "*");
+            response.add("Access-Control-Allow-Methods", "GET, HEAD, OPTIONS");
+            response.add("Access-Control-Allow-Headers", "Content-Type,Authorization,Range");
+            response.add("Access-Control-Expose-Headers",
+                    "Content-Length,Content-Range,Accept-Ranges,ETag,X-Audio-Duration-Ms,X-Audio-Waveform");
+
+            String method = exchange.getRequestMethod();
+            if ("OPTIONS".equalsIgnoreCase(method)) {
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+            boolean head = "HEAD".equalsIgnoreCase(method);
+            if (!head && !"GET".equalsIgnoreCase(method)) {
+                response.add("Allow", "GET, HEAD, OPTIONS");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            String path = exchange.getRequestURI().getPath();
+            String id = path.substring(path.lastIndexOf('/') + 1);
+            Path file = resolve(id);
+            if (file == null) {
+                sendText(exchange, 404, "File not found");
+                return;
+            }
+            // Si hay versión convertida, las descargas que empiezan desde el principio van a ella.
+            // Un Range a mitad de archivo sigue en el original: es de quien ya lo estaba reproduciendo.
+            String served = store.servedId(id);
+            if (!served.equals(id) && startsAtBeginning(exchange.getRequestHeaders().getFirst("Range"))) {
+                response.add("Location", path.substring(0, path.lastIndexOf('/') + 1) + served);
+                response.add("Cache-Control", "no-cache");
+                exchange.sendResponseHeaders(302, -1);
+                return;
+            }
+            AudioTranscoder.NoteInfo info = store.getInfo(id);
+            if (info != null && info.getDurationMs() >= 0) {
+                exchange.getResponseHeaders().add("X-Audio-Duration-Ms", Integer.toString(info.getDurationMs()));
+            }
+            if (info != null && info.getWaveform() != null) {
+                exchange.getResponseHeaders().add("X-Audio-Waveform", info.getWaveform());
+            }
+            serve(exchange, file, store.read(id), head,
+                    AudioBlobStore.isBlobId(id) ? CACHE_CONTROL_IMMUTABLE : CACHE_CONTROL_LEGACY);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // cached es el contenido en memoria, o null para leerlo del archivo.
+    private void serve(HttpExchange exchange, Path file, ByteBuffer cached, boolean head, String cacheControl)
+            throws IOException {
+        Headers request = exchange.getRequestHeaders();
+        Headers response = exchange.getResponseHeaders();
+        try (FileChannel channel = cached == null ? FileChannel.open(file, StandardOpenOption.READ) : null) {
+            long length = cached != null ? cached.remaining() : channel.size();
+            long lastModified = Files.getLastModifiedTime(file).toMillis() / 1000 * 1000;
+            String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+
+            response.add("Content-Type", contentType(cached != null ? cached : readMagic(channel)));
+            response.add("Accept-Ranges", "bytes");
+            response.add("Cache-Control", cacheControl);
+            response.add("ETag", etag);
+            response.add("Last-Modified", formatDate(lastModified));
+
+            if (notModified(request, etag, lastModified)) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            long start = 0;
+            long count = length;
+            boolean partial = false;
+            String range = request.getFirst("Range");
+            // If-Range: si el archivo ya no es el que tenía el cliente se manda completo.
+            String ifRange = request.getFirst("If-Range");
+            if (range != null && (ifRange == null || ifRange.equals(etag))) {
+                long[] bounds = parseRange(range, length);
+                if (bounds == null) {
+                    response.add("Content-Range", "bytes */" + length);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                if (bounds.length == 2) {
+                    start = bounds[0];
+                    count = bounds[1] - bounds[0] + 1;
+                    partial = true;
+                    response.add("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + length);
+                }
+            }
+            int status = partial ? 206 : 200;
+            if (head) {
+                response.add("Content-Length", Long.toString(count));
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            // Con longitud 0 HttpServer usaría chunked; -1 es "sin cuerpo".
+            exchange.sendResponseHeaders(status, count == 0 ? -1 : count);
+            if (count > 0) {
+                OutputStream body = exchange.getResponseBody();
+                WritableByteChannel target = Channels.newChannel(body);
+                if (cached != null) {
+                    ByteBuffer slice = cached.duplicate();
+                    slice.position(slice.position() + (int) start);
+                    slice.limit(slice.position() + (int) count);
+                    while (slice.hasRemaining()) {
+                        target.write(slice);
+                    }
+                } else {
+                    long position = start;
+                    long end = start + count;
+                    while (position < end) {
+                        long sent = channel.transferTo(position, end - position, target);
+                        if (sent <= 0) {
+                            break;
+                        }
+                        position += sent;
+                    }
+                }
+                body.flush();
+            }
+        }
+    }
+
+    // Sólo ids (o nombres antiguos) que el almacén conoce; nunca una ruta construida con la URL.
+    private static boolean startsAtBeginning(String range) {
+        return range == null || range.trim().equalsIgnoreCase("bytes=0-");
+    }
+
+    private Path resolve(String id) {
+        File file = store.find(id);
+        return file != null && file.isFile() ? file.toPath() : null;
+    }
+
+    private static boolean notModified(Headers request, String etag, long lastModified) {
+        String ifNoneMatch = request.getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            // Con If-None-Match presente se ignora If-Modified-Since (RFC 9110).
+            return false;
+        }
+        String ifModifiedSince = request.getFirst("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+                        .toInstant().toEpochMilli();
+                return lastModified <= since;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * "bytes=a-b", "bytes=a-" o "bytes=-n" sobre un archivo de length bytes:
+     * {inicio, fin} inclusivos; {} si la cabecera no se entiende o pide varios rangos
+     * (se responde el archivo completo); null si el rango no se puede satisfacer.
+     */
+    static long[] parseRange(String header, long length) {
+        String value = header.trim();
+        if (!value.startsWith("bytes=") || value.indexOf(',') >= 0) {
+            return new long[0];
+        }
+        String spec = value.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return new long[0];
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                if (last.isEmpty()) {
+                    return new long[0];
+                }
+                long suffix = Long.parseLong(last);
+                if (suffix == 0 || length == 0) {
+                    return null;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = length - 1;
+                if (!last.isEmpty()) {
+                    long requestedEnd = Long.parseLong(last);
+                    if (requestedEnd < start) {
+                        return new long[0];
+                    }
+                    end = Math.min(requestedEnd, end);
+                }
+            }
+            if (start >= length) {
+                return null;
+            }
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    // Las notas se guardan con extensión .wav, pero las del cliente web son WebM: se mira la firma.
+    private static ByteBuffer readMagic(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        channel.read(magic, 0);
+        magic.flip();
+        return magic;
+    }
+
+    private static String contentType(ByteBuffer data) {
+        if (data.remaining() >= 4) {
+            int signature = data.getInt(data.position());
+            if (signature == 0x52494646) { // "RIFF"
+                return "audio/wav";
+            }
+            if (signature == 0x1A45DFA3) { // EBML
+                return "audio/webm";
+            }
+        }
+        return "application/octet-stream";
+    }
+
+    private static String formatDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,410 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Procesa en segundo plano las notas que entran en AudioBlobStore: las pasa al
+ * formato común de las notas (WAV µ-law, 16 kHz, mono: el que ya graba el cliente
+ * de consola) y calcula su duración y una forma de onda de WAVEFORM_POINTS niveles.
+ * El resultado se guarda en audio_blobs (ver DatabaseService.saveAudioInfo).
+ *
+ * El mensaje se entrega sin esperar: hasta que termina la conversión se sirve el
+ * original. Si el archivo convertido es más pequeño se guarda como un blob aparte,
+ * con su propio SHA-256 (AudioBlobStore.putVariant), y queda como variante de la
+ * nota en NoteInfo; el original no se toca nunca. Las notas WebM del navegador ya vienen en Opus, más compacto que µ-law y
+ * sin decodificador en el JDK: se dejan como están y sólo se mide su duración.
+ *
+ * Hay tantos hilos como núcleos y una cola acotada; lo que no cabe (o se perdió en
+ * un reinicio) lo recoge la pasada periódica sobre las filas sin processed_at.
+ */
+public class AudioTranscoder {
+    public static final int WAVEFORM_POINTS = 64;
+    private static final float SAMPLE_RATE = 16000f;
+    private static final AudioFormat PCM_FORMAT = new AudioFormat(SAMPLE_RATE, 16, 1, true, false);
+    private static final AudioFormat NOTE_FORMAT = new AudioFormat(AudioFormat.Encoding.ULAW, SAMPLE_RATE, 8, 1, 1,
+            SAMPLE_RATE, false);
+    private static final int THREADS = ServerConfig.getInt("chat.audio.transcodeThreads",
+            Runtime.getRuntime().availableProcessors());
+    private static final int QUEUE_SIZE = ServerConfig.getInt("chat.audio.transcodeQueue", 256);
+    private static final long SWEEP_MINUTES = 5;
+    private static final int METRICS_EVERY_NOTES = 100;
+
+    private final AudioBlobStore store;
+    private final DatabaseService db;
+    private final ThreadPoolExecutor workers;
+    // Ids en cola o en proceso, para que la pasada periódica no los repita.
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService sweeper;
+
+    private final LongAdder converted = new LongAdder();
+    private final LongAdder unchanged = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    public AudioTranscoder(AudioBlobStore store, DatabaseService db) {
+        this.store = store;
+        this.db = db;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE), runnable -> {
+                    Thread t = new Thread(runnable, "audio-transcode-" + threadNumber.incrementAndGet());
+                    t.setDaemon(true);
+                    // Las llamadas y el chat van primero.
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                });
+    }
+
+    /** Arranca la pasada periódica que encola las notas sin procesar (incluidas las de antes de reiniciar). */
+    public void start() {
+        if (sweeper != null) {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread t = new Thread(runnable, "audio-transcode-sweep");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, 0, SWEEP_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /** Encola la nota; no bloquea. Devuelve false si la cola está llena (la recogerá la pasada). */
+    public boolean submit(String id) {
+        if (!pending.add(id)) {
+            return true;
+        }
+        try {
+            workers.execute(() -> process(id));
+        } catch (RejectedExecutionException e) {
+            pending.remove(id);
+            rejected.increment();
+            return false;
+        }
+        maxQueueDepth.accumulateAndGet(workers.getQueue().size(), Math::max);
+        return true;
+    }
+
+    public int getQueueDepth() {
+        return workers.getQueue().size();
+    }
+
+    public String describeMetrics() {
+        long done = converted.sum() + unchanged.sum();
+        return "cola " + getQueueDepth() + "/" + QUEUE_SIZE + " (máx. " + maxQueueDepth.get() + "), "
+                + workers.getActiveCount() + "/" + THREADS + " hilos activos, " + converted.sum() + " convertidas, "
+                + unchanged.sum() + " sin cambios, " + failed.sum() + " fallidas, " + rejected.sum()
+                + " rechazadas, " + bytesSaved.sum() / 1024 + " KB ahorrados, "
+                + (done == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(busyNanos.sum() / done)) + " ms por nota";
+    }
+
+    private void sweep() {
+        int room = QUEUE_SIZE - getQueueDepth();
+        if (room <= 0) {
+            return;
+        }
+        List<String> ids = db.findUnprocessedAudioBlobs(room);
+        for (String id : ids) {
+            if (!submit(id)) {
+                break;
+            }
+        }
+    }
+
+    private void process(String id) {
+        long start = System.nanoTime();
+        try {
+            File file = store.find(id);
+            if (file == null) {
+                return; // La borró el recolector mientras esperaba en la cola.
+            }
+            NoteInfo info = id.endsWith(".webm") ? probeWebm(file.toPath()) : transcodeWav(id, file.toPath());
+            if (info != null) {
+                db.saveAudioInfo(id, info);
+                store.putInfo(id, info);
+            }
+        } catch (IOException | RuntimeException e) {
+            failed.increment();
+            System.err.println("No se pudo procesar la nota " + id + ": " + e.getMessage());
+            // Se marca como procesada para que la pasada no la repita; se sigue sirviendo el original.
+            db.saveAudioInfo(id, new NoteInfo(extensionOf(id), -1, null));
+        } finally {
+            pending.remove(id);
+            busyNanos.add(System.nanoTime() - start);
+            long processed = converted.sum() + unchanged.sum() + failed.sum();
+            if (processed > 0 && processed % METRICS_EVERY_NOTES == 0) {
+                System.out.println("Transcodificación de audio: " + describeMetrics());
+            }
+        }
+    }
+
+    // WAV (PCM o µ-law, cualquier frecuencia y canales) -> WAV µ-law 16 kHz mono, si ocupa menos.
+    private NoteInfo transcodeWav(String id, Path file) throws IOException {
+        short[] samples;
+        String originalFormat;
+        try (AudioInputStream in = AudioSystem.getAudioInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            originalFormat = formatName(in.getFormat());
+            samples = toMono16k(in);
+        } catch (UnsupportedAudioFileException | IllegalArgumentException e) {
+            // Formato que el JDK no sabe leer: se sirve tal cual, sin duración ni forma de onda.
+            unchanged.increment();
+            return new NoteInfo(extensionOf(id), -1, null);
+        }
+        int durationMs = (int) (samples.length * 1000L / (long) SAMPLE_RATE);
+        String waveform = waveform(samples);
+
+        Path temp = store.newTempFile();
+        try {
+            byte[] pcm = new byte[samples.length * 2];
+            ByteBuffer.wrap(pcm).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().put(samples);
+            try (AudioInputStream pcmStream = new AudioInputStream(new ByteArrayInputStream(pcm), PCM_FORMAT,
+                    samples.length);
+                    AudioInputStream ulaw = AudioSystem.getAudioInputStream(NOTE_FORMAT, pcmStream)) {
+                AudioSystem.write(ulaw, AudioFileFormat.Type.WAVE, temp.toFile());
+            }
+            long before = Files.size(file);
+            long after = Files.size(temp);
+            if (after < before) {
+                converted.increment();
+                bytesSaved.add(before - after);
+                String variantId = store.putVariant(temp);
+                // La variante también queda procesada, para que la pasada periódica no la convierta otra vez.
+                NoteInfo variantInfo = new NoteInfo(formatName(NOTE_FORMAT), durationMs, waveform);
+                db.saveAudioInfo(variantId, variantInfo);
+                store.putInfo(variantId, variantInfo);
+                return new NoteInfo(originalFormat, durationMs, waveform, variantId);
+            }
+            unchanged.increment();
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        // La conversión no ahorra nada: se sirve sólo el original.
+        return new NoteInfo(originalFormat, durationMs, waveform);
+    }
+
+    // Nombre corto del formato que queda en audio_blobs.format: wav-ulaw, wav-alaw, wav-pcm...
+    private static String formatName(AudioFormat format) {
+        AudioFormat.Encoding encoding = format.getEncoding();
+        if (AudioFormat.Encoding.ULAW.equals(encoding)) {
+            return "wav-ulaw";
+        }
+        if (AudioFormat.Encoding.ALAW.equals(encoding)) {
+            return "wav-alaw";
+        }
+        if (AudioFormat.Encoding.PCM_SIGNED.equals(encoding) || AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding)) {
+            return "wav-pcm";
+        }
+        return "wav";
+    }
+
+    // Mezcla los canales y pasa a 16 kHz con interpolación lineal (suficiente para voz).
+    private static short[] toMono16k(AudioInputStream in) throws IOException {
+        AudioFormat source = in.getFormat();
+        int channels = source.getChannels();
+        AudioFormat pcmFormat = new AudioFormat(source.getSampleRate(), 16, channels, true, false);
+        byte[] bytes;
+        try (AudioInputStream pcm = AudioFormat.Encoding.PCM_SIGNED.equals(source.getEncoding())
+                && source.getSampleSizeInBits() == 16 && !source.isBigEndian()
+                        ? in
+                        : AudioSystem.getAudioInputStream(pcmFormat, in)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            pcm.transferTo(out);
+            bytes = out.toByteArray();
+        }
+        ByteBuffer data = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int frames = bytes.length / (2 * channels);
+        float[] mono = new float[frames];
+        for (int f = 0; f < frames; f++) {
+            int sum = 0;
+            for (int c = 0; c < channels; c++) {
+                sum += data.getShort((f * channels + c) * 2);
+            }
+            mono[f] = (float) sum / channels;
+        }
+        double step = source.getSampleRate() / SAMPLE_RATE;
+        int length = (int) (frames / step);
+        short[] samples = new short[length];
+        for (int i = 0; i < length; i++) {
+            double position = i * step;
+            int index = (int) position;
+            double fraction = position - index;
+            float next = index + 1 < frames ? mono[index + 1] : mono[index];
+            samples[i] = (short) Math.round(mono[index] + (next - mono[index]) * fraction);
+        }
+        return samples;
+    }
+
+    // Pico de cada tramo escalado a 0-255, en hexadecimal (dos caracteres por punto).
+    static String waveform(short[] samples) {
+        StringBuilder hex = new StringBuilder(WAVEFORM_POINTS * 2);
+        for (int p = 0; p < WAVEFORM_POINTS; p++) {
+            int from = (int) ((long) samples.length * p / WAVEFORM_POINTS);
+            int to = (int) ((long) samples.length * (p + 1) / WAVEFORM_POINTS);
+            int peak = 0;
+            for (int i = from; i < to; i++) {
+                peak = Math.max(peak, Math.abs(samples[i]));
+            }
+            int level = Math.min(255, peak * 255 / 32767);
+            hex.append(Character.forDigit(level >> 4, 16)).append(Character.forDigit(level & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Duración de un WebM de MediaRecorder, que no suele traer el campo Duration: se
+     * recorren los Cluster y se toma el mayor instante de sus SimpleBlock. Segment y
+     * Cluster suelen tener tamaño desconocido, así que se entra en ellos sin saltarlos.
+     */
+    private NoteInfo probeWebm(Path file) throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            data = ByteBuffer.allocate((int) channel.size());
+            while (data.hasRemaining() && channel.read(data) >= 0) {
+                // lee el archivo completo
+            }
+            data.flip();
+        }
+        long timecodeScale = 1_000_000; // ns por unidad, el valor por defecto de Matroska
+        double declaredDuration = -1;
+        long clusterTimecode = 0;
+        long lastTimecode = -1;
+        while (data.remaining() >= 2) {
+            long elementId = readId(data);
+            long size = readSize(data);
+            if (elementId < 0 || size == -2) {
+                break;
+            }
+            int end = size < 0 || size > data.remaining() ? data.limit() : data.position() + (int) size;
+            if (elementId == 0x18538067 || elementId == 0x1F43B675 || elementId == 0x1549A966) {
+                continue; // Segment, Cluster e Info: se entra a leer sus hijos.
+            }
+            if (elementId == 0x2AD7B1) { // TimecodeScale
+                timecodeScale = readUnsigned(data, end);
+            } else if (elementId == 0x4489) { // Duration (float, en unidades de TimecodeScale)
+                declaredDuration = end - data.position() == 8 ? data.getDouble(data.position())
+                        : data.getFloat(data.position());
+            } else if (elementId == 0xE7) { // Timecode del Cluster
+                clusterTimecode = readUnsigned(data, end);
+            } else if (elementId == 0xA3 && end - data.position() >= 4) { // SimpleBlock
+                ByteBuffer block = data.duplicate();
+                block.limit(end);
+                readSize(block); // número de pista
+                if (block.remaining() >= 2) {
+                    lastTimecode = Math.max(lastTimecode, clusterTimecode + block.getShort());
+                }
+            }
+            data.position(end);
+        }
+        unchanged.increment();
+        double units = declaredDuration > 0 ? declaredDuration : lastTimecode;
+        int durationMs = units < 0 ? -1 : (int) (units * timecodeScale / 1_000_000);
+        return new NoteInfo("webm-opus", durationMs, null);
+    }
+
+    // Identificador EBML: se conservan los bits de longitud, como en la especificación.
+    private static long readId(ByteBuffer data) {
+        int first = data.get() & 0xFF;
+        int length = Integer.numberOfLeadingZeros(first) - 23;
+        if (length < 1 || length > 4 || data.remaining() < length - 1) {
+            return -1;
+        }
+        long id = first;
+        for (int i = 1; i < length; i++) {
+            id = (id << 8) | (data.get() & 0xFF);
+        }
+        return id;
+    }
+
+    // Tamaño EBML; -1 si es "desconocido" (todos los bits a 1), -2 si está mal formado.
+    private static long readSize(ByteBuffer data) {
+        if (!data.hasRemaining()) {
+            return -2;
+        }
+        int first = data.get() & 0xFF;
+        int length = Integer.numberOfLeadingZeros(first) - 23;
+        if (length < 1 || length > 8 || data.remaining() < length - 1) {
+            return -2;
+        }
+        long value = first & (0xFF >> length);
+        boolean allOnes = value == (0xFF >> length);
+        for (int i = 1; i < length; i++) {
+            int b = data.get() & 0xFF;
+            allOnes &= b == 0xFF;
+            value = (value << 8) | b;
+        }
+        return allOnes ? -1 : value;
+    }
+
+    private static long readUnsigned(ByteBuffer data, int end) {
+        long value = 0;
+        for (int i = data.position(); i < end; i++) {
+            value = (value << 8) | (data.get(i) & 0xFF);
+        }
+        return value;
+    }
+
+    private static String extensionOf(String id) {
+        return id.substring(id.lastIndexOf('.') + 1);
+    }
+
+    /** Lo que se sabe de una nota tras procesarla; durationMs es -1 y waveform null si no se pudo medir. */
+    public static final class NoteInfo {
+        final String format;
+        final int durationMs;
+        final String waveform;
+        final String variantId; // blob con la versión convertida, o null si se sirve el original
+
+        NoteInfo(String format, int durationMs, String waveform) {
+            this(format, durationMs, waveform, null);
+        }
+
+        NoteInfo(String format, int durationMs, String waveform, String variantId) {
+            this.format = format;
+            this.durationMs = durationMs;
+            this.waveform = waveform;
+            this.variantId = variantId;
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        public int getDurationMs() {
+            return durationMs;
+        }
+
+        public String getWaveform() {
+            return waveform;
+        }
+
+        public String getVariantId() {
+            return variantId;
+        }
+    }
+}
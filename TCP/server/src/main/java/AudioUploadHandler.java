@@ -0,0 +1,276 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Subida de notas de voz por partes, fuera del flujo del chat. El cliente la anuncia
+ * por TCP (upload_start: tamaño y SHA-256) y recibe un id; después envía los trozos
+ * con PUT /upload/&lt;id&gt; y la cabecera Upload-Offset, que debe coincidir con lo ya
+ * recibido. HEAD /upload/&lt;id&gt; devuelve ese desplazamiento, así que tras un corte
+ * el cliente sigue donde quedó, aunque haya tenido que reconectar.
+ *
+ * Cada trozo se escribe con un FileChannel en el archivo definitivo (con sufijo
+ * .part hasta que el SHA-256 coincide) y el resumen se calcula a medida que llegan.
+ */
+public class AudioUploadHandler implements HttpHandler {
+    static final int CHUNK_SIZE = ServerConfig.getInt("chat.upload.chunkSize", 256 * 1024);
+    private static final long MAX_FILE_SIZE = ServerConfig.getLong("chat.upload.maxBytes", 16L * 1024 * 1024);
+    // Una subida sin actividad durante este tiempo se descarta con su archivo parcial.
+    private static final long EXPIRE_NANOS = TimeUnit.MINUTES.toNanos(ServerConfig.getInt("chat.upload.expireMinutes", 30));
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final ConcurrentHashMap<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final Consumer<Upload> onComplete;
+
+    // onComplete se llama en el hilo HTTP cuando el archivo ya está en su sitio y verificado.
+    public AudioUploadHandler(Consumer<Upload> onComplete) {
+        this.onComplete = onComplete;
+    }
+
+    /** Registra una subida nueva hacia target; null si el tamaño o el SHA-256 no son válidos. */
+    public Upload start(String username, String recipient, Path target, long size, String sha256) throws IOException {
+        expireIdle();
+        if (size <= 0 || size > MAX_FILE_SIZE || sha256 == null || !sha256.matches("[0-9a-fA-F]{64}")) {
+            return null;
+        }
+        byte[] idBytes = new byte[16];
+        RANDOM.nextBytes(idBytes);
+        Upload upload = new Upload(toHex(idBytes), username, recipient, target, size, sha256);
+        uploads.put(upload.id, upload);
+        return upload;
+    }
+
+    // Subida pendiente del usuario, para retomarla tras reconectar; null si no existe o expiró.
+    public Upload find(String uploadId, String username) {
+        Upload upload = uploadId != null ? uploads.get(uploadId) : null;
+        return upload != null && upload.username.equals(username) ? upload : null;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            Headers response = exchange.getResponseHeaders();
+            response.add("Access-Control-Allow-Origin", "*");
+            response.add("Access-Control-Allow-Methods", "PUT, HEAD, OPTIONS");
+            response.add("Access-Control-Allow-Headers", "Content-Type,Upload-Offset");
+            response.add("Access-Control-Expose-Headers", "Upload-Offset,Upload-Length");
+
+            String method = exchange.getRequestMethod();
+            if ("OPTIONS".equalsIgnoreCase(method)) {
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            Upload upload = uploads.get(path.substring(path.lastIndexOf('/') + 1));
+            if (upload == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if ("HEAD".equalsIgnoreCase(method)) {
+                addOffsetHeaders(response, upload);
+                exchange.sendResponseHeaders(204, -1);
+            } else if ("PUT".equalsIgnoreCase(method)) {
+                receiveChunk(exchange, upload);
+            } else {
+                response.add("Allow", "PUT, HEAD, OPTIONS");
+                exchange.sendResponseHeaders(405, -1);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void receiveChunk(HttpExchange exchange, Upload upload) throws IOException {
+        Headers request = exchange.getRequestHeaders();
+        Headers response = exchange.getResponseHeaders();
+        long offset;
+        long length;
+        try {
+            offset = Long.parseLong(request.getFirst("Upload-Offset"));
+            length = Long.parseLong(request.getFirst("Content-Length"));
+        } catch (NumberFormatException e) {
+            exchange.sendResponseHeaders(400, -1);
+            return;
+        }
+        if (length > CHUNK_SIZE) {
+            exchange.sendResponseHeaders(413, -1);
+            return;
+        }
+        // Dos PUT a la vez de la misma subida: el segundo se rechaza y el cliente pregunta el desplazamiento.
+        if (!upload.lock.tryLock()) {
+            addOffsetHeaders(response, upload);
+            exchange.sendResponseHeaders(409, -1);
+            return;
+        }
+        try {
+            if (uploads.get(upload.id) != upload || offset != upload.offset || offset + length > upload.size) {
+                addOffsetHeaders(response, upload);
+                exchange.sendResponseHeaders(409, -1);
+                return;
+            }
+            // Si el cliente se corta a mitad del trozo se conserva lo escrito y el siguiente PUT sigue desde ahí.
+            upload.write(exchange.getRequestBody(), length);
+            if (upload.offset < upload.size) {
+                addOffsetHeaders(response, upload);
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+            uploads.remove(upload.id, upload);
+            if (!upload.finish()) {
+                System.err.println("Subida de audio de " + upload.username + " descartada: el SHA-256 no coincide.");
+                exchange.sendResponseHeaders(422, -1);
+                return;
+            }
+            addOffsetHeaders(response, upload);
+            exchange.sendResponseHeaders(204, -1);
+            onComplete.accept(upload);
+        } finally {
+            upload.lock.unlock();
+        }
+    }
+
+    private void expireIdle() {
+        long now = System.nanoTime();
+        for (Upload upload : uploads.values()) {
+            if (now - upload.lastActivity > EXPIRE_NANOS && upload.lock.tryLock()) {
+                try {
+                    if (uploads.remove(upload.id, upload)) {
+                        upload.discard();
+                    }
+                } finally {
+                    upload.lock.unlock();
+                }
+            }
+        }
+    }
+
+    private static void addOffsetHeaders(Headers response, Upload upload) {
+        response.set("Upload-Offset", Long.toString(upload.offset));
+        response.set("Upload-Length", Long.toString(upload.size));
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /** Una subida en curso: destino, lo recibido hasta ahora y el resumen parcial. */
+    public static final class Upload {
+        final String id;
+        final String username;
+        final String recipient;
+        final Path target;
+        final long size;
+        final String sha256;
+        final ReentrantLock lock = new ReentrantLock();
+
+        private final Path partial;
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        // Bytes escritos; se cambia con el candado tomado.
+        volatile long offset;
+        volatile long lastActivity = System.nanoTime();
+
+        Upload(String id, String username, String recipient, Path target, long size, String sha256)
+                throws IOException {
+            this.id = id;
+            this.username = username;
+            this.recipient = recipient;
+            this.target = target;
+            this.size = size;
+            this.sha256 = sha256;
+            this.partial = target.resolveSibling(target.getFileName() + ".part");
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            this.channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getRecipient() {
+            return recipient;
+        }
+
+        public Path getTarget() {
+            return target;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        // Llamar con el candado tomado. offset avanza con cada bloque escrito, aunque el cuerpo se corte.
+        void write(InputStream body, long length) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(64 * 1024, Math.max(1, length))];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = body.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("Trozo incompleto: faltan " + remaining + " bytes");
+                }
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                long position = offset;
+                while (chunk.hasRemaining()) {
+                    position += channel.write(chunk, position);
+                }
+                digest.update(buffer, 0, read);
+                offset = position;
+                remaining -= read;
+                lastActivity = System.nanoTime();
+            }
+        }
+
+        // Llamar con el candado tomado. Cierra el archivo y lo deja en target si el SHA-256 coincide.
+        boolean finish() throws IOException {
+            channel.close();
+            if (!toHex(digest.digest()).equalsIgnoreCase(sha256)) {
+                Files.deleteIfExists(partial);
+                return false;
+            }
+            Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        }
+
+        void discard() {
+            try {
+                channel.close();
+                Files.deleteIfExists(partial);
+            } catch (IOException e) {
+                System.err.println("No se pudo borrar la subida expirada " + partial + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -1,60 +1,260 @@
 import java.net.SocketAddress;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Direcciones UDP y rutas de audio de las llamadas. El estado de cada llamada
+ * vive en CallSessionRegistry, compartido con la vía ICE (VoiceChatI); las
+ * llamadas de grupo, en GroupCallMixer.
+ */
 public class CallManager {
+    private final CallSessionRegistry sessions = new CallSessionRegistry();
+    private final GroupCallMixer groupCalls = new GroupCallMixer();
     private final ConcurrentHashMap<String, SocketAddress> userUdpAddresses = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, String> activeCalls = new ConcurrentHashMap<>();
+    // Índices inversos para el reenvío de audio: dirección -> usuario y dirección -> ruta al otro extremo.
+    private final ConcurrentHashMap<SocketAddress, String> usersByUdpAddress = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<SocketAddress, MediaRoute> peerAddresses = new ConcurrentHashMap<>();
+    // Las modificaciones tocan varios mapas a la vez; las lecturas por paquete no toman el candado.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public CallSessionRegistry getSessions() {
+        return sessions;
+    }
+
+    public GroupCallMixer getGroupCalls() {
+        return groupCalls;
+    }
 
     public void registerUdpAddress(String username, SocketAddress udpAddress) {
-        userUdpAddresses.put(username, udpAddress);
+        lock.lock();
+        try {
+            SocketAddress previous = userUdpAddresses.put(username, udpAddress);
+            if (previous != null && !previous.equals(udpAddress)) {
+                usersByUdpAddress.remove(previous, username);
+                peerAddresses.remove(previous);
+            }
+            // La dirección pudo pertenecer a otro usuario (p. ej. un NAT que la reutiliza).
+            String previousOwner = usersByUdpAddress.put(udpAddress, username);
+            if (previousOwner != null && !previousOwner.equals(username)) {
+                userUdpAddresses.remove(previousOwner, udpAddress);
+                peerAddresses.remove(udpAddress);
+                CallSession ownerSession = sessions.getActive(previousOwner);
+                if (ownerSession != null) {
+                    unlinkPeer(ownerSession.partnerOf(previousOwner));
+                }
+            }
+            CallSession session = sessions.getActive(username);
+            if (session != null) {
+                linkPeers(session);
+            }
+            groupCalls.updateAddress(username, udpAddress);
+        } finally {
+            lock.unlock();
+        }
         System.out.println("Dirección UDP registrada para " + username + ": " + udpAddress);
     }
 
-    public boolean startCall(String userA, String userB) {
-        if (userUdpAddresses.containsKey(userA) && userUdpAddresses.containsKey(userB)) {
-            activeCalls.put(userA, userB);
-            activeCalls.put(userB, userA);
-            System.out.println("Llamada iniciada entre " + userA + " y " + userB);
+    /** Registra la llamada saliente (RINGING); false si alguno de los dos ya está en otra. */
+    public boolean ringCall(String caller, String callee, List<String> codecs) {
+        if (groupCalls.isInGroupCall(caller) || groupCalls.isInGroupCall(callee)) {
+            return false;
+        }
+        return sessions.ring(caller, callee, codecs) != null;
+    }
+
+    /**
+     * Une al usuario a la llamada del grupo. null si no registró su dirección UDP,
+     * está en una llamada 1:1 o la llamada del grupo está llena.
+     */
+    public GroupCallMixer.Conference joinGroupCall(String group, String username, GroupCallMixer.Mode mode,
+            String codec) {
+        SocketAddress address = userUdpAddresses.get(username);
+        if (address == null || sessions.get(username) != null) {
+            return null;
+        }
+        return groupCalls.join(group, username, address, mode, codec);
+    }
+
+    public GroupCallMixer.Conference leaveGroupCall(String username) {
+        return groupCalls.leave(username);
+    }
+
+    // accepter contesta la llamada de caller con los códecs que soporta.
+    // Devuelve la sesión ya activa (id y códec negociado) o null si no había llamada que aceptar.
+    public CallSession startCall(String accepter, String caller, List<String> codecs) {
+        lock.lock();
+        try {
+            CallSession session = sessions.accept(accepter, caller, codecs);
+            if (session == null) {
+                return null;
+            }
+            linkPeers(session);
+            System.out.println("Llamada iniciada entre " + caller + " y " + accepter + " (" + session.getCodec() + ")");
+            return session;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Sólo si rejecter tiene una llamada entrante de caller que aún suena.
+    public boolean rejectCall(String rejecter, String caller) {
+        lock.lock();
+        try {
+            CallSession session = sessions.get(rejecter);
+            if (session == null || session.getState() != CallSession.State.RINGING
+                    || !session.getCaller().equals(caller)) {
+                return false;
+            }
+            sessions.end(rejecter);
             return true;
+        } finally {
+            lock.unlock();
         }
-        return false;
     }
 
-    public void endCall(String username) {
+    /** Termina o cancela la llamada del usuario; devuelve la sesión terminada o null si no tenía. */
+    public CallSession endCall(String username) {
         if (username == null)
-            return;
-        String partner = activeCalls.remove(username);
-        if (partner != null) {
-            activeCalls.remove(partner);
-            System.out.println("Llamada finalizada para " + username + " y " + partner);
+            return null;
+        lock.lock();
+        try {
+            CallSession ended = sessions.end(username);
+            if (ended == null) {
+                return null;
+            }
+            String partner = ended.partnerOf(username);
+            MediaRoute route = unlinkPeer(username);
+            MediaRoute partnerRoute = unlinkPeer(partner);
+            System.out.println("Llamada finalizada para " + username + " y " + partner + " (" + username + ": "
+                    + describe(route) + "; " + partner + ": " + describe(partnerRoute) + ")");
+            return ended;
+        } finally {
+            lock.unlock();
         }
     }
 
+    // Una sola búsqueda por paquete de audio; la ruta ya trae su sesión.
+    public MediaRoute getRoute(SocketAddress callerAddress) {
+        return peerAddresses.get(callerAddress);
+    }
+
     public SocketAddress getCallPartnerAddress(SocketAddress callerAddress) {
-        String callerUsername = findUsernameByUdpAddress(callerAddress);
-        if (callerUsername != null) {
-            String partnerUsername = activeCalls.get(callerUsername);
-            if (partnerUsername != null) {
-                return userUdpAddresses.get(partnerUsername);
+        MediaRoute route = peerAddresses.get(callerAddress);
+        return route != null ? route.peer : null;
+    }
+
+    public SocketAddress getUdpAddress(String username) {
+        return userUdpAddresses.get(username);
+    }
+
+    public CallSession getActiveSession(String username) {
+        return sessions.getActive(username);
+    }
+
+    public Integer getCallSessionId(String username) {
+        CallSession session = sessions.getActive(username);
+        return session != null ? session.getId() : null;
+    }
+
+    public String getCallCodec(String username) {
+        CallSession session = sessions.getActive(username);
+        return session != null ? session.getCodec() : CallSessionRegistry.DEFAULT_CODEC;
+    }
+
+    // El otro participante, tanto si la llamada está activa como si aún suena.
+    public String getCallPartner(String username) {
+        CallSession session = sessions.get(username);
+        return session != null ? session.partnerOf(username) : null;
+    }
+
+    public void userDisconnected(String username) {
+        lock.lock();
+        try {
+            endCall(username);
+            groupCalls.leave(username);
+            SocketAddress address = userUdpAddresses.remove(username);
+            if (address != null) {
+                usersByUdpAddress.remove(address, username);
+                peerAddresses.remove(address);
             }
+        } finally {
+            lock.unlock();
         }
-        return null;
     }
 
-    public String getCallPartner(String username) {
-        return activeCalls.get(username);
+    // Llamar con el candado tomado.
+    private void linkPeers(CallSession session) {
+        SocketAddress callerAddress = userUdpAddresses.get(session.getCaller());
+        SocketAddress calleeAddress = userUdpAddresses.get(session.getCallee());
+        if (callerAddress != null && calleeAddress != null) {
+            peerAddresses.put(callerAddress, new MediaRoute(calleeAddress, session));
+            peerAddresses.put(calleeAddress, new MediaRoute(callerAddress, session));
+        }
     }
 
-    private String findUsernameByUdpAddress(SocketAddress address) {
-        return userUdpAddresses.entrySet().stream()
-                .filter(entry -> entry.getValue().equals(address))
-                .map(java.util.Map.Entry::getKey)
-                .findFirst()
-                .orElse(null);
+    // Llamar con el candado tomado.
+    private MediaRoute unlinkPeer(String username) {
+        SocketAddress address = userUdpAddresses.get(username);
+        return address != null ? peerAddresses.remove(address) : null;
     }
 
-    public void userDisconnected(String username) {
-        endCall(username);
-        userUdpAddresses.remove(username);
+    private static String describe(MediaRoute route) {
+        if (route == null) {
+            return "sin audio";
+        }
+        return route.received.get() + " paquetes, " + route.lost.get() + " perdidos, " + route.reordered.get()
+                + " fuera de orden, " + route.rejected.get() + " rechazados";
+    }
+
+    /**
+     * Destino del audio que envía una dirección, con el id de sesión que deben traer
+     * sus paquetes y contadores de pérdida y desorden según el número de secuencia.
+     */
+    public static final class MediaRoute {
+        final SocketAddress peer;
+        final CallSession session;
+        final int sessionId;
+        final AtomicLong received = new AtomicLong();
+        final AtomicLong lost = new AtomicLong();
+        final AtomicLong reordered = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        private volatile int lastSequence = -1;
+
+        MediaRoute(SocketAddress peer, CallSession session) {
+            this.peer = peer;
+            this.session = session;
+            this.sessionId = session.getId();
+        }
+
+        public SocketAddress getPeer() {
+            return peer;
+        }
+
+        public CallSession getSession() {
+            return session;
+        }
+
+        // Valida un paquete de audio de esta ruta y actualiza los contadores. false = descartarlo.
+        public boolean accept(int packetSessionId, int sequence) {
+            if (packetSessionId != sessionId) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            received.incrementAndGet();
+            int last = lastSequence;
+            if (last >= 0) {
+                int gap = (sequence - last) & 0xFFFF;
+                if (gap == 0 || gap > 0x8000) {
+                    // Duplicado o anterior al último: se reenvía igual, el cliente decide si le sirve.
+                    reordered.incrementAndGet();
+                    return true;
+                }
+                lost.addAndGet(gap - 1);
+            }
+            lastSequence = sequence;
+            return true;
+        }
     }
 }
@@ -0,0 +1,91 @@
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Una llamada entre dos usuarios. Es inmutable: cada cambio de estado
+ * (RINGING -> ACTIVE -> ENDED) crea una instancia nueva que CallSessionRegistry
+ * publica de forma atómica, así que quien guarda una referencia ve siempre un
+ * estado coherente.
+ */
+public final class CallSession {
+
+    public enum State {
+        RINGING, ACTIVE, ENDED
+    }
+
+    private final int id;
+    private final String caller;
+    private final String callee;
+    private final State state;
+    private final List<String> offeredCodecs;
+    private final String codec;
+    private final long createdAt;
+
+    private CallSession(int id, String caller, String callee, State state, List<String> offeredCodecs, String codec,
+            long createdAt) {
+        this.id = id;
+        this.caller = caller;
+        this.callee = callee;
+        this.state = state;
+        this.offeredCodecs = offeredCodecs;
+        this.codec = codec;
+        this.createdAt = createdAt;
+    }
+
+    static CallSession ringing(int id, String caller, String callee, List<String> offeredCodecs) {
+        List<String> offered = offeredCodecs != null ? Collections.unmodifiableList(offeredCodecs)
+                : Collections.emptyList();
+        return new CallSession(id, caller, callee, State.RINGING, offered, null, System.currentTimeMillis());
+    }
+
+    CallSession activate(String negotiatedCodec) {
+        return new CallSession(id, caller, callee, State.ACTIVE, offeredCodecs, negotiatedCodec, createdAt);
+    }
+
+    CallSession end() {
+        return new CallSession(id, caller, callee, State.ENDED, offeredCodecs, codec, createdAt);
+    }
+
+    // Id de sesión que viaja en la cabecera MediaHeader de cada paquete de audio.
+    public int getId() {
+        return id;
+    }
+
+    public String getCaller() {
+        return caller;
+    }
+
+    public String getCallee() {
+        return callee;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isActive() {
+        return state == State.ACTIVE;
+    }
+
+    public List<String> getOfferedCodecs() {
+        return offeredCodecs;
+    }
+
+    // null mientras suena.
+    public String getCodec() {
+        return codec;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public String partnerOf(String username) {
+        return caller.equals(username) ? callee : caller;
+    }
+
+    @Override
+    public String toString() {
+        return caller + " -> " + callee + " [" + state + (codec != null ? ", " + codec : "") + "]";
+    }
+}
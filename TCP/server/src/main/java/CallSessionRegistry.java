@@ -0,0 +1,95 @@
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Registro único de llamadas para todos los transportes (TCP, UDP e ICE).
+ * Cada usuario apunta a su CallSession actual; como la identidad ICE es el
+ * nombre de usuario, la misma búsqueda sirve para las dos vías. Las
+ * transiciones cambian las entradas de los dos participantes bajo un candado;
+ * las lecturas no lo toman.
+ */
+public class CallSessionRegistry {
+    // Lo entienden todos los clientes, también los que no envían "codecs".
+    public static final String DEFAULT_CODEC = "pcm16";
+
+    private final ConcurrentHashMap<String, CallSession> sessionsByUser = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Nueva llamada en RINGING, o null si alguno de los dos ya está en otra. */
+    public CallSession ring(String caller, String callee, List<String> offeredCodecs) {
+        lock.lock();
+        try {
+            if (caller.equals(callee) || sessionsByUser.containsKey(caller) || sessionsByUser.containsKey(callee)) {
+                return null;
+            }
+            CallSession session = CallSession.ringing(ThreadLocalRandom.current().nextInt(), caller, callee,
+                    offeredCodecs);
+            sessionsByUser.put(caller, session);
+            sessionsByUser.put(callee, session);
+            return session;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** RINGING -> ACTIVE si accepter tiene una llamada entrante de caller; null si no. */
+    public CallSession accept(String accepter, String caller, List<String> acceptedCodecs) {
+        lock.lock();
+        try {
+            CallSession session = sessionsByUser.get(accepter);
+            if (session == null || session.getState() != CallSession.State.RINGING
+                    || !session.getCallee().equals(accepter) || !session.getCaller().equals(caller)) {
+                return null;
+            }
+            CallSession active = session.activate(negotiateCodec(session.getOfferedCodecs(), acceptedCodecs));
+            sessionsByUser.put(caller, active);
+            sessionsByUser.put(accepter, active);
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Termina (o cancela, si aún suena) la llamada del usuario; devuelve la sesión en ENDED o null. */
+    public CallSession end(String username) {
+        lock.lock();
+        try {
+            CallSession session = sessionsByUser.remove(username);
+            if (session == null) {
+                return null;
+            }
+            sessionsByUser.remove(session.partnerOf(username), session);
+            return session.end();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public CallSession get(String username) {
+        return username != null ? sessionsByUser.get(username) : null;
+    }
+
+    public CallSession getActive(String username) {
+        CallSession session = get(username);
+        return session != null && session.isActive() ? session : null;
+    }
+
+    // Una referencia guardada sigue valiendo mientras sea la que el registro tiene publicada.
+    public boolean isCurrent(CallSession session) {
+        return session != null && sessionsByUser.get(session.getCaller()) == session;
+    }
+
+    // El primero de la oferta que también acepta quien contesta; PCM si alguno no negocia.
+    static String negotiateCodec(List<String> offered, List<String> accepted) {
+        if (offered != null && accepted != null) {
+            for (String codec : offered) {
+                if (accepted.contains(codec)) {
+                    return codec;
+                }
+            }
+        }
+        return DEFAULT_CODEC;
+    }
+}
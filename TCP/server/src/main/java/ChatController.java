@@ -1,48 +1,66 @@
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
 
 public class ChatController {
 
-    private static ChatController instance;
+    private static volatile ChatController instance;
     private final ConcurrentHashMap<String, ClientHandler> onlineUsers = new ConcurrentHashMap<>();
     private final DatabaseService dbService = new DatabaseService();
     private final Gson gson = new Gson();
-    private final AtomicLong audioFileCounter = new AtomicLong(System.currentTimeMillis());
     private static final String AUDIO_STORAGE_PATH = "server_audio_files/";
+    // Preferencia del servidor para las llamadas de grupo reenviadas: primero el que menos ocupa.
+    private static final List<String> GROUP_CALL_CODECS = Arrays.asList("ima-adpcm", "pcmu", "pcm16");
     private final CallManager callManager;
+    private final AudioBlobStore audioStore = new AudioBlobStore(AUDIO_STORAGE_PATH, dbService);
+    private final AudioUploadHandler uploads = new AudioUploadHandler(this::uploadCompleted);
 
     // El constructor ahora es privado y recibe el CallManager.
     private ChatController(CallManager callManager) {
         this.callManager = callManager;
-        new File(AUDIO_STORAGE_PATH).mkdirs();
+        audioStore.startGarbageCollector();
+        audioStore.startTranscoder();
     }
 
     // El patrón Singleton se adapta para inyectar la dependencia.
-    public static synchronized ChatController getInstance(CallManager callManager) {
-        if (instance == null) {
-            instance = new ChatController(callManager);
+    // Lectura volátil sin monitor: cada ClientHandler lo llama y, con hilos
+    // virtuales, un método synchronized fijaría el hilo a su carrier.
+    public static ChatController getInstance(CallManager callManager) {
+        ChatController current = instance;
+        if (current == null) {
+            synchronized (ChatController.class) {
+                current = instance;
+                if (current == null) {
+                    current = new ChatController(callManager);
+                    instance = current;
+                }
+            }
         }
-        return instance;
+        return current;
     }
 
-    public static synchronized ChatController getInstance() {
-        if (instance == null) {
+    public static ChatController getInstance() {
+        ChatController current = instance;
+        if (current == null) {
             // Esto no debería pasar si Server.java se inicia primero.
             throw new IllegalStateException("ChatController no ha sido inicializado con un CallManager.");
         }
-        return instance;
+        return current;
     }
 
     public void userLogout(String username) {
         if (username != null) {
             onlineUsers.remove(username);
+            endCall(username); // Avisar al otro participante si había una llamada
             callManager.userDisconnected(username); // Notificar al CallManager
             broadcastMessage(createNotification(username + " se ha desconectado."));
             System.out.println(username + " se ha desconectado.");
@@ -54,7 +72,7 @@ public class ChatController {
     }
 
     // --- Lógica de Llamadas ---
-    public void requestCall(String requester, String callee) {
+    public void requestCall(String requester, String callee, List<String> codecs) {
         ClientHandler requesterHandler = onlineUsers.get(requester);
         ClientHandler calleeHandler = onlineUsers.get(callee);
 
@@ -62,10 +80,13 @@ public class ChatController {
             return;
 
         if (calleeHandler != null) {
-            JsonObject callRequest = new JsonObject();
-            callRequest.addProperty("type", "call_request");
-            callRequest.addProperty("from", requester);
-            calleeHandler.sendMessage(gson.toJson(callRequest));
+            if (!callManager.ringCall(requester, callee, codecs)) {
+                requesterHandler.sendMessage(createNotification(
+                        "No se pudo establecer la llamada con " + callee + ": hay otra llamada en curso."));
+                return;
+            }
+            calleeHandler.sendMessage(FrameEncoder.begin("call_request").field("from", requester)
+                    .field("codecs", codecs).end());
             requesterHandler.sendMessage(createNotification("Llamando a " + callee + "..."));
         } else {
             requesterHandler.sendMessage(createNotification("El usuario '" + callee + "' no está conectado."));
@@ -73,16 +94,21 @@ public class ChatController {
     }
 
     // MÉTODO MODIFICADO
-    public void acceptCall(String accepter, String requester) {
-        if (callManager.startCall(accepter, requester)) {
-            JsonObject callAccepted = new JsonObject();
-            callAccepted.addProperty("type", "call_accepted");
-
-            callAccepted.addProperty("with", requester);
-            onlineUsers.get(accepter).sendMessage(gson.toJson(callAccepted));
-
-            callAccepted.addProperty("with", accepter);
-            onlineUsers.get(requester).sendMessage(gson.toJson(callAccepted));
+    public void acceptCall(String accepter, String requester, List<String> codecs) {
+        CallSession session = callManager.startCall(accepter, requester, codecs);
+        if (session != null) {
+            // Id y códec salen de la misma sesión: si la llamada termina entretanto no hay que volver a buscarla.
+            // Los clientes ponen el id en la cabecera de cada paquete de audio; el relay descarta los que no coinciden.
+            ClientHandler accepterHandler = onlineUsers.get(accepter);
+            if (accepterHandler != null) {
+                accepterHandler.sendMessage(FrameEncoder.begin("call_accepted").field("session_id", session.getId())
+                        .field("codec", session.getCodec()).field("with", requester).end());
+            }
+            ClientHandler requesterHandler = onlineUsers.get(requester);
+            if (requesterHandler != null) {
+                requesterHandler.sendMessage(FrameEncoder.begin("call_accepted").field("session_id", session.getId())
+                        .field("codec", session.getCodec()).field("with", accepter).end());
+            }
         } else {
             // BLOQUE AÑADIDO: Notificar a ambos usuarios que la llamada no se pudo
             // establecer
@@ -100,62 +126,119 @@ public class ChatController {
     }
 
     public void endCall(String username) {
-        String partner = callManager.getCallPartner(username);
-        callManager.endCall(username);
-
-        JsonObject callEnded = new JsonObject();
-        callEnded.addProperty("type", "call_ended");
+        CallSession ended = callManager.endCall(username);
+        if (ended == null) {
+            leaveGroupCall(username);
+            return;
+        }
+        String partner = ended.partnerOf(username);
 
         ClientHandler userHandler = onlineUsers.get(username);
         if (userHandler != null)
-            userHandler.sendMessage(gson.toJson(callEnded));
+            userHandler.sendFrame(FrameEncoder.CALL_ENDED);
+
+        ClientHandler partnerHandler = onlineUsers.get(partner);
+        if (partnerHandler != null)
+            partnerHandler.sendFrame(FrameEncoder.CALL_ENDED);
+    }
 
-        if (partner != null) {
-            ClientHandler partnerHandler = onlineUsers.get(partner);
-            if (partnerHandler != null)
-                partnerHandler.sendMessage(gson.toJson(callEnded));
+    // Llamadas de grupo: mezcladas en el servidor (PCM16) o, en grupos grandes, reenviando
+    // sólo a quienes hablan; en ese caso el códec se negocia con la oferta de quien la abre.
+    public void joinGroupCall(String username, String groupName, List<String> codecs) {
+        ClientHandler handler = onlineUsers.get(username);
+        if (handler == null)
+            return;
+        if (!dbService.isUserInGroup(username, groupName)) {
+            handler.sendMessage(createNotification(
+                    "No se pudo establecer la llamada del grupo " + groupName + ": no eres miembro."));
+            return;
+        }
+        GroupCallMixer.Mode mode = GroupCallMixer.modeForGroupSize(dbService.getGroupMembersView(groupName).size());
+        String codec = CallSessionRegistry.negotiateCodec(GROUP_CALL_CODECS, codecs);
+        GroupCallMixer.Conference conference = callManager.joinGroupCall(groupName, username, mode, codec);
+        if (conference == null) {
+            handler.sendMessage(createNotification("No se pudo establecer la llamada del grupo " + groupName
+                    + ": ya estás en otra llamada, la llamada está llena o falta tu registro UDP."));
+            return;
+        }
+        handler.sendMessage(FrameEncoder.begin("group_call_joined")
+                .field("group", groupName)
+                .field("session_id", conference.getSessionId())
+                .field("codec", conference.getCodec())
+                .field("mode", conference.getMode() == GroupCallMixer.Mode.FORWARD ? "forward" : "mix")
+                .field("participants", conference.getParticipantNames())
+                .end());
+        broadcastGroupCallUpdate(conference, username, "joined");
+    }
+
+    // Devuelve true si el usuario estaba en una llamada de grupo.
+    public boolean leaveGroupCall(String username) {
+        GroupCallMixer.Conference conference = callManager.leaveGroupCall(username);
+        if (conference == null)
+            return false;
+        ClientHandler handler = onlineUsers.get(username);
+        if (handler != null) {
+            handler.sendFrame(FrameEncoder.CALL_ENDED);
+        }
+        broadcastGroupCallUpdate(conference, username, "left");
+        return true;
+    }
+
+    // A todos los miembros conectados del grupo, estén o no en la llamada.
+    private void broadcastGroupCallUpdate(GroupCallMixer.Conference conference, String username, String event) {
+        Collection<String> members = dbService.getGroupMembersView(conference.getGroup());
+        ByteBuffer frame = Frames.encode(FrameEncoder.begin("group_call_update")
+                .field("group", conference.getGroup())
+                .field("user", username)
+                .field("event", event)
+                .field("participants", conference.getParticipantNames())
+                .end());
+        for (String member : members) {
+            ClientHandler memberHandler = onlineUsers.get(member);
+            if (memberHandler != null && !member.equals(username)) {
+                memberHandler.sendFrame(frame);
+            }
         }
     }
 
-    // Recopila y envía un resumen del historial (público, privado y de grupos)
-    public void sendInitialHistoryToUser(ClientHandler handler) {
-        String username = handler.getUsername();
+    // Al iniciar sesión sólo se envía un resumen por conversación (último mensaje, no leídos
+    // y marca de agua); el historial se pide por páginas con get_chat_history.
+    public void sendSyncSummary(ClientHandler handler) {
+        JsonObject sync = new JsonObject();
+        sync.addProperty("type", "sync_summary");
+        JsonArray conversations = new JsonArray();
+        dbService.getSyncSummaries(handler.getUsername()).forEach(conversations::add);
+        sync.add("conversations", conversations);
+        handler.sendMessage(gson.toJson(sync));
+    }
 
-        // 1. Historial Público - Enviar todos los mensajes
-        handler.sendMessage(createNotification("--- Mensajes del chat general ---"));
-        dbService.getPublicMessages(Integer.MAX_VALUE).forEach(handler::sendMessage);
+    public void sendWelcome(ClientHandler handler) {
+        handler.sendFrame(FrameEncoder.WELCOME);
+    }
 
-        // 2. Historial Privado - Enviar todos los mensajes
-        handler.sendMessage(createNotification("--- Mensajes privados ---"));
-        List<String> privatePartners = dbService.getPrivateChatPartners(username);
-        if (privatePartners.isEmpty()) {
-            handler.sendMessage(createNotification("No tienes mensajes privados recientes."));
-        } else {
-            privatePartners.forEach(partner -> {
-                handler.sendMessage(createNotification("--- Conversación con " + partner + " ---"));
-                // Enviar todos los mensajes de cada conversación
-                dbService.getPrivateMessages(username, partner, Integer.MAX_VALUE).forEach(handler::sendMessage);
-            });
+    // readUpTo: sent_at del último mensaje visto ("yyyy-MM-dd HH:mm:ss" o ISO); null = ahora.
+    public void markRead(String username, String chatType, String chatName, String readUpTo) {
+        Timestamp timestamp;
+        try {
+            timestamp = readUpTo != null ? Timestamp.valueOf(readUpTo.replace('T', ' '))
+                    : new Timestamp(System.currentTimeMillis());
+        } catch (IllegalArgumentException e) {
+            timestamp = new Timestamp(System.currentTimeMillis());
         }
-
-        // 3. Historial de Grupos - Enviar todos los mensajes
-        handler.sendMessage(createNotification("--- Mensajes de tus grupos ---"));
-        List<String> userGroups = dbService.getUserGroups(username);
-        if (!userGroups.isEmpty()) {
-            userGroups.forEach(group -> {
-                handler.sendMessage(createNotification("--- Mensajes de " + group + " ---"));
-                dbService.getGroupMessages(group, Integer.MAX_VALUE).forEach(handler::sendMessage);
-            });
+        if ("public".equals(chatType)) {
+            chatType = "general";
         }
-
-        handler.sendMessage(createNotification("------------------------------------"));
-        handler.sendMessage(createNotification("¡Bienvenido!"));
+        dbService.markRead(username, chatType, "general".equals(chatType) ? "General" : chatName, timestamp);
     }
 
     // --- Otros métodos ---
-    public synchronized boolean loginUser(String username, String password, ClientHandler handler) {
-        if (dbService.isValidUser(username, password) && !onlineUsers.containsKey(username)) {
-            onlineUsers.put(username, handler);
+    // La verificación (BCrypt + consulta) se hace sin candado; putIfAbsent garantiza
+    // que dos logins simultáneos del mismo usuario no puedan ganar ambos.
+    public boolean loginUser(String username, String password, ClientHandler handler) {
+        if (onlineUsers.containsKey(username) || !dbService.isValidUser(username, password)) {
+            return false;
+        }
+        if (onlineUsers.putIfAbsent(username, handler) == null) {
             handler.setUsername(username);
             broadcastToOthers(username, createNotification(username + " se ha conectado."));
             System.out.println(username + " se ha conectado.");
@@ -169,13 +252,13 @@ public class ChatController {
     }
 
     public void processPublicMessage(String sender, String text) {
-        dbService.savePublicMessage(sender, text);
+        // Se entrega primero; el guardado se encola y no espera a la base de datos.
         String messageJson = createChatMessage("public", sender, sender, text, null);
         broadcastMessage(messageJson);
+        dbService.savePublicMessage(sender, text);
     }
 
     public void processPrivateMessage(String sender, String recipient, String text) {
-        dbService.savePrivateMessage(sender, recipient, text, "TEXT");
         ClientHandler recipientHandler = onlineUsers.get(recipient);
         if (recipientHandler != null) {
             recipientHandler.sendMessage(createChatMessage("private_from", sender, sender, text, null));
@@ -184,13 +267,14 @@ public class ChatController {
         if (senderHandler != null) {
             senderHandler.sendMessage(createChatMessage("private_to", sender, recipient, text, null));
         }
+        dbService.savePrivateMessage(sender, recipient, text, "TEXT");
     }
 
     public void processGroupMessage(String sender, String groupName, String text) {
         if (dbService.isUserInGroup(sender, groupName)) {
-            dbService.saveGroupMessage(sender, groupName, text, "TEXT");
             String messageJson = createChatMessage("group", sender, null, text, groupName);
             broadcastToGroup(sender, groupName, messageJson);
+            dbService.saveGroupMessage(sender, groupName, text, "TEXT");
         } else {
             ClientHandler handler = onlineUsers.get(sender);
             if (handler != null) {
@@ -250,139 +334,191 @@ public class ChatController {
         }
     }
 
-    public List<String> getPublicChatHistory(int limit, int offset) {
-        return dbService.getPublicMessages(limit, offset);
+    public DatabaseService.HistoryPage getPublicChatHistory(HistoryCursor before, int limit) {
+        return dbService.getPublicMessages(before, limit);
     }
 
-    public List<String> getGroupChatHistory(String groupName, int limit, int offset) {
-        return dbService.getGroupMessages(groupName, limit, offset);
+    public DatabaseService.HistoryPage getGroupChatHistory(String groupName, HistoryCursor before, int limit) {
+        return dbService.getGroupMessages(groupName, before, limit);
     }
 
-    public List<String> getPrivateChatHistory(String user1, String user2, int limit, int offset) {
-        return dbService.getPrivateMessages(user1, user2, limit, offset);
+    public DatabaseService.HistoryPage getPrivateChatHistory(String user1, String user2, HistoryCursor before,
+            int limit) {
+        return dbService.getPrivateMessages(user1, user2, before, limit);
     }
 
-    public String saveAudioFile(String sender, String originalFileName, InputStream inStream, long fileSize) {
-        String newFileName = String.format("audio_%s_%d.wav", sender, audioFileCounter.getAndIncrement());
-        File targetFile = new File(AUDIO_STORAGE_PATH + newFileName);
-        try (FileOutputStream fos = new FileOutputStream(targetFile)) {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            long totalBytesRead = 0;
-            while (totalBytesRead < fileSize && (bytesRead = inStream.read(buffer, 0,
-                    (int) Math.min(buffer.length, fileSize - totalBytesRead))) != -1) {
-                fos.write(buffer, 0, bytesRead);
-                totalBytesRead += bytesRead;
-            }
-            if (totalBytesRead == fileSize) {
-                return targetFile.getPath();
+    // Contexto /upload del servidor HTTP.
+    public AudioUploadHandler getUploadHandler() {
+        return uploads;
+    }
+
+    /**
+     * upload_start: registra la subida (o retoma la de upload_id) y responde con el id,
+     * el desplazamiento desde el que seguir y el tamaño de trozo. file_name es el nombre
+     * local del cliente y sólo se devuelve para que asocie la respuesta.
+     */
+    public void startUpload(String username, JsonObject message) {
+        ClientHandler handler = onlineUsers.get(username);
+        if (handler == null)
+            return;
+        AudioUploadHandler.Upload upload = message.has("upload_id")
+                ? uploads.find(message.get("upload_id").getAsString(), username)
+                : null;
+        try {
+            if (upload == null) {
+                upload = uploads.start(username, message.get("recipient").getAsString(),
+                        audioStore.newTempFile(),
+                        message.get("file_size").getAsLong(), message.get("sha256").getAsString());
             }
+        } catch (IOException e) {
+            System.err.println("Error creando la subida de audio de " + username + ": " + e.getMessage());
+        }
+        if (upload == null) {
+            handler.sendMessage(createNotification("No se pudo iniciar la subida del audio: tamaño o SHA-256 inválidos."));
+            return;
+        }
+        JsonObject ready = new JsonObject();
+        ready.addProperty("type", "upload_ready");
+        ready.addProperty("upload_id", upload.getId());
+        ready.addProperty("file_name", message.has("file_name") ? message.get("file_name").getAsString() : "");
+        ready.addProperty("offset", upload.getOffset());
+        ready.addProperty("chunk_size", AudioUploadHandler.CHUNK_SIZE);
+        ready.addProperty("path", "/upload/" + upload.getId());
+        handler.sendMessage(gson.toJson(ready));
+    }
+
+    public AudioBlobStore getAudioStore() {
+        return audioStore;
+    }
+
+    // Lo llama AudioUploadHandler cuando el archivo está completo y verificado.
+    private void uploadCompleted(AudioUploadHandler.Upload upload) {
+        String audioId;
+        try {
+            audioId = audioStore.putFile(upload.getTarget(), upload.getSha256());
+        } catch (IOException e) {
+            System.err.println("Error guardando la subida de audio de " + upload.getUsername() + ": " + e.getMessage());
+            return;
+        }
+        processAudioMessage(upload.getUsername(), upload.getRecipient(), audioId);
+        ClientHandler handler = onlineUsers.get(upload.getUsername());
+        if (handler != null) {
+            JsonObject complete = new JsonObject();
+            complete.addProperty("type", "upload_complete");
+            complete.addProperty("upload_id", upload.getId());
+            complete.addProperty("file_name", audioId);
+            handler.sendMessage(gson.toJson(complete));
+        }
+    }
+
+    // Formato anterior: los bytes van en línea tras el comando send_audio, en el socket del chat.
+    // Devuelve el id de la nota en el almacén, o null si el stream se cortó.
+    public String saveAudioFile(String sender, String originalFileName, InputStream inStream, long fileSize) {
+        try {
+            return audioStore.put(inStream, fileSize);
         } catch (IOException e) {
             System.err.println("Error guardando archivo de audio: " + e.getMessage());
         }
         return null;
     }
 
-    public void processAudioMessage(String sender, String recipient, String audioFilePath) {
+    // audioId es el id de AudioBlobStore; es lo que se guarda en el mensaje y lo que ve el cliente.
+    public void processAudioMessage(String sender, String recipient, String audioId) {
         // Normalize recipient
         if (recipient == null)
             recipient = "general";
         recipient = recipient.trim();
 
-        System.out.println("DEBUG processAudioMessage: sender=" + sender + ", recipient='" + recipient + "', path="
-                + audioFilePath);
+        System.out.println("DEBUG processAudioMessage: sender=" + sender + ", recipient='" + recipient + "', id="
+                + audioId);
 
         if ("general".equalsIgnoreCase(recipient) || "public".equalsIgnoreCase(recipient)) {
             System.out.println("DEBUG: Saving to PUBLIC messages");
-            dbService.savePublicMessage(sender, audioFilePath, "AUDIO");
-            String messageJson = createChatMessage("public_audio", sender, sender, new File(audioFilePath).getName(),
+            dbService.savePublicMessage(sender, audioId, "AUDIO");
+            String messageJson = createChatMessage("public_audio", sender, sender, audioId,
                     null);
             broadcastMessage(messageJson);
         } else if (dbService.isGroup(recipient)) {
             System.out.println("DEBUG: Saving to GROUP messages");
-            dbService.saveGroupMessage(sender, recipient, audioFilePath, "AUDIO");
-            String messageJson = createChatMessage("group_audio", sender, null, new File(audioFilePath).getName(),
+            dbService.saveGroupMessage(sender, recipient, audioId, "AUDIO");
+            String messageJson = createChatMessage("group_audio", sender, null, audioId,
                     recipient);
             broadcastToGroup(sender, recipient, messageJson);
         } else {
             System.out.println("DEBUG: Saving to PRIVATE messages");
-            dbService.savePrivateMessage(sender, recipient, audioFilePath, "AUDIO");
+            dbService.savePrivateMessage(sender, recipient, audioId, "AUDIO");
             ClientHandler recipientHandler = onlineUsers.get(recipient);
             if (recipientHandler != null) {
                 recipientHandler.sendMessage(createChatMessage("private_audio_from", sender, sender,
-                        new File(audioFilePath).getName(), null));
+                        audioId, null));
             }
             ClientHandler senderHandler = onlineUsers.get(sender);
             if (senderHandler != null) {
                 senderHandler.sendMessage(createChatMessage("private_audio_to", sender, recipient,
-                        new File(audioFilePath).getName(), null));
+                        audioId, null));
             }
         }
     }
 
+    // Id de la versión de la nota que conviene enviar (ver AudioBlobStore.servedId).
+    public String getServedAudioId(String fileName) {
+        return audioStore.servedId(fileName);
+    }
+
     public File getAudioFile(String fileName) {
-        if (fileName == null || fileName.contains("..")) {
-            return null;
-        }
-        File file = new File(AUDIO_STORAGE_PATH + fileName);
-        return (file.exists() && !file.isDirectory()) ? file : null;
+        return audioStore.find(fileName);
+    }
+
+    // Contenido en memoria de la nota (ver AudioBlobStore.read); null si hay que enviarla desde el archivo.
+    public ByteBuffer getAudioData(String fileName) throws IOException {
+        return audioStore.read(fileName);
+    }
+
+    // Duración y forma de onda calculadas por AudioTranscoder; null mientras no haya terminado.
+    public AudioTranscoder.NoteInfo getAudioInfo(String fileName) {
+        return audioStore.getInfo(fileName);
     }
 
+    // Los broadcasts codifican el frame una vez y lo comparten entre todos los destinatarios.
     private void broadcastMessage(String message) {
-        onlineUsers.values().forEach(handler -> handler.sendMessage(message));
+        ByteBuffer frame = Frames.encode(message);
+        onlineUsers.values().forEach(handler -> handler.sendFrame(frame));
     }
 
     private void broadcastToOthers(String excludedUsername, String message) {
+        ByteBuffer frame = Frames.encode(message);
         onlineUsers.values().stream()
-                .filter(h -> !h.getUsername().equals(excludedUsername))
-                .forEach(h -> h.sendMessage(message));
+                .filter(h -> !excludedUsername.equals(h.getUsername()))
+                .forEach(h -> h.sendFrame(frame));
     }
 
     private void broadcastToGroup(String excludedUsername, String groupName, String message) {
-        dbService.getGroupMembers(groupName).stream()
+        // Sin consultas: los miembros vienen del índice en memoria de DatabaseService.
+        Collection<String> members = dbService.getGroupMembersView(groupName);
+        ByteBuffer frame = Frames.encode(message);
+        members.stream()
                 .filter(member -> excludedUsername == null || !member.equals(excludedUsername))
                 .map(onlineUsers::get)
                 .filter(java.util.Objects::nonNull)
-                .forEach(handler -> handler.sendMessage(message));
+                .forEach(handler -> handler.sendFrame(frame));
     }
 
     public String createNotification(String message) {
-        JsonObject json = new JsonObject();
-        json.addProperty("type", "notification");
-        json.addProperty("message", message);
-        return gson.toJson(json);
+        return FrameEncoder.notification(message);
     }
 
     private String createChatMessage(String subType, String sender, String party, String text, String group) {
-        JsonObject json = new JsonObject();
-        json.addProperty("type", "chat");
-        json.addProperty("sub_type", subType);
-        json.addProperty("sender", sender);
-        json.addProperty("party", party);
-        json.addProperty("text", text);
-        if (group != null) {
-            json.addProperty("group", group);
-        }
         // Agregar timestamp actual para mensajes nuevos
-        json.addProperty("sent_at",
+        return FrameEncoder.chat(subType, sender, party, text, group,
                 java.time.LocalDateTime.now().format(java.time.format.DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-        return gson.toJson(json);
     }
 
     public void rejectCall(String rejecter, String requester) {
+        if (!callManager.rejectCall(rejecter, requester))
+            return;
         ClientHandler requesterHandler = onlineUsers.get(requester);
         if (requesterHandler != null) {
-            JsonObject callRejected = new JsonObject();
-            callRejected.addProperty("type", "call_rejected");
-            callRejected.addProperty("user", rejecter);
-            requesterHandler.sendMessage(gson.toJson(callRejected));
-        }
-    }
-
-    public void streamAudioToUser(String recipient, byte[] audioData) {
-        ClientHandler handler = onlineUsers.get(recipient);
-        if (handler != null) {
-            handler.sendAudioPacket(audioData);
+            requesterHandler.sendMessage(FrameEncoder.begin("call_rejected").field("user", rejecter).end());
         }
     }
 
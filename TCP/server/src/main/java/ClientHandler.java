@@ -1,81 +1,126 @@
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.JsonSyntaxException;
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 public class ClientHandler implements Runnable {
 
-    private final Socket clientSocket;
+    private final ClientTransport transport;
     private final ChatController chatController;
     private final Gson gson;
-    private PrintWriter out;
+    private volatile boolean authenticated;
     private String username;
 
-    public ClientHandler(Socket socket, CallManager callManager) {
-        this.clientSocket = socket;
+    public ClientHandler(Socket socket, CallManager callManager, Executor writerExecutor) throws IOException {
+        this(new SocketTransport(socket, writerExecutor), callManager);
+    }
+
+    public ClientHandler(ClientTransport transport, CallManager callManager) {
+        this.transport = transport;
         this.chatController = ChatController.getInstance(callManager);
         this.gson = new Gson();
     }
 
+    // Modo bloqueante: un hilo atiende la sesión completa leyendo línea a línea.
     @Override
     public void run() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()))) {
-            this.out = new PrintWriter(clientSocket.getOutputStream(), true);
-            if (handleAuthentication(in)) {
-                String jsonMessage;
-                while ((jsonMessage = in.readLine()) != null) {
-                    processMessage(jsonMessage);
-                }
+        SocketTransport socketTransport = (SocketTransport) transport;
+        try {
+            onConnect();
+            String jsonMessage;
+            while ((jsonMessage = socketTransport.readLine()) != null) {
+                handleLine(jsonMessage);
             }
         } catch (IOException e) {
 
         } finally {
-            if (this.username != null) {
-                chatController.userLogout(this.username);
-            }
+            socketTransport.close();
+            onDisconnect();
         }
     }
 
-    private boolean handleAuthentication(BufferedReader in) throws IOException {
+    public void onConnect() {
         sendMessage("{\"status\": \"auth_required\", \"message\": \"Elige: login o register\"}");
-        String authRequest;
-        while ((authRequest = in.readLine()) != null) {
-            try {
-                JsonObject request = gson.fromJson(authRequest, JsonObject.class);
-                String command = request.get("command").getAsString();
-                String user = request.get("username").getAsString();
-                String pass = request.get("password").getAsString();
-
-                if ("login".equals(command)) {
+    }
+
+    // Punto de entrada común para los modos bloqueante y NIO.
+    public void handleLine(String line) {
+        if (authenticated) {
+            processMessage(line);
+        } else {
+            processAuthRequest(line);
+        }
+    }
+
+    public void onDisconnect() {
+        if (this.username != null) {
+            chatController.userLogout(this.username);
+        }
+    }
+
+    /**
+     * Si la línea es un comando "send_audio", devuelve cuántos bytes crudos la
+     * siguen en el stream; en otro caso devuelve -1. Lo usa el lector NIO para
+     * saber que no debe interpretar esos bytes como líneas JSON.
+     */
+    public static long inlinePayloadSize(String line) {
+        if (!line.contains("send_audio")) {
+            return -1;
+        }
+        try {
+            JsonObject request = JsonParser.parseString(line).getAsJsonObject();
+            if (request.has("command") && "send_audio".equals(request.get("command").getAsString())
+                    && request.has("file_size")) {
+                return request.get("file_size").getAsLong();
+            }
+        } catch (RuntimeException e) {
+            // Línea mal formada: la rechazará processMessage.
+        }
+        return -1;
+    }
+
+    private void processAuthRequest(String authRequest) {
+        try {
+            JsonObject request = gson.fromJson(authRequest, JsonObject.class);
+            String command = request.get("command").getAsString();
+            String user = request.get("username").getAsString();
+            String pass = request.get("password").getAsString();
+
+            if ("login".equals(command)) {
+                if (chatController.loginUser(user, pass, this)) {
+                    authenticated = true;
+                    sendMessage("{\"status\": \"ok\", \"message\": \"Login exitoso.\"}");
+                    chatController.sendSyncSummary(this);
+                    chatController.sendWelcome(this);
+                } else {
+                    sendMessage(
+                            "{\"status\": \"error\", \"message\": \"Credenciales incorrectas o usuario ya conectado.\"}");
+                }
+            } else if ("register".equals(command)) {
+                if (chatController.registerUser(user, pass)) {
                     if (chatController.loginUser(user, pass, this)) {
-                        sendMessage("{\"status\": \"ok\", \"message\": \"Login exitoso.\"}");
-                        chatController.sendInitialHistoryToUser(this);
-                        return true;
+                        authenticated = true;
+                        sendMessage("{\"status\": \"ok\", \"message\": \"Registro y login exitosos.\"}");
+                        chatController.sendSyncSummary(this);
+                        chatController.sendWelcome(this);
                     } else {
                         sendMessage(
-                                "{\"status\": \"error\", \"message\": \"Credenciales incorrectas o usuario ya conectado.\"}");
-                    }
-                } else if ("register".equals(command)) {
-                    if (chatController.registerUser(user, pass)) {
-                        if (chatController.loginUser(user, pass, this)) {
-                            sendMessage("{\"status\": \"ok\", \"message\": \"Registro y login exitosos.\"}");
-                            chatController.sendInitialHistoryToUser(this);
-                            return true;
-                        } else {
-                            sendMessage(
-                                    "{\"status\": \"error\", \"message\": \"Registro exitoso, pero el login automático falló. Intenta iniciar sesión manualmente.\"}");
-                        }
-                    } else {
-                        sendMessage("{\"status\": \"error\", \"message\": \"El nombre de usuario ya existe.\"}");
+                                "{\"status\": \"error\", \"message\": \"Registro exitoso, pero el login automático falló. Intenta iniciar sesión manualmente.\"}");
                     }
+                } else {
+                    sendMessage("{\"status\": \"error\", \"message\": \"El nombre de usuario ya existe.\"}");
                 }
-            } catch (JsonSyntaxException | NullPointerException e) {
-                sendMessage("{\"status\": \"error\", \"message\": \"Petición de autenticación mal formada.\"}");
             }
+        } catch (JsonSyntaxException | NullPointerException e) {
+            sendMessage("{\"status\": \"error\", \"message\": \"Petición de autenticación mal formada.\"}");
         }
-        return false;
     }
 
     private void processMessage(String jsonMessage) {
@@ -94,6 +139,9 @@ public class ClientHandler implements Runnable {
                 case "send_audio":
                     handleAudioUpload(message);
                     break;
+                case "upload_start":
+                    chatController.startUpload(this.username, message);
+                    break;
                 case "request_audio":
                     handleAudioRequest(message);
                     break;
@@ -127,11 +175,31 @@ public class ClientHandler implements Runnable {
                 case "get_chat_history":
                     handleChatHistoryRequest(message);
                     break;
+                case "get_sync_summary":
+                    chatController.sendSyncSummary(this);
+                    break;
+                case "mark_read":
+                    chatController.markRead(this.username, message.get("chat_type").getAsString(),
+                            message.has("chat_name") ? message.get("chat_name").getAsString() : null,
+                            message.has("high_water_mark") ? message.get("high_water_mark").getAsString() : null);
+                    break;
                 case "call_request":
-                    chatController.requestCall(this.username, message.get("callee").getAsString());
+                    chatController.requestCall(this.username, message.get("callee").getAsString(),
+                            readCodecs(message));
                     break;
                 case "call_accept":
-                    chatController.acceptCall(this.username, message.get("requester").getAsString());
+                    chatController.acceptCall(this.username, message.get("requester").getAsString(),
+                            readCodecs(message));
+                    break;
+                case "call_reject":
+                    chatController.rejectCall(this.username, message.get("requester").getAsString());
+                    break;
+                case "group_call_join":
+                    chatController.joinGroupCall(this.username, message.get("group").getAsString(),
+                            readCodecs(message));
+                    break;
+                case "group_call_leave":
+                    chatController.leaveGroupCall(this.username);
                     break;
                 case "call_hangup":
                     chatController.endCall(this.username);
@@ -163,8 +231,8 @@ public class ClientHandler implements Runnable {
             String fileName = message.get("file_name").getAsString();
 
             // Llamar al controlador para que lea los bytes del stream del socket
-            String savedFilePath = chatController.saveAudioFile(this.username, fileName, clientSocket.getInputStream(),
-                    fileSize);
+            String savedFilePath = chatController.saveAudioFile(this.username, fileName,
+                    transport.openPayload(fileSize), fileSize);
 
             if (savedFilePath != null) {
                 chatController.processAudioMessage(this.username, message.get("recipient").getAsString(),
@@ -179,22 +247,34 @@ public class ClientHandler implements Runnable {
 
     private void handleAudioRequest(JsonObject message) throws IOException {
         String fileName = message.get("file_name").getAsString();
-        File audioFile = chatController.getAudioFile(fileName);
+        // La versión convertida si ya existe: se envía entera, así que el cliente no nota el cambio.
+        String servedId = chatController.getServedAudioId(fileName);
+        File audioFile = chatController.getAudioFile(servedId);
 
         if (audioFile != null && audioFile.exists()) {
-            // 1. Enviar el JSON de "aviso"
+            // Las notas recientes o muy pedidas salen de la caché; el búfer se comparte entre clientes.
+            // Si no, se mapea el archivo: el tamaño del aviso y los bytes salen del mismo canal abierto,
+            // y el contenido se escribe desde la caché de páginas sin copiarlo al heap.
+            ByteBuffer data = chatController.getAudioData(servedId);
+            if (data == null) {
+                try (FileChannel channel = FileChannel.open(audioFile.toPath(), StandardOpenOption.READ)) {
+                    data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+            }
+
+            // 1. Aviso "audio_transfer" y 2. los bytes del archivo, encolados juntos.
             JsonObject response = new JsonObject();
             response.addProperty("type", "audio_transfer");
             response.addProperty("file_name", fileName);
-            response.addProperty("file_size", audioFile.length());
-            sendMessage(gson.toJson(response));
-
-            // 2. Enviar los bytes del archivo justo después
-            try (FileInputStream fis = new FileInputStream(audioFile)) {
-                OutputStream socketOutStream = clientSocket.getOutputStream();
-                fis.transferTo(socketOutStream);
-                socketOutStream.flush();
+            response.addProperty("file_size", data.remaining());
+            AudioTranscoder.NoteInfo info = chatController.getAudioInfo(fileName);
+            if (info != null && info.getDurationMs() >= 0) {
+                response.addProperty("duration_ms", info.getDurationMs());
+            }
+            if (info != null && info.getWaveform() != null) {
+                response.addProperty("waveform", info.getWaveform());
             }
+            transport.sendWithPayload(gson.toJson(response), data);
         } else {
             sendMessage(chatController
                     .createNotification("El archivo de audio '" + fileName + "' no se encontró en el servidor."));
@@ -204,52 +284,58 @@ public class ClientHandler implements Runnable {
     private void handleGroupHistoryRequest(JsonObject message) {
         String groupName = message.get("group_name").getAsString();
         sendMessage(chatController.createNotification("--- Últimos 15 mensajes de " + groupName + " ---"));
-        chatController.getGroupChatHistory(groupName, 15, 0).forEach(this::sendMessage);
+        chatController.getGroupChatHistory(groupName, HistoryCursor.NEWEST, 15).getMessages()
+                .forEach(this::sendMessage);
     }
 
     private void handlePrivateHistoryRequest(JsonObject message) {
         String withUser = message.get("with_user").getAsString();
         sendMessage(chatController.createNotification("--- Tu historial privado con " + withUser + " ---"));
-        chatController.getPrivateChatHistory(this.username, withUser, 15, 0).forEach(this::sendMessage);
+        chatController.getPrivateChatHistory(this.username, withUser, HistoryCursor.NEWEST, 15).getMessages()
+                .forEach(this::sendMessage);
     }
 
     private void handleChatHistoryRequest(JsonObject message) {
         String type = message.get("type").getAsString();
         String name = message.get("name").getAsString();
         int limit = message.has("limit") ? message.get("limit").getAsInt() : 50;
-        int offset = message.has("offset") ? message.get("offset").getAsInt() : 0;
+        // Sin cursor se devuelve la página más reciente; next_cursor pide la anterior ("cargar más").
+        HistoryCursor before;
+        try {
+            before = HistoryCursor.decode(message.has("cursor") && !message.get("cursor").isJsonNull()
+                    ? message.get("cursor").getAsString()
+                    : null);
+        } catch (IllegalArgumentException e) {
+            sendMessage(chatController.createNotification("Cursor de historial inválido."));
+            return;
+        }
 
-        List<String> messages;
+        DatabaseService.HistoryPage page;
         if ("general".equals(type) || "public".equals(type)) {
-            messages = chatController.getPublicChatHistory(limit, offset);
+            page = chatController.getPublicChatHistory(before, limit);
         } else if ("private".equals(type)) {
-            messages = chatController.getPrivateChatHistory(this.username, name, limit, offset);
+            page = chatController.getPrivateChatHistory(this.username, name, before, limit);
         } else if ("group".equals(type)) {
-            messages = chatController.getGroupChatHistory(name, limit, offset);
+            page = chatController.getGroupChatHistory(name, before, limit);
         } else {
             sendMessage(chatController.createNotification("Tipo de chat inválido."));
             return;
         }
 
-        // Enviar los mensajes como un array JSON
-        JsonObject response = new JsonObject();
-        response.addProperty("type", "chat_history_response");
-        response.addProperty("chat_type", type);
-        response.addProperty("chat_name", name);
-        com.google.gson.JsonArray messagesArray = new com.google.gson.JsonArray();
-        for (String msg : messages) {
-            try {
-                messagesArray.add(gson.fromJson(msg, JsonObject.class));
-            } catch (Exception e) {
-                // Si no es JSON válido, crear un objeto de notificación
-                JsonObject notif = new JsonObject();
-                notif.addProperty("type", "notification");
-                notif.addProperty("message", msg);
-                messagesArray.add(notif);
-            }
+        // Enviar los mensajes como un array JSON. Ya vienen codificados por FrameEncoder:
+        // se copian tal cual, sin volver a parsearlos.
+        List<String> messages = new java.util.ArrayList<>(page.getMessages().size());
+        for (String msg : page.getMessages()) {
+            // Si no es un objeto JSON, se envía como notificación
+            messages.add(msg.startsWith("{") ? msg : chatController.createNotification(msg));
         }
-        response.add("messages", messagesArray);
-        sendMessage(gson.toJson(response));
+        sendMessage(FrameEncoder.begin("chat_history_response")
+                .field("chat_type", type)
+                .field("chat_name", name)
+                .rawArray("messages", messages)
+                .field("next_cursor", page.getNextCursor())
+                .field("has_more", page.hasMore())
+                .end());
     }
 
     private void handleGetAllUsers() {
@@ -278,6 +364,15 @@ public class ClientHandler implements Runnable {
         sendMessage(gson.toJson(response));
     }
 
+    // Códecs de audio que ofrece el cliente, en su orden de preferencia; vacío si no envía ninguno.
+    private static List<String> readCodecs(JsonObject message) {
+        List<String> codecs = new java.util.ArrayList<>();
+        if (message.has("codecs") && message.get("codecs").isJsonArray()) {
+            message.getAsJsonArray("codecs").forEach(codec -> codecs.add(codec.getAsString()));
+        }
+        return codecs;
+    }
+
     private void handleWebRTCSignaling(JsonObject message) {
         try {
             if (!message.has("type") || !message.has("to")) {
@@ -316,19 +411,12 @@ public class ClientHandler implements Runnable {
     }
 
     public void sendMessage(String message) {
-        out.println(message);
+        transport.sendLine(message);
     }
 
-    public void sendAudioPacket(byte[] audioData) {
-        try {
-            String base64Audio = java.util.Base64.getEncoder().encodeToString(audioData);
-            JsonObject json = new JsonObject();
-            json.addProperty("type", "call_audio");
-            json.addProperty("data", base64Audio);
-            sendMessage(gson.toJson(json));
-        } catch (Exception e) {
-            System.err.println("Error enviando paquete de audio a " + username + ": " + e.getMessage());
-        }
+    // Variante para broadcasts: el frame ya viene codificado y se comparte entre destinatarios.
+    public void sendFrame(ByteBuffer frame) {
+        transport.sendFrame(frame);
     }
 
     public String getUsername() {
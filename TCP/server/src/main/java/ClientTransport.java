@@ -0,0 +1,27 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Canal por el que un ClientHandler habla con su cliente.
+ * Permite atender el mismo protocolo de líneas JSON tanto con sockets
+ * bloqueantes como con el servidor NIO.
+ */
+public interface ClientTransport {
+
+    // Envía una línea JSON (sin salto de línea final).
+    void sendLine(String line);
+
+    // Encola un frame ya codificado (ver Frames). El búfer puede estar compartido
+    // con otros destinatarios: el transporte nunca modifica su posición.
+    void sendFrame(ByteBuffer frame);
+
+    // Encola una línea JSON y los bytes crudos que la acompañan como una sola unidad
+    // (ver OutboundQueue.offerWithPayload). Si no caben, se desconecta al cliente.
+    void sendWithPayload(String line, ByteBuffer payload);
+
+    // Devuelve los 'size' bytes crudos que acompañan al comando que se está procesando.
+    InputStream openPayload(long size) throws IOException;
+
+    void close();
+}
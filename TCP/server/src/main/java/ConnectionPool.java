@@ -0,0 +1,275 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool acotado de conexiones JDBC.
+ * getConnection() entrega una conexión envuelta cuyo close() la devuelve al pool.
+ * Las conexiones inactivas se validan antes de reutilizarse, se cierran al pasar
+ * su tiempo máximo de vida y un hilo de fondo retira las que llevan mucho tiempo ociosas.
+ */
+public class ConnectionPool {
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final int minIdle;
+    private final long connectionTimeoutMs;
+    private final long idleTimeoutMs;
+    private final long maxLifetimeMs;
+    private final long validationIntervalMs;
+    private final String validationQuery;
+
+    // Conexiones libres; la más reciente al frente para reutilizar las que están "calientes".
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Semaphore permits;
+    private final ScheduledExecutorService housekeeper;
+
+    // Métricas
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    public ConnectionPool(String url, String user, String password) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = ServerConfig.getInt("chat.db.pool.maxSize", 10);
+        this.minIdle = ServerConfig.getInt("chat.db.pool.minIdle", 2);
+        this.connectionTimeoutMs = ServerConfig.getLong("chat.db.pool.connectionTimeoutMs", 5000);
+        this.idleTimeoutMs = ServerConfig.getLong("chat.db.pool.idleTimeoutMs", 10 * 60_000);
+        this.maxLifetimeMs = ServerConfig.getLong("chat.db.pool.maxLifetimeMs", 30 * 60_000);
+        this.validationIntervalMs = ServerConfig.getLong("chat.db.pool.validationIntervalMs", 5000);
+        this.validationQuery = ServerConfig.getString("chat.db.pool.validationQuery", "SELECT 1");
+        this.permits = new Semaphore(maxSize, true);
+
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread t = new Thread(runnable, "db-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        housekeeper.scheduleWithFixedDelay(this::evictIdle, 30, 30, TimeUnit.SECONDS);
+        long metricsInterval = ServerConfig.getLong("chat.db.pool.metricsLogIntervalMs", 60_000);
+        if (metricsInterval > 0) {
+            housekeeper.scheduleWithFixedDelay(() -> System.out.println(describeMetrics()), metricsInterval,
+                    metricsInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(connectionTimeoutMs, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLException("Tiempo de espera agotado al obtener una conexión del pool ("
+                        + connectionTimeoutMs + " ms, " + active.get() + " activas)");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrumpido esperando una conexión del pool", e);
+        }
+
+        try {
+            PooledConnection pooled = takeIdle();
+            if (pooled == null) {
+                pooled = new PooledConnection(DriverManager.getConnection(url, user, password));
+                total.incrementAndGet();
+            }
+            recordWait(System.nanoTime() - start);
+            active.incrementAndGet();
+            return pooled.lease();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private PooledConnection takeIdle() {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            long now = System.currentTimeMillis();
+            if (now - pooled.createdAt >= maxLifetimeMs) {
+                discard(pooled);
+            } else if (now - pooled.lastUsedAt >= validationIntervalMs && !isValid(pooled.physical)) {
+                discard(pooled);
+            } else {
+                return pooled;
+            }
+        }
+        return null;
+    }
+
+    private boolean isValid(Connection connection) {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.setQueryTimeout(5);
+            stmt.execute(validationQuery);
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(PooledConnection pooled) {
+        active.decrementAndGet();
+        try {
+            if (pooled.physical.isClosed()
+                    || System.currentTimeMillis() - pooled.createdAt >= maxLifetimeMs) {
+                discard(pooled);
+            } else {
+                // Dejar la conexión como la encontraría cualquier método de DatabaseService.
+                if (!pooled.physical.getAutoCommit()) {
+                    pooled.physical.rollback();
+                    pooled.physical.setAutoCommit(true);
+                }
+                pooled.physical.clearWarnings();
+                pooled.lastUsedAt = System.currentTimeMillis();
+                idle.offerFirst(pooled);
+            }
+        } catch (SQLException e) {
+            discard(pooled);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void discard(PooledConnection pooled) {
+        total.decrementAndGet();
+        try {
+            pooled.physical.close();
+        } catch (SQLException e) {
+        }
+    }
+
+    // Retira las conexiones ociosas más antiguas (conservando minIdle) y las que superaron su vida útil.
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<PooledConnection> it = idle.descendingIterator();
+        while (it.hasNext()) {
+            PooledConnection pooled = it.next();
+            boolean expired = now - pooled.createdAt >= maxLifetimeMs;
+            boolean stale = now - pooled.lastUsedAt >= idleTimeoutMs && idle.size() > minIdle;
+            if ((expired || stale) && idle.remove(pooled)) {
+                discard(pooled);
+            }
+        }
+    }
+
+    private void recordWait(long nanos) {
+        borrows.incrementAndGet();
+        totalWaitNanos.addAndGet(nanos);
+        maxWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getTotalCount() {
+        return total.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    public double getAverageWaitMillis() {
+        long count = borrows.get();
+        return count == 0 ? 0 : totalWaitNanos.get() / 1e6 / count;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+
+    public String describeMetrics() {
+        return String.format("Pool BD: %d activas, %d libres, %d/%d abiertas, espera media %.2f ms, máx %.2f ms, "
+                + "%d préstamos, %d timeouts", getActiveCount(), getIdleCount(), getTotalCount(), maxSize,
+                getAverageWaitMillis(), getMaxWaitMillis(), borrows.get(), getTimeoutCount());
+    }
+
+    public void close() {
+        housekeeper.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            discard(pooled);
+        }
+    }
+
+    /**
+     * Conexión física del pool. Cada préstamo entrega un proxy propio cuyo close()
+     * la devuelve al pool; usar el proxy después de cerrarlo es un error.
+     */
+    private final class PooledConnection {
+        final Connection physical;
+        final long createdAt = System.currentTimeMillis();
+        volatile long lastUsedAt = createdAt;
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        Connection lease() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, new LeaseHandler(this));
+        }
+    }
+
+    private final class LeaseHandler implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean closed;
+
+        LeaseHandler(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        release(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || pooled.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + pooled.physical + "]";
+                default:
+                    if (closed) {
+                        throw new SQLException("La conexión ya fue devuelta al pool");
+                    }
+                    try {
+                        return method.invoke(pooled.physical, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+            }
+        }
+    }
+}
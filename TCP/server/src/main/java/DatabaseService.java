@@ -1,15 +1,34 @@
 import org.mindrot.jbcrypt.BCrypt;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import com.google.gson.Gson;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
 public class DatabaseService {
 
-    private static final String DB_URL = "jdbc:postgresql://localhost:5432/chatdb";
-    private static final String DB_USER = "chatuser";
-    private static final String DB_PASSWORD = "chatpassword";
+    private static final String DB_URL = ServerConfig.getString("chat.db.url", "jdbc:postgresql://localhost:5432/chatdb");
+    private static final String DB_USER = ServerConfig.getString("chat.db.user", "chatuser");
+    private static final String DB_PASSWORD = ServerConfig.getString("chat.db.password", "chatpassword");
+
+    // Compartido por todas las instancias: cada consulta toma prestada una conexión ya autenticada.
+    private static final ConnectionPool pool = new ConnectionPool(DB_URL, DB_USER, DB_PASSWORD);
+
+    // Los mensajes se guardan en lotes desde un hilo de fondo (ver MessageWriteBehind).
+    private final MessageWriteBehind writeBehind = new MessageWriteBehind(this);
+
+    // Membresías de grupos en memoria; mientras no se haya podido cargar se consulta la BD.
+    private final GroupMembershipIndex groupIndex = new GroupMembershipIndex();
+    private final ReentrantLock groupIndexLoadLock = new ReentrantLock();
+
+    public DatabaseService() {
+        loadGroupMemberships();
+    }
 
     public enum GroupCreationResult {
         SUCCESS,
@@ -17,8 +36,45 @@ public class DatabaseService {
         DB_ERROR
     }
 
+    private void loadGroupMemberships() {
+        try (Connection conn = getConnection(); Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT group_name FROM chat_groups")) {
+                while (rs.next()) {
+                    groupIndex.addGroup(rs.getString("group_name"));
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT group_name, username FROM group_members")) {
+                while (rs.next()) {
+                    groupIndex.addMember(rs.getString("group_name"), rs.getString("username"));
+                }
+            }
+            groupIndex.markLoaded();
+        } catch (SQLException e) {
+            System.err.println("No se pudieron cargar los grupos en memoria: " + e.getMessage());
+        }
+    }
+
+    // Si la carga inicial falló (BD caída al arrancar), se reintenta en el siguiente uso.
+    // Mientras otro hilo la recarga, se responde con SQL en vez de esperarlo.
+    private boolean groupIndexReady() {
+        if (!groupIndex.isLoaded() && groupIndexLoadLock.tryLock()) {
+            try {
+                if (!groupIndex.isLoaded()) {
+                    loadGroupMemberships();
+                }
+            } finally {
+                groupIndexLoadLock.unlock();
+            }
+        }
+        return groupIndex.isLoaded();
+    }
+
     private Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+        return pool.getConnection();
+    }
+
+    public static ConnectionPool getPool() {
+        return pool;
     }
 
     public boolean doesUserExist(String username) {
@@ -66,44 +122,286 @@ public class DatabaseService {
     }
 
     public void savePublicMessage(String sender, String text, String type) {
-        String sql = "INSERT INTO public_messages (sender_username, message_content, message_type) VALUES (?, ?, ?)";
+        writeBehind.submit(MessageWriteBehind.Kind.PUBLIC, sender, null, text, type);
+    }
+
+    /**
+     * Inserta un lote de mensajes en una sola transacción (un batch JDBC por tabla).
+     * Lo llama MessageWriteBehind; devuelve false si el lote no se pudo guardar.
+     */
+    boolean insertMessages(List<MessageWriteBehind.PendingMessage> batch) {
+        String publicSql = "INSERT INTO public_messages (sender_username, message_content, message_type, sent_at) VALUES (?, ?, ?, ?)";
+        String groupSql = "INSERT INTO group_messages (sender_username, group_name, message_content, message_type, sent_at) VALUES (?, ?, ?, ?, ?)";
+        String privateSql = "INSERT INTO private_messages (sender_username, recipient_username, message_content, message_type, sent_at) VALUES (?, ?, ?, ?, ?)";
+        // Cada fila AUDIO que apunta a una nota del almacén suma una referencia en la misma transacción.
+        String blobRefSql = "INSERT INTO audio_blobs (blob_id, ref_count) VALUES (?, 1) "
+                + "ON CONFLICT (blob_id) DO UPDATE SET ref_count = audio_blobs.ref_count + 1";
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement publicStmt = conn.prepareStatement(publicSql);
+                    PreparedStatement groupStmt = conn.prepareStatement(groupSql);
+                    PreparedStatement privateStmt = conn.prepareStatement(privateSql);
+                    PreparedStatement blobRefStmt = conn.prepareStatement(blobRefSql)) {
+                int publicCount = 0, groupCount = 0, privateCount = 0, blobRefCount = 0;
+                for (MessageWriteBehind.PendingMessage message : batch) {
+                    if ("AUDIO".equals(message.type) && AudioBlobStore.isBlobId(message.content)) {
+                        blobRefStmt.setString(1, message.content);
+                        blobRefStmt.addBatch();
+                        blobRefCount++;
+                    }
+                    PreparedStatement pstmt;
+                    switch (message.kind) {
+                        case PUBLIC:
+                            pstmt = publicStmt;
+                            publicCount++;
+                            break;
+                        case GROUP:
+                            pstmt = groupStmt;
+                            groupCount++;
+                            break;
+                        default:
+                            pstmt = privateStmt;
+                            privateCount++;
+                            break;
+                    }
+                    int i = 1;
+                    pstmt.setString(i++, message.sender);
+                    if (message.kind != MessageWriteBehind.Kind.PUBLIC) {
+                        pstmt.setString(i++, message.target);
+                    }
+                    pstmt.setString(i++, message.content);
+                    pstmt.setString(i++, message.type);
+                    pstmt.setTimestamp(i, message.sentAt);
+                    pstmt.addBatch();
+                }
+                if (publicCount > 0) {
+                    publicStmt.executeBatch();
+                }
+                if (groupCount > 0) {
+                    groupStmt.executeBatch();
+                }
+                if (privateCount > 0) {
+                    privateStmt.executeBatch();
+                }
+                if (blobRefCount > 0) {
+                    blobRefStmt.executeBatch();
+                }
+                conn.commit();
+                return true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            System.err.println("Error al guardar " + batch.size() + " mensaje(s): " + e.getMessage());
+            return false;
+        }
+    }
+
+    // --- Referencias a las notas de voz (AudioBlobStore) ---
+
+    private static final String AUDIO_CONTENT_SQL = "SELECT message_content FROM public_messages WHERE message_type = 'AUDIO' "
+            + "UNION ALL SELECT message_content FROM group_messages WHERE message_type = 'AUDIO' "
+            + "UNION ALL SELECT message_content FROM private_messages WHERE message_type = 'AUDIO' "
+            // La versión convertida de una nota vive mientras viva la nota que la señala.
+            + "UNION ALL SELECT variant_id FROM audio_blobs WHERE variant_id IS NOT NULL";
+
+    // Alta de una nota recién guardada, todavía sin mensajes que la usen. Si ya existía
+    // (el mismo contenido subido otra vez) se renueva last_seen_at para que el GC le dé otro plazo.
+    public void registerAudioBlob(String blobId, long size) {
+        String sql = "INSERT INTO audio_blobs (blob_id, size_bytes) VALUES (?, ?) "
+                + "ON CONFLICT (blob_id) DO UPDATE SET size_bytes = EXCLUDED.size_bytes, last_seen_at = CURRENT_TIMESTAMP";
+        try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, blobId);
+            pstmt.setLong(2, size);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            System.err.println("Error al registrar la nota de voz " + blobId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Recalcula ref_count desde las filas de mensajes (corrige lo que borran los
+     * ON DELETE CASCADE) y devuelve las notas sin referencias que nadie ha vuelto a
+     * guardar en los últimos graceMinutes.
+     */
+    public List<String> findUnreferencedAudioBlobs(long graceMinutes) {
+        String recountSql = "UPDATE audio_blobs b SET ref_count = COALESCE(r.refs, 0) "
+                + "FROM audio_blobs b2 LEFT JOIN (SELECT message_content AS blob_id, COUNT(*) AS refs FROM ("
+                + AUDIO_CONTENT_SQL + ") m GROUP BY message_content) r ON r.blob_id = b2.blob_id "
+                + "WHERE b.blob_id = b2.blob_id AND b.ref_count <> COALESCE(r.refs, 0)";
+        String selectSql = "SELECT blob_id FROM audio_blobs WHERE ref_count = 0 "
+                + "AND last_seen_at < CURRENT_TIMESTAMP - make_interval(mins => ?)";
+        List<String> blobIds = new ArrayList<>();
+        try (Connection conn = getConnection()) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate(recountSql);
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement(selectSql)) {
+                pstmt.setInt(1, (int) graceMinutes);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        blobIds.add(rs.getString("blob_id"));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Error al buscar notas de voz sin referencias: " + e.getMessage());
+        }
+        return blobIds;
+    }
+
+    // Borra la fila sólo si de verdad ningún mensaje la usa y nadie la ha vuelto a guardar
+    // (un reenvío o una subida repetida pudieron llegar tras el recuento).
+    public boolean deleteAudioBlobIfUnreferenced(String blobId, long graceMinutes) {
+        String sql = "DELETE FROM audio_blobs WHERE blob_id = ? AND ref_count = 0 "
+                + "AND last_seen_at < CURRENT_TIMESTAMP - make_interval(mins => ?) "
+                + "AND NOT EXISTS (SELECT 1 FROM (" + AUDIO_CONTENT_SQL + ") m WHERE m.message_content = ?)";
+        try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, blobId);
+            pstmt.setInt(2, (int) graceMinutes);
+            pstmt.setString(3, blobId);
+            return pstmt.executeUpdate() == 1;
+        } catch (SQLException e) {
+            System.err.println("Error al borrar la nota de voz " + blobId + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Resultado de AudioTranscoder; marca la nota como procesada.
+    public void saveAudioInfo(String blobId, AudioTranscoder.NoteInfo info) {
+        String sql = "UPDATE audio_blobs SET format = ?, duration_ms = ?, waveform = ?, variant_id = ?, "
+                + "processed_at = CURRENT_TIMESTAMP WHERE blob_id = ?";
         try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, sender);
-            pstmt.setString(2, text);
-            pstmt.setString(3, type);
+            pstmt.setString(1, info.getFormat());
+            if (info.getDurationMs() >= 0) {
+                pstmt.setInt(2, info.getDurationMs());
+            } else {
+                pstmt.setNull(2, Types.INTEGER);
+            }
+            pstmt.setString(3, info.getWaveform());
+            pstmt.setString(4, info.getVariantId());
+            pstmt.setString(5, blobId);
             pstmt.executeUpdate();
         } catch (SQLException e) {
-            System.err.println("Error al guardar mensaje público: " + e.getMessage());
+            System.err.println("Error al guardar los datos de la nota de voz " + blobId + ": " + e.getMessage());
         }
     }
 
-    public List<String> getPublicMessages(int limit) {
-        return getPublicMessages(limit, 0);
+    public AudioTranscoder.NoteInfo findAudioInfo(String blobId) {
+        String sql = "SELECT format, duration_ms, waveform, variant_id FROM audio_blobs "
+                + "WHERE blob_id = ? AND processed_at IS NOT NULL";
+        try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, blobId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    int durationMs = rs.getInt("duration_ms");
+                    return new AudioTranscoder.NoteInfo(rs.getString("format"), rs.wasNull() ? -1 : durationMs,
+                            rs.getString("waveform"), rs.getString("variant_id"));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Error al leer los datos de la nota de voz " + blobId + ": " + e.getMessage());
+        }
+        return null;
     }
 
-    public List<String> getPublicMessages(int limit, int offset) {
-        List<String> messages = new ArrayList<>();
-        String sql = "SELECT sender_username, message_content, message_type, sent_at FROM public_messages ORDER BY sent_at ASC LIMIT ? OFFSET ?";
+    // Notas que AudioTranscoder aún no ha procesado, las más antiguas primero.
+    public List<String> findUnprocessedAudioBlobs(int limit) {
+        String sql = "SELECT blob_id FROM audio_blobs WHERE processed_at IS NULL ORDER BY created_at LIMIT ?";
+        List<String> blobIds = new ArrayList<>();
         try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, limit);
-            pstmt.setInt(2, offset);
-            ResultSet rs = pstmt.executeQuery();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    blobIds.add(rs.getString("blob_id"));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Error al buscar notas de voz sin procesar: " + e.getMessage());
+        }
+        return blobIds;
+    }
+
+    // --- Historial por páginas (keyset sobre (sent_at, id), de lo más reciente hacia atrás) ---
+
+    public static final int MAX_HISTORY_PAGE = 200;
+
+    /** Una página de historial en orden cronológico y el cursor para pedir la anterior. */
+    public static final class HistoryPage {
+        private final List<String> messages;
+        private final String nextCursor;
+        private final boolean hasMore;
+
+        HistoryPage(List<String> messages, String nextCursor, boolean hasMore) {
+            this.messages = messages;
+            this.nextCursor = nextCursor;
+            this.hasMore = hasMore;
+        }
+
+        public List<String> getMessages() {
+            return messages;
+        }
+
+        // null cuando no hay mensajes más antiguos.
+        public String getNextCursor() {
+            return nextCursor;
+        }
+
+        public boolean hasMore() {
+            return hasMore;
+        }
+    }
+
+    private interface RowFormatter {
+        String format(ResultSet rs) throws SQLException;
+    }
+
+    // Las consultas piden limit + 1 filas (de la más nueva a la más vieja) para saber si hay más.
+    private HistoryPage readPage(PreparedStatement pstmt, int limit, RowFormatter formatter) throws SQLException {
+        List<String> messages = new ArrayList<>();
+        HistoryCursor oldest = null;
+        boolean hasMore = false;
+        try (ResultSet rs = pstmt.executeQuery()) {
             while (rs.next()) {
+                if (messages.size() == limit) {
+                    hasMore = true;
+                    break;
+                }
+                messages.add(formatter.format(rs));
+                oldest = new HistoryCursor(rs.getTimestamp("sent_at"), rs.getInt("id"));
+            }
+        }
+        Collections.reverse(messages);
+        return new HistoryPage(messages, hasMore ? oldest.encode() : null, hasMore);
+    }
+
+    private static int pageSize(int limit) {
+        return Math.max(1, Math.min(limit, MAX_HISTORY_PAGE));
+    }
+
+    public HistoryPage getPublicMessages(HistoryCursor before, int limit) {
+        int size = pageSize(limit);
+        String sql = "SELECT id, sender_username, message_content, message_type, sent_at FROM public_messages "
+                + "WHERE (sent_at, id) < (?, ?) ORDER BY sent_at DESC, id DESC LIMIT ?";
+        try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setTimestamp(1, before.getSentAt());
+            pstmt.setInt(2, before.getId());
+            pstmt.setInt(3, size + 1);
+            return readPage(pstmt, size, rs -> {
                 String sender = rs.getString("sender_username");
                 String content = rs.getString("message_content");
-                String type = rs.getString("message_type");
                 String sentAt = rs.getTimestamp("sent_at").toString();
-                if ("AUDIO".equals(type)) {
-                    messages.add(createChatMessage("public_audio", sender, sender, new java.io.File(content).getName(),
-                            null, sentAt));
-                } else {
-                    messages.add(createChatMessage("public", sender, sender, content, null, sentAt));
+                if ("AUDIO".equals(rs.getString("message_type"))) {
+                    return createChatMessage("public_audio", sender, sender, new java.io.File(content).getName(), null,
+                            sentAt);
                 }
-            }
+                return createChatMessage("public", sender, sender, content, null, sentAt);
+            });
         } catch (SQLException e) {
             System.err.println("Error al obtener historial público: " + e.getMessage());
+            return new HistoryPage(new ArrayList<>(), null, false);
         }
-        return messages;
     }
 
     public GroupCreationResult createGroup(String groupName, String ownerUsername) {
@@ -129,6 +427,7 @@ public class DatabaseService {
                 addOwnerStmt.executeUpdate();
             }
             conn.commit();
+            groupIndex.addMember(groupName, ownerUsername);
             return GroupCreationResult.SUCCESS;
         } catch (SQLException e) {
             System.err.println("Error de BD al crear grupo: " + e.getMessage());
@@ -142,6 +441,7 @@ public class DatabaseService {
             pstmt.setString(1, username);
             pstmt.setString(2, groupName);
             pstmt.executeUpdate();
+            groupIndex.addMember(groupName, username);
             return true;
         } catch (SQLException e) {
             return false;
@@ -153,13 +453,20 @@ public class DatabaseService {
         try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setString(1, username);
             pstmt.setString(2, groupName);
-            return pstmt.executeUpdate() > 0;
+            if (pstmt.executeUpdate() > 0) {
+                groupIndex.removeMember(groupName, username);
+                return true;
+            }
+            return false;
         } catch (SQLException e) {
             return false;
         }
     }
 
     public boolean isUserInGroup(String username, String groupName) {
+        if (groupIndexReady()) {
+            return groupIndex.isMember(groupName, username);
+        }
         String sql = "SELECT 1 FROM group_members WHERE username = ? AND group_name = ?";
         try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setString(1, username);
@@ -171,6 +478,9 @@ public class DatabaseService {
     }
 
     public boolean isGroup(String name) {
+        if (groupIndexReady()) {
+            return groupIndex.isGroup(name);
+        }
         String sql = "SELECT 1 FROM chat_groups WHERE group_name = ?";
         try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setString(1, name);
@@ -180,7 +490,15 @@ public class DatabaseService {
         }
     }
 
+    /** Miembros del grupo sin copiarlos (vista de sólo lectura), para repartir mensajes. */
+    public Collection<String> getGroupMembersView(String groupName) {
+        return groupIndexReady() ? groupIndex.getMembers(groupName) : getGroupMembers(groupName);
+    }
+
     public List<String> getGroupMembers(String groupName) {
+        if (groupIndexReady()) {
+            return new ArrayList<>(groupIndex.getMembers(groupName));
+        }
         List<String> members = new ArrayList<>();
         String sql = "SELECT username FROM group_members WHERE group_name = ?";
         try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
@@ -196,97 +514,76 @@ public class DatabaseService {
     }
 
     public void saveGroupMessage(String sender, String groupName, String content, String type) {
-        String sql = "INSERT INTO group_messages (sender_username, group_name, message_content, message_type) VALUES (?, ?, ?, ?)";
-        try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, sender);
-            pstmt.setString(2, groupName);
-            pstmt.setString(3, content);
-            pstmt.setString(4, type);
-            pstmt.executeUpdate();
-        } catch (SQLException e) {
-            System.err.println("Error al guardar mensaje de grupo: " + e.getMessage());
-        }
+        writeBehind.submit(MessageWriteBehind.Kind.GROUP, sender, groupName, content, type);
     }
 
-    public List<String> getGroupMessages(String groupName, int limit) {
-        return getGroupMessages(groupName, limit, 0);
-    }
-
-    public List<String> getGroupMessages(String groupName, int limit, int offset) {
-        List<String> messages = new ArrayList<>();
-        String sql = "SELECT sender_username, message_content, message_type, sent_at FROM group_messages WHERE group_name = ? ORDER BY sent_at ASC LIMIT ? OFFSET ?";
+    public HistoryPage getGroupMessages(String groupName, HistoryCursor before, int limit) {
+        int size = pageSize(limit);
+        String sql = "SELECT id, sender_username, message_content, message_type, sent_at FROM group_messages "
+                + "WHERE group_name = ? AND (sent_at, id) < (?, ?) ORDER BY sent_at DESC, id DESC LIMIT ?";
         try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setString(1, groupName);
-            pstmt.setInt(2, limit);
-            pstmt.setInt(3, offset);
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
+            pstmt.setTimestamp(2, before.getSentAt());
+            pstmt.setInt(3, before.getId());
+            pstmt.setInt(4, size + 1);
+            return readPage(pstmt, size, rs -> {
                 String sender = rs.getString("sender_username");
                 String content = rs.getString("message_content");
-                String type = rs.getString("message_type");
                 String sentAt = rs.getTimestamp("sent_at").toString();
-                if ("AUDIO".equals(type)) {
-                    messages.add(createChatMessage("group_audio", sender, null, new java.io.File(content).getName(),
-                            groupName, sentAt));
-                } else {
-                    messages.add(createChatMessage("group", sender, null, content, groupName, sentAt));
+                if ("AUDIO".equals(rs.getString("message_type"))) {
+                    return createChatMessage("group_audio", sender, null, new java.io.File(content).getName(),
+                            groupName, sentAt);
                 }
-            }
+                return createChatMessage("group", sender, null, content, groupName, sentAt);
+            });
         } catch (SQLException e) {
             System.err.println("Error al obtener historial de grupo: " + e.getMessage());
+            return new HistoryPage(new ArrayList<>(), null, false);
         }
-        return messages;
     }
 
     public void savePrivateMessage(String sender, String recipient, String content, String type) {
-        String sql = "INSERT INTO private_messages (sender_username, recipient_username, message_content, message_type) VALUES (?, ?, ?, ?)";
-        try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, sender);
-            pstmt.setString(2, recipient);
-            pstmt.setString(3, content);
-            pstmt.setString(4, type);
-            pstmt.executeUpdate();
-        } catch (SQLException e) {
-            System.err.println("Error al guardar mensaje privado: " + e.getMessage());
-        }
+        writeBehind.submit(MessageWriteBehind.Kind.PRIVATE, sender, recipient, content, type);
     }
 
-    public List<String> getPrivateMessages(String user1, String user2, int limit) {
-        return getPrivateMessages(user1, user2, limit, 0);
-    }
-
-    public List<String> getPrivateMessages(String user1, String user2, int limit, int offset) {
-        List<String> messages = new ArrayList<>();
-        String sql = "SELECT sender_username, recipient_username, message_content, message_type, sent_at FROM private_messages WHERE (sender_username = ? AND recipient_username = ?) OR (sender_username = ? AND recipient_username = ?) ORDER BY sent_at ASC LIMIT ? OFFSET ?";
+    public HistoryPage getPrivateMessages(String user1, String user2, HistoryCursor before, int limit) {
+        int size = pageSize(limit);
+        // Un recorrido de índice por sentido de la conversación, en vez de un OR que no puede usar el orden.
+        String direction = "(SELECT id, sender_username, recipient_username, message_content, message_type, sent_at "
+                + "FROM private_messages WHERE sender_username = ? AND recipient_username = ? AND (sent_at, id) < (?, ?) "
+                + "ORDER BY sent_at DESC, id DESC LIMIT ?)";
+        String sql = "SELECT * FROM (" + direction + " UNION ALL " + direction + ") m "
+                + "ORDER BY sent_at DESC, id DESC LIMIT ?";
         try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, user1);
-            pstmt.setString(2, user2);
-            pstmt.setString(3, user2);
-            pstmt.setString(4, user1);
-            pstmt.setInt(5, limit);
-            pstmt.setInt(6, offset);
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
+            String[][] pairs = { { user1, user2 }, { user2, user1 } };
+            int i = 1;
+            for (String[] pair : pairs) {
+                pstmt.setString(i++, pair[0]);
+                pstmt.setString(i++, pair[1]);
+                pstmt.setTimestamp(i++, before.getSentAt());
+                pstmt.setInt(i++, before.getId());
+                pstmt.setInt(i++, size + 1);
+            }
+            pstmt.setInt(i, size + 1);
+            return readPage(pstmt, size, rs -> {
                 String sender = rs.getString("sender_username");
                 String recipient = rs.getString("recipient_username");
                 String content = rs.getString("message_content");
-                String type = rs.getString("message_type");
                 String sentAt = rs.getTimestamp("sent_at").toString();
                 String subType = sender.equals(user1) ? "private_to" : "private_from";
                 String party = sender.equals(user1) ? recipient : sender;
-                if ("AUDIO".equals(type)) {
+                if ("AUDIO".equals(rs.getString("message_type"))) {
                     // Convert private_to -> private_audio_to, private_from -> private_audio_from
                     String audioSubType = subType.replace("private_", "private_audio_");
-                    messages.add(createChatMessage(audioSubType, sender, party,
-                            new java.io.File(content).getName(), null, sentAt));
-                } else {
-                    messages.add(createChatMessage(subType, sender, party, content, null, sentAt));
+                    return createChatMessage(audioSubType, sender, party, new java.io.File(content).getName(), null,
+                            sentAt);
                 }
-            }
+                return createChatMessage(subType, sender, party, content, null, sentAt);
+            });
         } catch (SQLException e) {
             System.err.println("Error al obtener historial privado: " + e.getMessage());
+            return new HistoryPage(new ArrayList<>(), null, false);
         }
-        return messages;
     }
 
     public List<String> getPrivateChatPartners(String username) {
@@ -307,7 +604,135 @@ public class DatabaseService {
         return partners;
     }
 
+    // --- Sincronización al iniciar sesión ---
+
+    // Tope del contador de no leídos: contar más allá no cambia lo que ve el cliente ("100+").
+    public static final int MAX_UNREAD_COUNT = 100;
+
+    /**
+     * Un resumen por conversación del usuario (general, sus grupos y sus chats privados):
+     * último mensaje, cantidad de no leídos y marca de agua (sent_at del último mensaje).
+     * Todo se consulta con una sola conexión y sin leer el historial completo.
+     */
+    public List<JsonObject> getSyncSummaries(String username) {
+        List<JsonObject> summaries = new ArrayList<>();
+        // Antes de tomar la conexión: cada una usa la suya y no se deben retener dos a la vez.
+        List<String> groups = getUserGroups(username);
+        List<String> partners = getPrivateChatPartners(username);
+        try (Connection conn = getConnection()) {
+            Map<String, Timestamp> readState = loadReadState(conn, username);
+
+            summaries.add(buildSummary(conn, "general", "General",
+                    "SELECT sender_username, message_content, message_type, sent_at FROM public_messages ORDER BY sent_at DESC, id DESC LIMIT 1",
+                    new String[0],
+                    "SELECT COUNT(*) FROM (SELECT 1 FROM public_messages WHERE sent_at > ? AND sender_username <> ? LIMIT "
+                            + MAX_UNREAD_COUNT + ") t",
+                    new String[] { username }, readState.get("general:General"), username));
+
+            for (String group : groups) {
+                summaries.add(buildSummary(conn, "group", group,
+                        "SELECT sender_username, message_content, message_type, sent_at FROM group_messages WHERE group_name = ? ORDER BY sent_at DESC, id DESC LIMIT 1",
+                        new String[] { group },
+                        "SELECT COUNT(*) FROM (SELECT 1 FROM group_messages WHERE sent_at > ? AND group_name = ? AND sender_username <> ? LIMIT "
+                                + MAX_UNREAD_COUNT + ") t",
+                        new String[] { group, username }, readState.get("group:" + group), username));
+            }
+
+            for (String partner : partners) {
+                summaries.add(buildSummary(conn, "private", partner,
+                        "SELECT sender_username, message_content, message_type, sent_at FROM private_messages WHERE (sender_username = ? AND recipient_username = ?) OR (sender_username = ? AND recipient_username = ?) ORDER BY sent_at DESC, id DESC LIMIT 1",
+                        new String[] { username, partner, partner, username },
+                        "SELECT COUNT(*) FROM (SELECT 1 FROM private_messages WHERE sent_at > ? AND sender_username = ? AND recipient_username = ? LIMIT "
+                                + MAX_UNREAD_COUNT + ") t",
+                        new String[] { partner, username }, readState.get("private:" + partner), username));
+            }
+        } catch (SQLException e) {
+            System.err.println("Error al obtener el resumen de conversaciones: " + e.getMessage());
+        }
+        return summaries;
+    }
+
+    private Map<String, Timestamp> loadReadState(Connection conn, String username) throws SQLException {
+        Map<String, Timestamp> readState = new HashMap<>();
+        String sql = "SELECT chat_type, chat_name, last_read_at FROM chat_read_state WHERE username = ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, username);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                readState.put(rs.getString("chat_type") + ":" + rs.getString("chat_name"), rs.getTimestamp("last_read_at"));
+            }
+        }
+        return readState;
+    }
+
+    private JsonObject buildSummary(Connection conn, String chatType, String chatName, String lastSql,
+            String[] lastParams, String unreadSql, String[] unreadParams, Timestamp lastReadAt, String username)
+            throws SQLException {
+        JsonObject summary = new JsonObject();
+        summary.addProperty("chat_type", chatType);
+        summary.addProperty("chat_name", chatName);
+
+        try (PreparedStatement pstmt = conn.prepareStatement(lastSql)) {
+            for (int i = 0; i < lastParams.length; i++) {
+                pstmt.setString(i + 1, lastParams[i]);
+            }
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next()) {
+                String sender = rs.getString("sender_username");
+                String content = rs.getString("message_content");
+                String sentAt = rs.getTimestamp("sent_at").toString();
+                boolean audio = "AUDIO".equals(rs.getString("message_type"));
+                String text = audio ? new java.io.File(content).getName() : content;
+                String message;
+                if ("general".equals(chatType)) {
+                    message = createChatMessage(audio ? "public_audio" : "public", sender, null, text, null, sentAt);
+                } else if ("group".equals(chatType)) {
+                    message = createChatMessage(audio ? "group_audio" : "group", sender, null, text, chatName, sentAt);
+                } else {
+                    String subType = sender.equals(username) ? "private_to" : "private_from";
+                    if (audio) {
+                        subType = subType.replace("private_", "private_audio_");
+                    }
+                    message = createChatMessage(subType, sender, chatName, text, null, sentAt);
+                }
+                summary.add("last_message", JsonParser.parseString(message));
+                summary.addProperty("high_water_mark", sentAt);
+            }
+        }
+
+        try (PreparedStatement pstmt = conn.prepareStatement(unreadSql)) {
+            pstmt.setTimestamp(1, lastReadAt != null ? lastReadAt : new Timestamp(0));
+            for (int i = 0; i < unreadParams.length; i++) {
+                pstmt.setString(i + 2, unreadParams[i]);
+            }
+            ResultSet rs = pstmt.executeQuery();
+            int unread = rs.next() ? rs.getInt(1) : 0;
+            summary.addProperty("unread", unread);
+            summary.addProperty("unread_capped", unread >= MAX_UNREAD_COUNT);
+        }
+        return summary;
+    }
+
+    // Avanza la marca de lectura del usuario en una conversación (nunca hacia atrás).
+    public void markRead(String username, String chatType, String chatName, Timestamp readUpTo) {
+        String sql = "INSERT INTO chat_read_state (username, chat_type, chat_name, last_read_at) VALUES (?, ?, ?, ?) "
+                + "ON CONFLICT (username, chat_type, chat_name) "
+                + "DO UPDATE SET last_read_at = GREATEST(chat_read_state.last_read_at, EXCLUDED.last_read_at)";
+        try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, username);
+            pstmt.setString(2, chatType);
+            pstmt.setString(3, chatName);
+            pstmt.setTimestamp(4, readUpTo);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            System.err.println("Error al guardar el estado de lectura: " + e.getMessage());
+        }
+    }
+
     public List<String> getUserGroups(String username) {
+        if (groupIndexReady()) {
+            return new ArrayList<>(groupIndex.getGroups(username));
+        }
         List<String> groups = new ArrayList<>();
         String sql = "SELECT group_name FROM group_members WHERE username = ?";
         try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
@@ -324,20 +749,7 @@ public class DatabaseService {
 
     private String createChatMessage(String subType, String sender, String party, String text, String group,
             String sentAt) {
-        Gson gson = new Gson();
-        JsonObject json = new JsonObject();
-        json.addProperty("type", "chat");
-        json.addProperty("sub_type", subType);
-        json.addProperty("sender", sender);
-        json.addProperty("party", party);
-        json.addProperty("text", text);
-        if (group != null) {
-            json.addProperty("group", group);
-        }
-        if (sentAt != null) {
-            json.addProperty("sent_at", sentAt);
-        }
-        return gson.toJson(json);
+        return FrameEncoder.chat(subType, sender, party, text, group, sentAt);
     }
 
     // Método sobrecargado para compatibilidad
@@ -0,0 +1,150 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Escritura directa de los frames JSON de salida, sin construir un árbol JsonObject
+ * ni pasar por Gson: se escriben los campos uno tras otro en un StringBuilder que
+ * cada hilo reutiliza. La salida es la misma que daba gson.toJson sobre el árbol
+ * equivalente: mismos campos en el mismo orden, los null se omiten y las cadenas se
+ * escapan igual (también &lt; &gt; &amp; = ' como escapes unicode, el modo HTML de Gson).
+ *
+ * Uso: FrameEncoder.begin("call_accepted").field("with", user).field("session_id", id).end().
+ * Entre begin y end no se puede empezar otro frame en el mismo hilo.
+ *
+ * Los frames que nunca cambian se guardan ya codificados (WELCOME, CALL_ENDED) y
+ * se envían con ClientHandler.sendFrame, sin volver a generarlos.
+ */
+public final class FrameEncoder {
+    // Un historial grande agranda el búfer; por encima de esto no se conserva para el siguiente frame.
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final ThreadLocal<FrameEncoder> LOCAL = ThreadLocal.withInitial(FrameEncoder::new);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    public static final ByteBuffer WELCOME = Frames.encode(notification("¡Bienvenido!"));
+    public static final ByteBuffer CALL_ENDED = Frames.encode(begin("call_ended").end());
+
+    private StringBuilder out = new StringBuilder(256);
+
+    private FrameEncoder() {
+    }
+
+    /** Empieza un frame {"type":type,...} con el búfer del hilo actual. */
+    public static FrameEncoder begin(String type) {
+        FrameEncoder encoder = LOCAL.get();
+        encoder.out.setLength(0);
+        encoder.out.append("{\"type\":");
+        encoder.string(type);
+        return encoder;
+    }
+
+    public static String notification(String message) {
+        return begin("notification").field("message", message).end();
+    }
+
+    // sentAt null: el frame va sin marca de tiempo (los de historial antiguos no la tenían).
+    public static String chat(String subType, String sender, String party, String text, String group,
+            String sentAt) {
+        return begin("chat").field("sub_type", subType).field("sender", sender).field("party", party)
+                .field("text", text).field("group", group).field("sent_at", sentAt).end();
+    }
+
+    // Los nombres de campo son constantes del protocolo y no se escapan.
+    public FrameEncoder field(String name, String value) {
+        if (value != null) {
+            name(name);
+            string(value);
+        }
+        return this;
+    }
+
+    public FrameEncoder field(String name, long value) {
+        name(name);
+        out.append(value);
+        return this;
+    }
+
+    public FrameEncoder field(String name, boolean value) {
+        name(name);
+        out.append(value);
+        return this;
+    }
+
+    public FrameEncoder field(String name, List<String> values) {
+        name(name);
+        out.append('[');
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            string(values.get(i));
+        }
+        out.append(']');
+        return this;
+    }
+
+    /** Array de objetos JSON ya codificados (p. ej. los mensajes de una página de historial). */
+    public FrameEncoder rawArray(String name, List<String> jsonObjects) {
+        name(name);
+        out.append('[');
+        for (int i = 0; i < jsonObjects.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(jsonObjects.get(i));
+        }
+        out.append(']');
+        return this;
+    }
+
+    public String end() {
+        out.append('}');
+        String frame = out.toString();
+        if (out.capacity() > MAX_RETAINED_CAPACITY) {
+            out = new StringBuilder(256);
+        }
+        return frame;
+    }
+
+    private void name(String name) {
+        out.append(",\"").append(name).append("\":");
+    }
+
+    // Mismo escape que JsonWriter de Gson con htmlSafe (su configuración por defecto).
+    private void string(String value) {
+        out.append('"');
+        int start = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String replacement;
+            if (c < 0x20) {
+                switch (c) {
+                    case '\t': replacement = "\\t"; break;
+                    case '\b': replacement = "\\b"; break;
+                    case '\n': replacement = "\\n"; break;
+                    case '\r': replacement = "\\r"; break;
+                    case '\f': replacement = "\\f"; break;
+                    default: replacement = null; break;
+                }
+            } else if (c == '"') {
+                replacement = "\\\"";
+            } else if (c == '\\') {
+                replacement = "\\\\";
+            } else if (c == '<' || c == '>' || c == '&' || c == '=' || c == '\'' || c == 0x2028 || c == 0x2029) {
+                replacement = null;
+            } else {
+                continue;
+            }
+            out.append(value, start, i);
+            if (replacement != null) {
+                out.append(replacement);
+            } else {
+                out.append("\\u").append(HEX[c >> 12]).append(HEX[(c >> 8) & 0xF]).append(HEX[(c >> 4) & 0xF])
+                        .append(HEX[c & 0xF]);
+            }
+            start = i + 1;
+        }
+        out.append(value, start, length);
+        out.append('"');
+    }
+}
@@ -0,0 +1,26 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Codificación de frames de salida (una línea JSON + '\n' en UTF-8).
+ * Un broadcast codifica el frame una sola vez y todos los destinatarios
+ * comparten el mismo ByteBuffer de sólo lectura; cada transporte encola
+ * un duplicate() con su propia posición.
+ *
+ * Se usan búferes del heap aunque haya muchos destinatarios: reservar uno directo
+ * por broadcast sale más caro que la copia a la caché de búferes temporales que
+ * el propio NIO reutiliza por hilo al escribir.
+ */
+public final class Frames {
+
+    private Frames() {
+    }
+
+    public static ByteBuffer encode(String json) {
+        return ByteBuffer.wrap(toBytes(json)).asReadOnlyBuffer();
+    }
+
+    private static byte[] toBytes(String json) {
+        return (json + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+}
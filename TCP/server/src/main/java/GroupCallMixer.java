@@ -0,0 +1,533 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Llamadas de grupo, en uno de dos modos según el tamaño del grupo:
+ *
+ * MIX: cada participante envía su audio PCM16 al relay UDP como en una llamada 1:1;
+ * cada 20 ms el hilo "group-call-mixer" toma un bloque de cada uno, suma las voces
+ * de los MAX_SPEAKERS más fuertes y devuelve a cada oyente una sola mezcla sin su
+ * propia voz. Los búferes se crean al unirse: el tick no reserva memoria.
+ *
+ * FORWARD (grupos de más de FORWARD_THRESHOLD miembros): el servidor no decodifica
+ * nada. Cada 100 ms elige a los FORWARD_SPEAKERS con más nivel de voz (el que trae
+ * la cabecera MediaHeader) y sólo los paquetes de ésos se reenvían a los demás, con
+ * el id de fuente del emisor en lugar del id de sesión; cada cliente mezcla lo que recibe.
+ */
+public class GroupCallMixer {
+    static final int SAMPLE_RATE = 16000;
+    static final int TICK_MS = 20;
+    static final int FRAME_SAMPLES = SAMPLE_RATE * TICK_MS / 1000;
+    // El audio de un participante se empieza a leer cuando hay este margen; absorbe los
+    // bloques de 64 ms del cliente sin cortes entre ticks.
+    private static final int PREBUFFER_SAMPLES = FRAME_SAMPLES * 4;
+    // Si el emisor se adelanta más que esto se descarta lo más antiguo.
+    private static final int INPUT_CAPACITY = FRAME_SAMPLES * 16;
+    private static final int MAX_SPEAKERS = ServerConfig.getInt("chat.call.group.maxSpeakers", 4);
+    private static final int MAX_PARTICIPANTS = ServerConfig.getInt("chat.call.group.maxParticipants", 16);
+    // El reenvío no decodifica ni mezcla: admite salas mucho mayores.
+    private static final int MAX_FORWARD_PARTICIPANTS = ServerConfig.getInt("chat.call.group.maxForwardParticipants", 200);
+    private static final int FORWARD_THRESHOLD = ServerConfig.getInt("chat.call.group.forwardThreshold", 8);
+    private static final int FORWARD_SPEAKERS = ServerConfig.getInt("chat.call.group.forwardSpeakers", 3);
+    private static final int SELECT_EVERY_TICKS = 5;
+    private static final int METRICS_EVERY_TICKS = 500;
+    // Por debajo de este nivel (unos -43 dBFS) no se considera que alguien hable.
+    private static final int MIN_SPEECH_LEVEL = 20;
+    // Ventaja de quien ya se reenvía, para no alternar entre dos voces parecidas.
+    private static final int SPEAKER_HYSTERESIS = 4;
+    private static final long SPEAKER_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(300);
+
+    public enum Mode {
+        MIX, FORWARD
+    }
+
+    private final ConcurrentHashMap<String, Conference> conferencesByGroup = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Participant> participantsByUser = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<SocketAddress, Participant> participantsByAddress = new ConcurrentHashMap<>();
+    // Copia que recorre el tick; se reemplaza al crear o cerrar una llamada.
+    private volatile Conference[] activeConferences = new Conference[0];
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile DatagramChannel channel;
+    private ScheduledExecutorService scheduler;
+    private long ticks;
+
+    // Canal del relay por el que salen las mezclas; lo pasa UdpServer al arrancar.
+    public void attach(DatagramChannel channel) {
+        this.channel = channel;
+    }
+
+    // Un grupo grande se reenvía en vez de mezclarse.
+    public static Mode modeForGroupSize(int members) {
+        return members > FORWARD_THRESHOLD ? Mode.FORWARD : Mode.MIX;
+    }
+
+    /**
+     * Une al usuario a la llamada del grupo; si no existe la crea en el modo y con el
+     * códec indicados (el mezclador sólo entiende PCM16). null si está llena.
+     */
+    public Conference join(String group, String username, SocketAddress address, Mode mode, String codec) {
+        lock.lock();
+        try {
+            Participant current = participantsByUser.get(username);
+            if (current != null) {
+                if (current.conference.group.equals(group)) {
+                    return current.conference;
+                }
+                leave(username);
+            }
+            Conference conference = conferencesByGroup.get(group);
+            if (conference == null) {
+                conference = new Conference(group, ThreadLocalRandom.current().nextInt(), mode,
+                        mode == Mode.MIX ? CallSessionRegistry.DEFAULT_CODEC : codec);
+                conferencesByGroup.put(group, conference);
+                publishConferences();
+                startScheduler();
+                System.out.println("Llamada de grupo iniciada en " + group + " (" + mode + ")");
+            }
+            int limit = conference.mode == Mode.FORWARD ? MAX_FORWARD_PARTICIPANTS : MAX_PARTICIPANTS;
+            if (conference.participants.length >= limit) {
+                return null;
+            }
+            Participant participant = new Participant(username, conference, conference.nextSourceId++, address);
+            conference.add(participant);
+            participantsByUser.put(username, participant);
+            participantsByAddress.put(address, participant);
+            return conference;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Saca al usuario de su llamada de grupo; devuelve la llamada que dejó o null. */
+    public Conference leave(String username) {
+        lock.lock();
+        try {
+            Participant participant = participantsByUser.remove(username);
+            if (participant == null) {
+                return null;
+            }
+            participantsByAddress.remove(participant.address, participant);
+            Conference conference = participant.conference;
+            conference.remove(participant);
+            if (conference.participants.length == 0) {
+                conferencesByGroup.remove(conference.group, conference);
+                publishConferences();
+                System.out.println("Llamada de grupo finalizada en " + conference.group + ": "
+                        + conference.describeMetrics());
+            }
+            return conference;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // El cliente volvió a registrar su dirección UDP (p. ej. cambió de puerto).
+    public void updateAddress(String username, SocketAddress address) {
+        lock.lock();
+        try {
+            Participant participant = participantsByUser.get(username);
+            if (participant != null && !participant.address.equals(address)) {
+                participantsByAddress.remove(participant.address, participant);
+                participant.address = address;
+                participantsByAddress.put(address, participant);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isInGroupCall(String username) {
+        return participantsByUser.containsKey(username);
+    }
+
+    public Conference getConference(String group) {
+        return conferencesByGroup.get(group);
+    }
+
+    // Una búsqueda por paquete, como MediaRoute en las llamadas 1:1.
+    public Participant getParticipant(SocketAddress address) {
+        return participantsByAddress.get(address);
+    }
+
+    // Llamar con el candado tomado.
+    private void publishConferences() {
+        activeConferences = conferencesByGroup.values().toArray(new Conference[0]);
+    }
+
+    // Llamar con el candado tomado.
+    private void startScheduler() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread t = new Thread(runnable, "group-call-mixer");
+            t.setDaemon(true);
+            t.setPriority(Thread.MAX_PRIORITY);
+            return t;
+        });
+        scheduler.scheduleAtFixedRate(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void tick() {
+        DatagramChannel out = channel;
+        if (out == null) {
+            return;
+        }
+        long tick = ++ticks;
+        Conference[] conferences = activeConferences;
+        for (int i = 0; i < conferences.length; i++) {
+            try {
+                conferences[i].tick(out, tick);
+            } catch (RuntimeException e) {
+                // Que una llamada con problemas no detenga el tick de las demás.
+                System.err.println("Error mezclando la llamada de " + conferences[i].group + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /** Llamada de un grupo: id de sesión para la cabecera, modo, participantes y métricas. */
+    public static final class Conference {
+        final String group;
+        final int sessionId;
+        final Mode mode;
+        final String codec;
+        // Copia que lee el tick; se reemplaza al entrar o salir alguien.
+        volatile Participant[] participants = new Participant[0];
+        private final int[] mix = new int[FRAME_SAMPLES];
+        // Sólo se usa con el candado de GroupCallMixer tomado.
+        int nextSourceId = 1;
+
+        private final LongAdder packetsIn = new LongAdder();
+        private final LongAdder packetsForwarded = new LongAdder();
+        private final LongAdder packetsSuppressed = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+
+        Conference(String group, int sessionId, Mode mode, String codec) {
+            this.group = group;
+            this.sessionId = sessionId;
+            this.mode = mode;
+            this.codec = codec;
+        }
+
+        public Mode getMode() {
+            return mode;
+        }
+
+        // En FORWARD el servidor no transcodifica: todos envían con el códec de quien abrió la llamada.
+        public String getCodec() {
+            return codec;
+        }
+
+        public long getPacketsIn() {
+            return packetsIn.sum();
+        }
+
+        public long getPacketsForwarded() {
+            return packetsForwarded.sum();
+        }
+
+        // Paquetes de participantes que no estaban entre los hablantes elegidos.
+        public long getPacketsSuppressed() {
+            return packetsSuppressed.sum();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        public List<String> getSpeakerNames() {
+            Participant[] current = participants;
+            List<String> names = new ArrayList<>();
+            for (Participant participant : current) {
+                if (mode == Mode.FORWARD ? participant.forwarding : participant.speaking) {
+                    names.add(participant.username);
+                }
+            }
+            return names;
+        }
+
+        public String describeMetrics() {
+            return mode + ", " + participants.length + " participantes, " + getPacketsIn() + " paquetes recibidos, "
+                    + getPacketsForwarded() + " enviados, " + getPacketsSuppressed() + " suprimidos, "
+                    + getBytesOut() / 1024 + " KB enviados, hablando " + getSpeakerNames();
+        }
+
+        void tick(DatagramChannel out, long tick) {
+            if (mode == Mode.MIX) {
+                mix(out);
+            } else if (tick % SELECT_EVERY_TICKS == 0) {
+                selectForwarders();
+            }
+            if (tick % METRICS_EVERY_TICKS == 0) {
+                System.out.println("Llamada de grupo " + group + ": " + describeMetrics());
+            }
+        }
+
+        // Modo FORWARD, en el hilo del relay: reenvía el paquete tal cual si el emisor es de los elegidos.
+        void forward(Participant sender, ByteBuffer packet, DatagramChannel out) throws IOException {
+            int level = MediaHeader.level(packet);
+            // Sube de inmediato y baja suavizado, para no perder el inicio de una frase.
+            sender.level = level > sender.level ? level : (3 * sender.level + level) / 4;
+            sender.lastHeard = System.nanoTime();
+            packetsIn.increment();
+            if (!sender.forwarding) {
+                packetsSuppressed.increment();
+                return;
+            }
+            MediaHeader.setSessionId(packet, sender.sourceId);
+            int position = packet.position();
+            int size = packet.remaining();
+            Participant[] current = participants;
+            for (int i = 0; i < current.length; i++) {
+                Participant listener = current[i];
+                if (listener != sender) {
+                    out.send(packet, listener.address);
+                    packet.position(position);
+                    packetsForwarded.increment();
+                    bytesOut.add(size);
+                }
+            }
+        }
+
+        // Modo FORWARD, en el tick: los FORWARD_SPEAKERS con más nivel entre los que hablan.
+        private void selectForwarders() {
+            Participant[] current = participants;
+            long now = System.nanoTime();
+            for (int i = 0; i < current.length; i++) {
+                current[i].selected = false;
+            }
+            for (int k = 0; k < FORWARD_SPEAKERS; k++) {
+                Participant best = null;
+                int bestScore = 0;
+                for (int i = 0; i < current.length; i++) {
+                    Participant p = current[i];
+                    if (p.selected || p.level < MIN_SPEECH_LEVEL || now - p.lastHeard > SPEAKER_TIMEOUT_NANOS) {
+                        continue;
+                    }
+                    int score = p.level + (p.forwarding ? SPEAKER_HYSTERESIS : 0);
+                    if (score > bestScore) {
+                        best = p;
+                        bestScore = score;
+                    }
+                }
+                if (best == null) {
+                    break;
+                }
+                best.selected = true;
+            }
+            for (int i = 0; i < current.length; i++) {
+                current[i].forwarding = current[i].selected;
+            }
+        }
+
+        public String getGroup() {
+            return group;
+        }
+
+        public int getSessionId() {
+            return sessionId;
+        }
+
+        public List<String> getParticipantNames() {
+            Participant[] current = participants;
+            List<String> names = new ArrayList<>(current.length);
+            for (Participant participant : current) {
+                names.add(participant.username);
+            }
+            return Collections.unmodifiableList(names);
+        }
+
+        void add(Participant participant) {
+            Participant[] current = participants;
+            Participant[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = participant;
+            participants = next;
+        }
+
+        void remove(Participant participant) {
+            Participant[] current = participants;
+            Participant[] next = new Participant[current.length - 1];
+            int j = 0;
+            for (Participant p : current) {
+                if (p != participant && j < next.length) {
+                    next[j++] = p;
+                }
+            }
+            participants = next;
+        }
+
+        // Un tick: lee un bloque de cada participante, suma los más fuertes y envía a cada uno su mezcla.
+        void mix(DatagramChannel out) {
+            Participant[] current = participants;
+            for (int i = 0; i < current.length; i++) {
+                current[i].readFrame();
+            }
+            selectSpeakers(current);
+            Arrays.fill(mix, 0);
+            for (int i = 0; i < current.length; i++) {
+                Participant p = current[i];
+                if (p.speaking) {
+                    for (int s = 0; s < FRAME_SAMPLES; s++) {
+                        mix[s] += p.frame[s];
+                    }
+                }
+            }
+            for (int i = 0; i < current.length; i++) {
+                current[i].sendMix(out, mix, sessionId);
+                packetsForwarded.increment();
+                bytesOut.add(MediaHeader.LENGTH + FRAME_SAMPLES * 2);
+            }
+        }
+
+        // Marca como hablantes hasta MAX_SPEAKERS participantes con audio, por energía.
+        private static void selectSpeakers(Participant[] current) {
+            for (int i = 0; i < current.length; i++) {
+                current[i].speaking = false;
+            }
+            for (int k = 0; k < MAX_SPEAKERS; k++) {
+                Participant loudest = null;
+                for (int i = 0; i < current.length; i++) {
+                    Participant p = current[i];
+                    if (!p.speaking && p.energy > 0 && (loudest == null || p.energy > loudest.energy)) {
+                        loudest = p;
+                    }
+                }
+                if (loudest == null) {
+                    return;
+                }
+                loudest.speaking = true;
+            }
+        }
+    }
+
+    /** Participante de una llamada de grupo con su búfer de entrada y el de salida ya reservados. */
+    public static final class Participant {
+        final String username;
+        final Conference conference;
+        // Identifica su audio ante los demás en el modo FORWARD.
+        final int sourceId;
+        volatile SocketAddress address;
+
+        // Modo FORWARD: nivel suavizado (lo escribe el relay) y si el tick lo eligió.
+        volatile int level;
+        volatile long lastHeard;
+        volatile boolean forwarding;
+        boolean selected;
+
+        // Anillo de muestras recibidas; lo escriben los hilos del relay y lo lee el tick.
+        private final short[] input = new short[INPUT_CAPACITY];
+        private int readIndex;
+        private int available;
+        private boolean primed;
+        private final ReentrantLock inputLock = new ReentrantLock();
+
+        // Sólo los toca el hilo del mezclador.
+        final short[] frame = new short[FRAME_SAMPLES];
+        long energy;
+        boolean speaking;
+        private final ByteBuffer packet = ByteBuffer.allocateDirect(MediaHeader.LENGTH + FRAME_SAMPLES * 2);
+        private int sequence;
+        private int timestamp;
+
+        Participant(String username, Conference conference, int sourceId, SocketAddress address) {
+            this.username = username;
+            this.conference = conference;
+            this.sourceId = sourceId;
+            this.address = address;
+        }
+
+        /** Entrada desde UdpServer: al mezclador (sólo PCM16) o al reenvío, según el modo. */
+        public void receive(ByteBuffer packet, DatagramChannel out) throws IOException {
+            if (MediaHeader.sessionId(packet) != conference.sessionId) {
+                return;
+            }
+            if (conference.mode == Mode.FORWARD) {
+                conference.forward(this, packet, out);
+            } else if (MediaHeader.payloadType(packet) == MediaHeader.PAYLOAD_PCM16) {
+                conference.packetsIn.increment();
+                write(packet);
+            }
+        }
+
+        // Copia el PCM16 (little endian) del paquete, sin mover la posición del búfer.
+        void write(ByteBuffer packet) {
+            int start = packet.position() + MediaHeader.LENGTH;
+            int samples = (packet.limit() - start) / 2;
+            inputLock.lock();
+            try {
+                for (int i = 0; i < samples; i++) {
+                    if (available == INPUT_CAPACITY) {
+                        // Lleno: se pierde lo más antiguo para no acumular retardo.
+                        readIndex = (readIndex + 1) % INPUT_CAPACITY;
+                        available--;
+                    }
+                    input[(readIndex + available) % INPUT_CAPACITY] = Short.reverseBytes(packet.getShort(start + 2 * i));
+                    available++;
+                }
+            } finally {
+                inputLock.unlock();
+            }
+        }
+
+        // Saca un bloque de 20 ms a frame, o silencio si aún no hay margen suficiente.
+        void readFrame() {
+            long sum = 0;
+            inputLock.lock();
+            try {
+                if (!primed && available >= PREBUFFER_SAMPLES) {
+                    primed = true;
+                }
+                if (!primed || available < FRAME_SAMPLES) {
+                    primed = false;
+                    Arrays.fill(frame, (short) 0);
+                    energy = 0;
+                    return;
+                }
+                for (int s = 0; s < FRAME_SAMPLES; s++) {
+                    short sample = input[readIndex];
+                    frame[s] = sample;
+                    sum += (long) sample * sample;
+                    readIndex = (readIndex + 1) % INPUT_CAPACITY;
+                }
+                available -= FRAME_SAMPLES;
+            } finally {
+                inputLock.unlock();
+            }
+            energy = sum;
+        }
+
+        // La mezcla menos la voz propia, recortada a 16 bits.
+        void sendMix(DatagramChannel out, int[] mix, int sessionId) {
+            packet.clear();
+            MediaHeader.write(packet, MediaHeader.PAYLOAD_PCM16, sequence, timestamp, sessionId);
+            packet.order(ByteOrder.LITTLE_ENDIAN);
+            for (int s = 0; s < FRAME_SAMPLES; s++) {
+                int sample = speaking ? mix[s] - frame[s] : mix[s];
+                packet.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample)));
+            }
+            packet.order(ByteOrder.BIG_ENDIAN);
+            packet.flip();
+            sequence = (sequence + 1) & 0xFFFF;
+            timestamp += FRAME_SAMPLES;
+            try {
+                out.send(packet, address);
+            } catch (IOException e) {
+                System.err.println("Error enviando la mezcla a " + username + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Copia en memoria de chat_groups y group_members: grupo -> miembros y usuario -> grupos.
+ * Se carga al arrancar y DatabaseService la actualiza después de cada cambio confirmado
+ * en la base de datos, así que comprobar la membresía o repartir un mensaje de grupo
+ * no necesita consultas.
+ */
+public class GroupMembershipIndex {
+
+    private final ConcurrentHashMap<String, Set<String>> membersByGroup = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> groupsByUser = new ConcurrentHashMap<>();
+    private volatile boolean loaded;
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    void markLoaded() {
+        loaded = true;
+    }
+
+    public void addGroup(String groupName) {
+        membersByGroup.computeIfAbsent(groupName, g -> ConcurrentHashMap.newKeySet());
+    }
+
+    public void addMember(String groupName, String username) {
+        membersByGroup.computeIfAbsent(groupName, g -> ConcurrentHashMap.newKeySet()).add(username);
+        groupsByUser.computeIfAbsent(username, u -> ConcurrentHashMap.newKeySet()).add(groupName);
+    }
+
+    public void removeMember(String groupName, String username) {
+        Set<String> members = membersByGroup.get(groupName);
+        if (members != null) {
+            members.remove(username);
+        }
+        Set<String> groups = groupsByUser.get(username);
+        if (groups != null) {
+            groups.remove(groupName);
+        }
+    }
+
+    public boolean isGroup(String groupName) {
+        return membersByGroup.containsKey(groupName);
+    }
+
+    public boolean isMember(String groupName, String username) {
+        Set<String> members = membersByGroup.get(groupName);
+        return members != null && members.contains(username);
+    }
+
+    /** Vista de sólo lectura (viva) de los miembros; vacía si el grupo no existe. */
+    public Set<String> getMembers(String groupName) {
+        Set<String> members = membersByGroup.get(groupName);
+        return members != null ? Collections.unmodifiableSet(members) : Collections.emptySet();
+    }
+
+    /** Vista de sólo lectura (viva) de los grupos del usuario. */
+    public Set<String> getGroups(String username) {
+        Set<String> groups = groupsByUser.get(username);
+        return groups != null ? Collections.unmodifiableSet(groups) : Collections.emptySet();
+    }
+}
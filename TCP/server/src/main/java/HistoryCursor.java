@@ -0,0 +1,53 @@
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Base64;
+
+/**
+ * Posición en un historial: (sent_at, id) del mensaje más antiguo ya entregado.
+ * Viaja al cliente como texto opaco (Base64) y vuelve en get_chat_history para
+ * pedir la página anterior con WHERE (sent_at, id) < (?, ?), sin OFFSET.
+ */
+public final class HistoryCursor {
+
+    // Sin cursor se empieza por lo más reciente: cualquier mensaje es "anterior" a esto.
+    public static final HistoryCursor NEWEST = new HistoryCursor(Timestamp.valueOf("9999-12-31 23:59:59"),
+            Integer.MAX_VALUE);
+
+    private final Timestamp sentAt;
+    private final int id;
+
+    public HistoryCursor(Timestamp sentAt, int id) {
+        this.sentAt = sentAt;
+        this.id = id;
+    }
+
+    public Timestamp getSentAt() {
+        return sentAt;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String encode() {
+        long seconds = Math.floorDiv(sentAt.getTime(), 1000);
+        String raw = seconds + ":" + sentAt.getNanos() + ":" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Devuelve NEWEST si no hay cursor; IllegalArgumentException si el cursor no es válido.
+    public static HistoryCursor decode(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return NEWEST;
+        }
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            String[] parts = raw.split(":");
+            Timestamp sentAt = new Timestamp(Long.parseLong(parts[0]) * 1000);
+            sentAt.setNanos(Integer.parseInt(parts[1]));
+            return new HistoryCursor(sentAt, Integer.parseInt(parts[2]));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Cursor de historial inválido", e);
+        }
+    }
+}
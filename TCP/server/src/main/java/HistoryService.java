@@ -8,14 +8,18 @@ import java.io.IOException;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 // Gestiona la lectura y escritura del historial de chat en un archivo JSON.
 public class HistoryService {
     private static final String HISTORY_FILE = "chat_history.json";
     private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
     private static final Type messageListType = new TypeToken<ArrayList<Message>>() {}.getType();
+    // ReentrantLock en vez de synchronized: la E/S de archivo no fija hilos virtuales.
+    private static final ReentrantLock lock = new ReentrantLock();
 
-    public static synchronized void saveMessage(Message message) {
+    public static void saveMessage(Message message) {
+        lock.lock();
         try {
             List<Message> messages = readMessages();
             messages.add(message);
@@ -24,6 +28,8 @@ public class HistoryService {
             }
         } catch (IOException e) {
             System.err.println("Error al guardar el mensaje en el historial: " + e.getMessage());
+        } finally {
+            lock.unlock();
         }
     }
 
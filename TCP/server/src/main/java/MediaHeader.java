@@ -0,0 +1,62 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Cabecera binaria de 12 bytes de cada paquete de audio de llamada (similar a RTP):
+ *
+ *   0      versión en los bits 7-6 (10) y nivel de voz del emisor en los bits 5-0
+ *          (0 = silencio, 63 = 0 dBFS); el modo reenvío elige con él a quién reenviar
+ *   1      tipo de carga (PAYLOAD_PCM16, ...)
+ *   2-3    número de secuencia (u16, big endian)
+ *   4-7    marca de tiempo en muestras (u32)
+ *   8-11   id de sesión de la llamada (u32), enviado a ambos clientes en call_accepted;
+ *          en el modo reenvío el relay lo sustituye por el id de fuente del emisor
+ *
+ * Los paquetes de control ("hello:usuario") empiezan con un carácter ASCII, nunca con 10 en los bits 7-6.
+ * Debe coincidir con MediaPacket del cliente.
+ */
+public final class MediaHeader {
+
+    public static final int LENGTH = 12;
+    public static final byte VERSION = (byte) 0x80;
+    private static final int VERSION_MASK = 0xC0;
+    private static final int LEVEL_MASK = 0x3F;
+    // Tipos de carga según el códec negociado en la llamada (AudioCodec del cliente).
+    public static final int PAYLOAD_PCM16 = 0; // PCM 16 kHz, 16 bits, mono
+    public static final int PAYLOAD_PCMU = 1; // G.711 µ-law
+    public static final int PAYLOAD_IMA_ADPCM = 2; // IMA ADPCM, 4 bits por muestra
+    // Audio que llega por ICE (VoiceChat.sendAudio) y se reenvía tal cual; los clientes CLI lo ignoran.
+    public static final int PAYLOAD_OPAQUE = 96;
+
+    private MediaHeader() {
+    }
+
+    // Se leen sin mover la posición del búfer: el paquete se reenvía tal cual.
+    public static boolean isMedia(ByteBuffer packet) {
+        return packet.remaining() >= LENGTH && (packet.get(packet.position()) & VERSION_MASK) == (VERSION & VERSION_MASK);
+    }
+
+    public static int level(ByteBuffer packet) {
+        return packet.get(packet.position()) & LEVEL_MASK;
+    }
+
+    // Escribe la cabecera en la posición actual y la avanza LENGTH bytes.
+    public static void write(ByteBuffer packet, int payloadType, int sequence, int timestamp, int sessionId) {
+        packet.put(VERSION).put((byte) payloadType).putShort((short) sequence).putInt(timestamp).putInt(sessionId);
+    }
+
+    public static int payloadType(ByteBuffer packet) {
+        return packet.get(packet.position() + 1) & 0xFF;
+    }
+
+    public static int sequence(ByteBuffer packet) {
+        return packet.getShort(packet.position() + 2) & 0xFFFF;
+    }
+
+    public static int sessionId(ByteBuffer packet) {
+        return packet.getInt(packet.position() + 8);
+    }
+
+    public static void setSessionId(ByteBuffer packet, int sessionId) {
+        packet.putInt(packet.position() + 8, sessionId);
+    }
+}
@@ -0,0 +1,145 @@
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistencia diferida de mensajes (write-behind).
+ * Los save*Message de DatabaseService sólo encolan; un hilo de fondo agrupa los
+ * mensajes y los inserta en lotes JDBC cada N mensajes o cada T milisegundos.
+ * Si la cola se llena, quien guarda espera un poco (back-pressure) y, si sigue
+ * llena, escribe el mensaje él mismo para no perderlo. Al apagar el servidor se
+ * vacía lo pendiente.
+ */
+public class MessageWriteBehind {
+
+    public enum Kind {
+        PUBLIC,
+        GROUP,
+        PRIVATE
+    }
+
+    /** Mensaje pendiente de guardar. 'target' es el grupo o el destinatario según el tipo. */
+    public static final class PendingMessage {
+        final Kind kind;
+        final String sender;
+        final String target;
+        final String content;
+        final String type;
+        // Hora de envío real: el lote se inserta después y no debe alterar el orden del historial.
+        final Timestamp sentAt;
+
+        PendingMessage(Kind kind, String sender, String target, String content, String type) {
+            this.kind = kind;
+            this.sender = sender;
+            this.target = target;
+            this.content = content;
+            this.type = type;
+            this.sentAt = new Timestamp(System.currentTimeMillis());
+        }
+    }
+
+    private final DatabaseService dbService;
+    private final BlockingQueue<PendingMessage> queue;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final long offerTimeoutMs;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    public MessageWriteBehind(DatabaseService dbService) {
+        this.dbService = dbService;
+        this.queue = new ArrayBlockingQueue<>(ServerConfig.getInt("chat.db.writeBehind.queueCapacity", 10_000));
+        this.batchSize = ServerConfig.getInt("chat.db.writeBehind.batchSize", 200);
+        this.flushIntervalMs = ServerConfig.getLong("chat.db.writeBehind.flushIntervalMs", 50);
+        this.offerTimeoutMs = ServerConfig.getLong("chat.db.writeBehind.offerTimeoutMs", 1000);
+        this.flusher = new Thread(this::runFlusher, "db-write-behind");
+        flusher.setDaemon(true);
+        flusher.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "db-write-behind-shutdown"));
+    }
+
+    public void submit(Kind kind, String sender, String target, String content, String type) {
+        PendingMessage message = new PendingMessage(kind, sender, target, content, type);
+        try {
+            if (running && queue.offer(message, offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Cola llena o servidor apagándose: se guarda en el hilo actual.
+        write(List.of(message));
+    }
+
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    private void runFlusher() {
+        List<PendingMessage> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingMessage first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // Esperar a completar el lote, como mucho flushIntervalMs desde el primer mensaje.
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0 || !running) {
+                        break;
+                    }
+                    PendingMessage next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                write(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                // Lo interrumpe shutdown(): se sigue vaciando la cola con running = false.
+                // El lote a medio armar se conserva y se escribe con lo siguiente o al salir.
+            } catch (RuntimeException e) {
+                System.err.println("Error en la escritura diferida de mensajes: " + e.getMessage());
+                batch.clear();
+            }
+        }
+        // Un lote a medio armar cuando llegó la interrupción y la cola ya estaba vacía.
+        if (!batch.isEmpty()) {
+            write(batch);
+        }
+    }
+
+    private void write(List<PendingMessage> batch) {
+        if (dbService.insertMessages(batch) || batch.size() == 1) {
+            return;
+        }
+        // El lote falló entero (p. ej. un grupo borrado): se reintenta fila a fila para no perder el resto.
+        for (PendingMessage message : batch) {
+            dbService.insertMessages(List.of(message));
+        }
+    }
+
+    public void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        flusher.interrupt();
+        try {
+            flusher.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!queue.isEmpty()) {
+            System.err.println("Quedaron " + queue.size() + " mensajes sin guardar al apagar el servidor");
+        }
+    }
+}
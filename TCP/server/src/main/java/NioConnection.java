@@ -0,0 +1,315 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Estado de una conexión atendida por NioServer.
+ * El hilo del selector arma las líneas (y los bytes de audio que las acompañan)
+ * y las encola; un trabajador del pool las procesa en orden, de una en una.
+ * Las respuestas se encolan y el selector las escribe cuando el socket lo permite.
+ */
+public class NioConnection implements ClientTransport {
+
+    private static final int MAX_LINE_BYTES = ServerConfig.getInt("chat.nio.maxLineBytes", 1024 * 1024);
+    private static final long MAX_PAYLOAD_BYTES = ServerConfig.getLong("chat.nio.maxPayloadBytes", 20L * 1024 * 1024);
+    // Si el cliente envía más rápido de lo que se procesa, se deja de leer su socket.
+    private static final int MAX_PENDING_FRAMES = 256;
+    private static final int FRAMES_PER_DISPATCH = 64;
+    private static final int MAX_GATHER = 64;
+
+    private final NioServer.EventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ExecutorService workers;
+    private final ClientHandler handler;
+
+    // Estado de lectura: sólo lo toca el hilo del selector.
+    private byte[] lineBuffer = new byte[0];
+    private int lineLength;
+    private String payloadLine;
+    private byte[] payload;
+    private int payloadLength;
+
+    // Entrada pendiente de procesar por los trabajadores.
+    private final ConcurrentLinkedQueue<InboundFrame> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingFrames = new AtomicInteger();
+    private final AtomicBoolean dispatching = new AtomicBoolean(false);
+    private byte[] currentPayload;
+    private boolean readPaused;
+
+    // Salida pendiente de escribir en el socket.
+    private final OutboundQueue outbound = new OutboundQueue(this::describePeer);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    NioConnection(NioServer.EventLoop loop, SocketChannel channel, SelectionKey key, ExecutorService workers,
+            CallManager callManager) {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.workers = workers;
+        this.handler = new ClientHandler(this, callManager);
+    }
+
+    void start() {
+        handler.onConnect();
+    }
+
+    // --- Lectura (hilo del selector) ---
+
+    void onReadable(ByteBuffer readBuffer) throws IOException {
+        readBuffer.clear();
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            close();
+            return;
+        }
+        readBuffer.flip();
+        while (readBuffer.hasRemaining()) {
+            if (payload != null) {
+                int n = Math.min(readBuffer.remaining(), payload.length - payloadLength);
+                readBuffer.get(payload, payloadLength, n);
+                payloadLength += n;
+                if (payloadLength == payload.length) {
+                    dispatch(new InboundFrame(payloadLine, payload));
+                    payload = null;
+                    payloadLine = null;
+                }
+            } else {
+                int start = readBuffer.position();
+                int newline = -1;
+                for (int i = start; i < readBuffer.limit(); i++) {
+                    if (readBuffer.get(i) == '\n') {
+                        newline = i;
+                        break;
+                    }
+                }
+                appendToLine(readBuffer, (newline >= 0 ? newline : readBuffer.limit()) - start);
+                if (newline >= 0) {
+                    readBuffer.get(); // el propio '\n'
+                    onLine();
+                }
+            }
+        }
+    }
+
+    private void appendToLine(ByteBuffer readBuffer, int count) throws IOException {
+        int required = lineLength + count;
+        if (required > MAX_LINE_BYTES) {
+            throw new IOException("Línea demasiado larga");
+        }
+        if (required > lineBuffer.length) {
+            lineBuffer = Arrays.copyOf(lineBuffer, Math.min(MAX_LINE_BYTES, Math.max(256, required * 2)));
+        }
+        readBuffer.get(lineBuffer, lineLength, count);
+        lineLength = required;
+    }
+
+    private void onLine() throws IOException {
+        int length = lineLength;
+        if (length > 0 && lineBuffer[length - 1] == '\r') {
+            length--;
+        }
+        String line = new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+        lineLength = 0;
+        if (lineBuffer.length > 4096) {
+            // No retener el búfer de una línea excepcional en una conexión inactiva.
+            lineBuffer = new byte[0];
+        }
+        if (line.isBlank()) {
+            return;
+        }
+
+        long payloadSize = ClientHandler.inlinePayloadSize(line);
+        if (payloadSize > MAX_PAYLOAD_BYTES) {
+            throw new IOException("Archivo adjunto demasiado grande: " + payloadSize);
+        }
+        if (payloadSize > 0) {
+            payloadLine = line;
+            payload = new byte[(int) payloadSize];
+            payloadLength = 0;
+        } else {
+            dispatch(new InboundFrame(line, null));
+        }
+    }
+
+    private void dispatch(InboundFrame frame) {
+        enqueueInbound(frame);
+        if (pendingFrames.get() >= MAX_PENDING_FRAMES && !readPaused) {
+            readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private void enqueueInbound(InboundFrame frame) {
+        inbound.add(frame);
+        pendingFrames.incrementAndGet();
+        if (dispatching.compareAndSet(false, true)) {
+            workers.execute(this::drainInbound);
+        }
+    }
+
+    // --- Procesamiento (hilo trabajador, una ejecución a la vez por conexión) ---
+
+    private void drainInbound() {
+        int processed = 0;
+        while (true) {
+            InboundFrame frame = inbound.poll();
+            if (frame == null) {
+                dispatching.set(false);
+                // Puede haber llegado una línea entre el poll y el set.
+                if (inbound.isEmpty() || !dispatching.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            if (pendingFrames.decrementAndGet() == MAX_PENDING_FRAMES / 2) {
+                loop.execute(this::resumeReading);
+            }
+            if (frame.line == null) {
+                handler.onDisconnect();
+                continue;
+            }
+            currentPayload = frame.payload;
+            try {
+                handler.handleLine(frame.line);
+            } catch (RuntimeException e) {
+                System.err.println("Error procesando línea de " + handler.getUsername() + ": " + e.getMessage());
+            } finally {
+                currentPayload = null;
+            }
+            if (++processed == FRAMES_PER_DISPATCH) {
+                // Ceder el trabajador para que una conexión ruidosa no acapare el pool.
+                workers.execute(this::drainInbound);
+                return;
+            }
+        }
+    }
+
+    private void resumeReading() {
+        if (readPaused && key.isValid()) {
+            readPaused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    @Override
+    public InputStream openPayload(long size) {
+        byte[] data = currentPayload != null ? currentPayload : new byte[0];
+        return new ByteArrayInputStream(data, 0, (int) Math.min(size, data.length));
+    }
+
+    // --- Escritura ---
+
+    @Override
+    public void sendLine(String line) {
+        enqueue(Frames.encode(line), null);
+    }
+
+    @Override
+    public void sendFrame(ByteBuffer frame) {
+        enqueue(frame.duplicate(), null);
+    }
+
+    @Override
+    public void sendWithPayload(String line, ByteBuffer payload) {
+        enqueue(Frames.encode(line), payload.duplicate());
+    }
+
+    // 'payload' null: frame suelto, sujeto a la política de la cola.
+    private void enqueue(ByteBuffer buffer, ByteBuffer payload) {
+        if (closed.get()) {
+            return;
+        }
+        OutboundQueue.OfferResult result = payload == null ? outbound.offer(buffer)
+                : outbound.offerWithPayload(buffer, payload);
+        if (result == OutboundQueue.OfferResult.OVERFLOW) {
+            System.err.println("Cliente lento desconectado: " + handler.getUsername());
+            close();
+            return;
+        }
+        if (result == OutboundQueue.OfferResult.ACCEPTED && flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+    }
+
+    // Para los avisos de la cola de salida: el usuario, o la dirección si aún no hay sesión.
+    private String describePeer() {
+        String username = handler.getUsername();
+        return username != null ? username : String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+
+    void onWritable() throws IOException {
+        flush();
+    }
+
+    // Hilo del selector: escribe todo lo posible de una vez, varios frames por llamada (gathering write).
+    private void flush() {
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            while (true) {
+                int count = outbound.peek(gather);
+                if (count == 0) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    flushScheduled.set(false);
+                    if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                channel.write(gather, 0, count);
+                int written = 0;
+                while (written < count && !gather[written].hasRemaining()) {
+                    written++;
+                }
+                outbound.remove(written);
+                boolean socketFull = written < count;
+                Arrays.fill(gather, 0, count, null);
+                if (socketFull) {
+                    // Esperar a que el socket vuelva a ser escribible.
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        outbound.clear();
+        loop.execute(() -> {
+            key.cancel();
+            NioServer.closeQuietly(channel);
+        });
+        // El logout se procesa después de las líneas que ya estaban encoladas.
+        enqueueInbound(new InboundFrame(null, null));
+    }
+
+    private static final class InboundFrame {
+        final String line;
+        final byte[] payload;
+
+        InboundFrame(String line, byte[] payload) {
+            this.line = line;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Front end TCP no bloqueante.
+ * Un hilo acepta conexiones y las reparte entre unos pocos bucles de Selector.
+ * Cada bucle lee los bytes de sus conexiones, arma las líneas JSON completas y
+ * las entrega a un pool de trabajadores que ejecuta la lógica de ClientHandler.
+ * Una conexión inactiva sólo ocupa su estado en memoria, no un hilo.
+ */
+public class NioServer implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final int port;
+    private final CallManager callManager;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    public NioServer(int port, CallManager callManager) {
+        this.port = port;
+        this.callManager = callManager;
+        int loopCount = ServerConfig.getInt("chat.nio.loops", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        int workerCount = ServerConfig.getInt("chat.nio.workers", 32);
+        this.loops = new EventLoop[loopCount];
+        this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread t = new Thread(runnable, "chat-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void run() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop();
+                Thread t = new Thread(loops[i], "chat-nio-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+            System.out.println("Servidor de Chat (TCP/NIO) iniciado en el puerto " + port + " con " + loops.length
+                    + " bucles de eventos");
+
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(channel);
+            }
+        } catch (IOException e) {
+            System.err.println("Error crítico en el servidor TCP: " + e.getMessage());
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Bucle de eventos de un Selector. Todas las operaciones sobre los canales
+     * (registro, escrituras, cierre) se ejecutan en su propio hilo.
+     */
+    class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    NioConnection connection = new NioConnection(this, channel, key, workers, callManager);
+                    key.attach(connection);
+                    connection.start();
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        // Encola una tarea para el hilo del selector y lo despierta.
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.onReadable(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (CancelledKeyException e) {
+                            connection.close();
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error en el bucle NIO: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+}
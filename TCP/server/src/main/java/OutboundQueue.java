@@ -0,0 +1,244 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Cola de salida acotada de una conexión (búfer circular de frames ya codificados).
+ * Quien envía sólo encola; un único escritor la vacía agrupando varios frames por
+ * escritura. Cuando el cliente no lee al ritmo al que recibe, se aplica la política
+ * configurada en chat.outbound.policy. Por defecto se desconecta al cliente: con DROP
+ * o COMPACT se pierden mensajes de chat, señalización de llamadas o respuestas de
+ * historial sin que nadie lo note, así que los descartes se cuentan y se registran.
+ *
+ * Una línea con bytes crudos detrás (p. ej. audio_transfer y la nota) se encola con
+ * offerWithPayload como una sola unidad: entran las dos partes o ninguna, y ninguna
+ * política las descarta después; si no caben, se pide desconectar al cliente, porque
+ * perder sólo una de las dos desincroniza el flujo del cliente para siempre.
+ */
+public class OutboundQueue {
+
+    public enum SlowConsumerPolicy {
+        DROP,       // Descarta el frame nuevo.
+        DISCONNECT, // Cierra la conexión del cliente lento.
+        COMPACT     // Descarta los frames más antiguos que aún no se empezaron a escribir.
+    }
+
+    public enum OfferResult {
+        ACCEPTED,
+        DROPPED,
+        OVERFLOW // La política pide desconectar al cliente.
+    }
+
+    public static final int DEFAULT_CAPACITY = ServerConfig.getInt("chat.outbound.capacity", 1024);
+    public static final long DEFAULT_MAX_BYTES = ServerConfig.getLong("chat.outbound.maxBytes", 4L * 1024 * 1024);
+    public static final SlowConsumerPolicy DEFAULT_POLICY = SlowConsumerPolicy
+            .valueOf(ServerConfig.getString("chat.outbound.policy", "DISCONNECT").toUpperCase());
+    // Se avisa del primer descarte de cada conexión y después cada tantos.
+    private static final long DROP_LOG_EVERY = 100;
+
+    private final Supplier<String> owner; // para los avisos: usuario o dirección de la conexión
+
+    private final ByteBuffer[] ring;
+    private final long[] charged;    // bytes que cuenta cada frame contra maxBytes
+    private final boolean[] pinned;  // partes de una unidad con payload: no se descartan
+    private final long maxBytes;
+    private final SlowConsumerPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private int head;
+    private int size;
+    private long queuedBytes;
+    private long droppedFrames;
+    private int inFlight; // frames entregados al escritor con peek() y aún no confirmados
+
+    public OutboundQueue(Supplier<String> owner) {
+        this(owner, DEFAULT_CAPACITY, DEFAULT_MAX_BYTES, DEFAULT_POLICY);
+    }
+
+    public OutboundQueue(Supplier<String> owner, int capacity, long maxBytes, SlowConsumerPolicy policy) {
+        this.owner = owner;
+        this.ring = new ByteBuffer[capacity];
+        this.charged = new long[capacity];
+        this.pinned = new boolean[capacity];
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    public OfferResult offer(ByteBuffer frame) {
+        OfferResult result;
+        long before;
+        long after;
+        lock.lock();
+        try {
+            before = droppedFrames;
+            result = offerLocked(frame);
+            after = droppedFrames;
+        } finally {
+            lock.unlock();
+        }
+        reportDrops(before, after);
+        return result;
+    }
+
+    private OfferResult offerLocked(ByteBuffer frame) {
+        if (!fits(1, frame.limit())) {
+            if (policy == SlowConsumerPolicy.DISCONNECT) {
+                return OfferResult.OVERFLOW;
+            }
+            if (policy == SlowConsumerPolicy.COMPACT) {
+                evictOldest(1, frame.limit());
+            }
+            if (!fits(1, frame.limit())) {
+                droppedFrames++;
+                return OfferResult.DROPPED;
+            }
+        }
+        append(frame, frame.limit(), false);
+        return OfferResult.ACCEPTED;
+    }
+
+    /**
+     * Encola 'line' y justo detrás 'payload' de forma atómica. El payload no cuenta
+     * contra maxBytes (viene de la caché compartida o mapeado del disco, no es memoria
+     * propia de la conexión), pero ocupa su hueco en el anillo. Nunca devuelve DROPPED.
+     */
+    public OfferResult offerWithPayload(ByteBuffer line, ByteBuffer payload) {
+        long before;
+        long after;
+        lock.lock();
+        try {
+            before = droppedFrames;
+            if (!fits(2, line.limit()) && policy == SlowConsumerPolicy.COMPACT) {
+                evictOldest(2, line.limit());
+            }
+            after = droppedFrames;
+            if (!fits(2, line.limit())) {
+                return OfferResult.OVERFLOW;
+            }
+            append(line, line.limit(), true);
+            append(payload, 0, true);
+        } finally {
+            lock.unlock();
+        }
+        reportDrops(before, after);
+        return OfferResult.ACCEPTED;
+    }
+
+    // Fuera del candado. Los descartes de DROP y COMPACT se registran: el cliente no recibe esos frames.
+    private void reportDrops(long before, long after) {
+        if (after > before && (before == 0 || after / DROP_LOG_EVERY > before / DROP_LOG_EVERY)) {
+            System.err.println("Cola de salida de " + owner.get() + ": " + after + " frame(s) descartado(s) (política "
+                    + policy + ")");
+        }
+    }
+
+    // Un frame más grande que el límite se admite si la cola está vacía.
+    private boolean fits(int frames, long bytes) {
+        return size + frames <= ring.length && (size == 0 || queuedBytes + bytes <= maxBytes);
+    }
+
+    private void append(ByteBuffer frame, long bytes, boolean keep) {
+        int index = (head + size) % ring.length;
+        ring[index] = frame;
+        charged[index] = bytes;
+        pinned[index] = keep;
+        size++;
+        queuedBytes += bytes;
+    }
+
+    private void evictOldest(int frames, long bytes) {
+        // Se conservan los frames que el escritor está escribiendo y una cabeza a medio escribir.
+        int keep = Math.max(inFlight, size > 0 && ring[head].position() > 0 ? 1 : 0);
+        // Se quitan los más antiguos que no estén fijados y se corre el resto hacia la cabeza.
+        int oldSize = size;
+        int kept = keep;
+        for (int i = keep; i < oldSize; i++) {
+            int from = (head + i) % ring.length;
+            if (!pinned[from] && !fits(frames, bytes)) {
+                queuedBytes -= charged[from];
+                size--;
+                droppedFrames++;
+                continue;
+            }
+            int to = (head + kept) % ring.length;
+            ring[to] = ring[from];
+            charged[to] = charged[from];
+            pinned[to] = pinned[from];
+            kept++;
+        }
+        for (int i = kept; i < oldSize; i++) {
+            ring[(head + i) % ring.length] = null;
+        }
+    }
+
+    /**
+     * Copia en 'target' (sin quitarlos) hasta target.length frames desde la cabeza.
+     * Devuelve cuántos copió.
+     */
+    public int peek(ByteBuffer[] target) {
+        lock.lock();
+        try {
+            int count = Math.min(size, target.length);
+            for (int i = 0; i < count; i++) {
+                target[i] = ring[(head + i) % ring.length];
+            }
+            inFlight = count;
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Quita de la cabeza los 'count' frames que ya se escribieron por completo.
+    public void remove(int count) {
+        lock.lock();
+        try {
+            count = Math.min(count, size); // la cola pudo vaciarse al cerrar la conexión
+            for (int i = 0; i < count; i++) {
+                queuedBytes -= charged[head];
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+            }
+            size -= count;
+            inFlight = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return size == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            for (int i = 0; i < size; i++) {
+                ring[(head + i) % ring.length] = null;
+            }
+            head = 0;
+            size = 0;
+            queuedBytes = 0;
+            inFlight = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedFrames() {
+        lock.lock();
+        try {
+            return droppedFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public SlowConsumerPolicy getPolicy() {
+        return policy;
+    }
+}
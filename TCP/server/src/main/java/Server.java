@@ -6,64 +6,45 @@ import java.util.concurrent.Executors;
 
 public class Server {
     private static final int TCP_PORT = 12345;
-    private static final int THREAD_POOL_SIZE = 20;
+    private static final int THREAD_POOL_SIZE = ServerConfig.getInt("chat.tcp.poolSize", 20);
+    // "nio" (por defecto): bucles de Selector; "pool": un hilo del pool por conexión;
+    // "virtual": un hilo virtual por conexión.
+    private static final String TCP_MODE = ServerConfig.getString("chat.tcp.mode", "nio");
+    private static final int HTTP_PORT = 3001;
+    // Hilos que atienden descargas de audio a la vez; una descarga lenta sólo ocupa uno.
+    private static final int HTTP_THREADS = ServerConfig.getInt("chat.http.threads", 8);
+    // Pool de hilos de ICE (Ice.ThreadPool.Server): crece de SIZE a SIZE_MAX según la carga.
+    private static final int ICE_THREADS = ServerConfig.getInt("chat.ice.threads", 4);
+    private static final int ICE_THREADS_MAX = ServerConfig.getInt("chat.ice.threadsMax", 16);
 
     public static void main(String[] args) {
-        ExecutorService tcpPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
         // Se crea una única instancia del CallManager para compartirla.
         CallManager callManager = new CallManager();
 
         // Inicializar ChatController explícitamente
-        ChatController.getInstance(callManager);
+        ChatController chatController = ChatController.getInstance(callManager);
 
         // Se inicia el servidor UDP en un hilo separado, pasándole el CallManager.
-        new Thread(new UdpServer(callManager)).start();
+        UdpServer udpServer = new UdpServer(callManager);
+        new Thread(udpServer).start();
 
         // Start HTTP Server for audio files
         new Thread(() -> {
             try {
                 com.sun.net.httpserver.HttpServer httpServer = com.sun.net.httpserver.HttpServer
-                        .create(new java.net.InetSocketAddress(3001), 0);
-                httpServer.createContext("/audio", exchange -> {
-                    // Add CORS headers
-                    exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
-                    exchange.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, OPTIONS");
-                    exchange.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type,Authorization");
-
-                    if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                        exchange.sendResponseHeaders(204, -1);
-                        return;
-                    }
-
-                    String path = exchange.getRequestURI().getPath();
-                    String fileName = path.substring(path.lastIndexOf('/') + 1);
-                    java.io.File file = new java.io.File("server_audio_files/" + fileName);
-
-                    if (file.exists() && !file.isDirectory()) {
-                        exchange.getResponseHeaders().add("Content-Type", "audio/webm");
-                        exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
-                        exchange.getResponseHeaders().add("Cache-Control", "no-cache");
-                        exchange.sendResponseHeaders(200, file.length());
-                        try (java.io.OutputStream os = exchange.getResponseBody();
-                                java.io.FileInputStream fis = new java.io.FileInputStream(file)) {
-                            byte[] buffer = new byte[4096];
-                            int count;
-                            while ((count = fis.read(buffer)) != -1) {
-                                os.write(buffer, 0, count);
-                            }
-                        }
-                    } else {
-                        String response = "File not found";
-                        exchange.sendResponseHeaders(404, response.length());
-                        try (java.io.OutputStream os = exchange.getResponseBody()) {
-                            os.write(response.getBytes());
-                        }
-                    }
-                });
-                httpServer.setExecutor(null);
+                        .create(new java.net.InetSocketAddress(HTTP_PORT), 0);
+                httpServer.createContext("/audio", new AudioHttpHandler(chatController.getAudioStore()));
+                httpServer.createContext("/upload", chatController.getUploadHandler());
+                httpServer.setExecutor(Executors.newFixedThreadPool(HTTP_THREADS, runnable -> {
+                    Thread t = new Thread(runnable, "audio-http");
+                    t.setDaemon(true);
+                    return t;
+                }));
                 httpServer.start();
-                System.out.println("Servidor HTTP de audio iniciado en el puerto 3001");
+                System.out.println("Servidor HTTP de audio iniciado en el puerto " + HTTP_PORT + " ("
+                        + HTTP_THREADS + " hilos)");
             } catch (IOException e) {
+                System.err.println("No se pudo iniciar el servidor HTTP de audio: " + e.getMessage());
             }
         }).start();
 
@@ -71,6 +52,9 @@ public class Server {
         new Thread(() -> {
             com.zeroc.Ice.Properties properties = com.zeroc.Ice.Util.createProperties();
             properties.setProperty("Ice.MessageSizeMax", "10240"); // 10MB limit
+            // Con el valor por defecto (un solo hilo) una nota de voz grande retrasaba los sendAudio de las llamadas.
+            properties.setProperty("Ice.ThreadPool.Server.Size", Integer.toString(ICE_THREADS));
+            properties.setProperty("Ice.ThreadPool.Server.SizeMax", Integer.toString(Math.max(ICE_THREADS, ICE_THREADS_MAX)));
             com.zeroc.Ice.InitializationData initData = new com.zeroc.Ice.InitializationData();
             initData.properties = properties;
 
@@ -78,7 +62,7 @@ public class Server {
                 System.out.println("Iniciando servidor ICE...");
                 com.zeroc.Ice.ObjectAdapter adapter = communicator.createObjectAdapterWithEndpoints("VoiceChatAdapter",
                         "ws -h 0.0.0.0 -p 10000");
-                com.zeroc.Ice.Object object = new VoiceChatI();
+                com.zeroc.Ice.Object object = new VoiceChatI(callManager.getSessions(), udpServer);
                 adapter.add(object, com.zeroc.Ice.Util.stringToIdentity("VoiceChat"));
                 adapter.activate();
                 System.out.println("Servidor ICE iniciado en el puerto 10000 (WebSocket)");
@@ -89,18 +73,42 @@ public class Server {
             }
         }).start();
 
-        try (ServerSocket serverSocket = new ServerSocket(TCP_PORT)) {
-            System.out.println("Servidor de Chat (TCP) iniciado en el puerto " + TCP_PORT);
+        if ("pool".equalsIgnoreCase(TCP_MODE)) {
+            // Escritores bajo demanda: un cliente lento sólo retiene el hilo que le está escribiendo.
+            ExecutorService writers = Executors.newCachedThreadPool(runnable -> {
+                Thread t = new Thread(runnable, "chat-writer");
+                t.setDaemon(true);
+                return t;
+            });
+            runBlockingServer(callManager, Executors.newFixedThreadPool(THREAD_POOL_SIZE), writers,
+                    "pool de " + THREAD_POOL_SIZE + " hilos");
+        } else if ("virtual".equalsIgnoreCase(TCP_MODE)) {
+            ExecutorService virtualThreads = Executors.newVirtualThreadPerTaskExecutor();
+            runBlockingServer(callManager, virtualThreads, virtualThreads, "hilos virtuales");
+        } else {
+            new NioServer(TCP_PORT, callManager).run();
+        }
+    }
+
+    private static void runBlockingServer(CallManager callManager, ExecutorService tcpPool, ExecutorService writers,
+            String description) {
+        try (ServerSocket serverSocket = new ServerSocket(TCP_PORT, 1024)) {
+            System.out.println("Servidor de Chat (TCP) iniciado en el puerto " + TCP_PORT + " (" + description + ")");
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                // Cada nuevo cliente recibe la referencia al CallManager.
-                tcpPool.submit(new ClientHandler(clientSocket, callManager));
+                try {
+                    // Cada nuevo cliente recibe la referencia al CallManager.
+                    tcpPool.submit(new ClientHandler(clientSocket, callManager, writers));
+                } catch (IOException e) {
+                    clientSocket.close();
+                }
             }
         } catch (IOException e) {
             System.err.println("Error crítico en el servidor TCP: " + e.getMessage());
         } finally {
             tcpPool.shutdown();
+            writers.shutdown();
         }
     }
 }
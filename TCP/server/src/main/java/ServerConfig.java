@@ -0,0 +1,66 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Configuración del servidor.
+ * Lee "server.properties" del directorio de trabajo (si existe) y permite
+ * sobrescribir cualquier clave con una propiedad de sistema (-Dclave=valor).
+ */
+public final class ServerConfig {
+    private static final String CONFIG_FILE = "server.properties";
+    private static final Properties properties = load();
+
+    private ServerConfig() {
+    }
+
+    private static Properties load() {
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(CONFIG_FILE)) {
+            props.load(in);
+        } catch (IOException e) {
+            // Sin archivo de configuración: se usan los valores por defecto.
+        }
+        return props;
+    }
+
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = properties.getProperty(key);
+        }
+        return value != null ? value.trim() : defaultValue;
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Valor inválido para " + key + ": " + value + " (se usa " + defaultValue + ")");
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Valor inválido para " + key + ": " + value + " (se usa " + defaultValue + ")");
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+}
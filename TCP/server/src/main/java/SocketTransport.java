@@ -0,0 +1,123 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Transporte bloqueante clásico: un hilo lee líneas del socket durante toda la sesión.
+ * Las escrituras no se hacen en el hilo de quien envía: se encolan en una
+ * OutboundQueue y una tarea del 'writerExecutor' las vacía agrupándolas.
+ */
+public class SocketTransport implements ClientTransport {
+
+    private static final int WRITE_BATCH = 64;
+
+    private final Socket socket;
+    private final BufferedReader in;
+    private final OutputStream out;
+    private final WritableByteChannel outChannel;
+    private final Executor writerExecutor;
+    private final OutboundQueue outbound = new OutboundQueue(this::describePeer);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+
+    public SocketTransport(Socket socket, Executor writerExecutor) throws IOException {
+        this.socket = socket;
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.outChannel = Channels.newChannel(out);
+        this.writerExecutor = writerExecutor;
+    }
+
+    public String readLine() throws IOException {
+        return in.readLine();
+    }
+
+    @Override
+    public void sendLine(String line) {
+        enqueue(Frames.encode(line), null);
+    }
+
+    @Override
+    public void sendFrame(ByteBuffer frame) {
+        enqueue(frame.duplicate(), null);
+    }
+
+    @Override
+    public void sendWithPayload(String line, ByteBuffer payload) {
+        enqueue(Frames.encode(line), payload.duplicate());
+    }
+
+    // 'payload' null: frame suelto, sujeto a la política de la cola.
+    private void enqueue(ByteBuffer frame, ByteBuffer payload) {
+        if (socket.isClosed()) {
+            return;
+        }
+        OutboundQueue.OfferResult result = payload == null ? outbound.offer(frame)
+                : outbound.offerWithPayload(frame, payload);
+        if (result == OutboundQueue.OfferResult.OVERFLOW) {
+            System.err.println("Cliente lento desconectado (cola de salida llena).");
+            close();
+            return;
+        }
+        if (result == OutboundQueue.OfferResult.ACCEPTED && flushScheduled.compareAndSet(false, true)) {
+            writerExecutor.execute(this::drain);
+        }
+    }
+
+    // Un único escritor a la vez por conexión: vuelca varios frames y hace un solo flush.
+    private void drain() {
+        try {
+            while (true) {
+                int count = outbound.peek(batch);
+                if (count == 0) {
+                    flushScheduled.set(false);
+                    // Pudo llegar un frame entre el peek y el set.
+                    if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                for (int i = 0; i < count; i++) {
+                    ByteBuffer frame = batch[i];
+                    while (frame.hasRemaining()) {
+                        outChannel.write(frame);
+                    }
+                    batch[i] = null;
+                }
+                out.flush();
+                outbound.remove(count);
+            }
+        } catch (IOException e) {
+            flushScheduled.set(false);
+            close();
+        }
+    }
+
+    private String describePeer() {
+        return String.valueOf(socket.getRemoteSocketAddress());
+    }
+
+    @Override
+    public InputStream openPayload(long size) throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public void close() {
+        outbound.clear();
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -1,11 +1,31 @@
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.net.InetAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
 
+/**
+ * Relay UDP del audio de las llamadas.
+ * Cada hilo receptor reutiliza un único búfer directo: recibe el datagrama, lo
+ * identifica por sus primeros bytes (sin convertirlo a String) y, si su cabecera
+ * (MediaHeader) corresponde a la llamada del remitente, lo reenvía tal cual a la
+ * dirección del otro extremo. En las llamadas de grupo el audio va a
+ * GroupCallMixer, que lo mezcla o lo reenvía según el modo de la llamada.
+ * Con chat.udp.receivers > 1 cada hilo abre su propio canal en el mismo puerto
+ * (SO_REUSEPORT) y el kernel reparte los datagramas entre ellos.
+ */
 public class UdpServer implements Runnable {
-    private static final int UDP_PORT = 12346;
+    private static final int UDP_PORT = ServerConfig.getInt("chat.udp.port", 12346);
+    private static final int RECEIVERS = ServerConfig.getInt("chat.udp.receivers", 1);
+    // Mayor que el bloque de audio más grande del cliente (AudioService.CALL_BUFFER_SIZE = 2048).
+    private static final int BUFFER_SIZE = ServerConfig.getInt("chat.udp.bufferSize", 4096);
+    private static final byte[] HELLO_PREFIX = "hello:".getBytes(StandardCharsets.US_ASCII);
+
     private final CallManager callManager;
+    // Canal desde el que sale el audio que no llega por el relay (sendMedia); null hasta que arranca.
+    private volatile DatagramChannel sendChannel;
 
     public UdpServer(CallManager callManager) {
         this.callManager = callManager;
@@ -13,33 +33,104 @@ public class UdpServer implements Runnable {
 
     @Override
     public void run() {
-        try (DatagramSocket socket = new DatagramSocket(UDP_PORT, InetAddress.getByName("0.0.0.0"))) {
-            System.out.println("Servidor UDP escuchando en el puerto " + UDP_PORT);
-            byte[] buffer = new byte[1024];
-
-            while (true) {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
-                String message = new String(packet.getData(), 0, packet.getLength());
-
-                // Si es un paquete "hola", registra la dirección UDP del cliente.
-                if (message.startsWith("hello:")) {
-                    String username = message.substring(6);
-                    callManager.registerUdpAddress(username, packet.getSocketAddress());
-                } else {
-                    // Si no, es un paquete de audio que debe ser reenviado.
-                    SocketAddress destinationAddress = callManager.getCallPartnerAddress(packet.getSocketAddress());
-                    if (destinationAddress != null) {
-                        DatagramPacket forwardPacket = new DatagramPacket(
-                            packet.getData(), packet.getLength(), destinationAddress
-                        );
-                        socket.send(forwardPacket);
+        try {
+            DatagramChannel first = openChannel(RECEIVERS > 1);
+            sendChannel = first;
+            callManager.getGroupCalls().attach(first);
+            boolean reusePort = RECEIVERS > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            if (RECEIVERS > 1 && !reusePort) {
+                System.out.println("SO_REUSEPORT no disponible: los receptores UDP comparten un solo canal");
+            }
+            for (int i = 1; i < RECEIVERS; i++) {
+                DatagramChannel channel = reusePort ? openChannel(true) : first;
+                Thread t = new Thread(() -> receiveLoop(channel), "udp-relay-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+            System.out.println("Servidor UDP escuchando en el puerto " + UDP_PORT + " con " + RECEIVERS + " receptor(es)");
+            receiveLoop(first);
+        } catch (IOException e) {
+            System.err.println("Error crítico en el servidor UDP: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Envía audio que no llegó por UDP (VoiceChatI.sendAudio) a la dirección UDP del
+     * destinatario, con cabecera MediaHeader y el id de la sesión, en vez de mandarlo
+     * en Base64 por el socket del chat. false si no hay a dónde enviarlo.
+     */
+    public boolean sendMedia(CallSession session, String recipient, int payloadType, int sequence, int timestamp,
+            byte[] payload) {
+        DatagramChannel channel = sendChannel;
+        SocketAddress destination = callManager.getUdpAddress(recipient);
+        if (channel == null || destination == null) {
+            return false;
+        }
+        ByteBuffer packet = ByteBuffer.allocate(MediaHeader.LENGTH + payload.length);
+        MediaHeader.write(packet, payloadType, sequence, timestamp, session.getId());
+        packet.put(payload).flip();
+        try {
+            channel.send(packet, destination);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error enviando audio UDP a " + recipient + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private DatagramChannel openChannel(boolean reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        if (reusePort && channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 1024 * 1024);
+        channel.bind(new InetSocketAddress("0.0.0.0", UDP_PORT));
+        return channel;
+    }
+
+    private void receiveLoop(DatagramChannel channel) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        while (channel.isOpen()) {
+            try {
+                buffer.clear();
+                SocketAddress source = channel.receive(buffer);
+                buffer.flip();
+
+                if (startsWith(buffer, HELLO_PREFIX)) {
+                    // Paquete "hola": registra la dirección UDP del cliente.
+                    buffer.position(HELLO_PREFIX.length);
+                    String username = StandardCharsets.UTF_8.decode(buffer).toString().trim();
+                    callManager.registerUdpAddress(username, source);
+                } else if (MediaHeader.isMedia(buffer)) {
+                    // Audio: sólo se reenvía si viene de un participante y trae el id de su llamada.
+                    CallManager.MediaRoute route = callManager.getRoute(source);
+                    if (route != null) {
+                        if (route.accept(MediaHeader.sessionId(buffer), MediaHeader.sequence(buffer))) {
+                            channel.send(buffer, route.getPeer());
+                        }
+                    } else {
+                        // Llamada de grupo: el audio va al mezclador en vez de reenviarse.
+                        GroupCallMixer.Participant participant = callManager.getGroupCalls().getParticipant(source);
+                        if (participant != null) {
+                            participant.receive(buffer, channel);
+                        }
                     }
                 }
+            } catch (IOException e) {
+                System.err.println("Error en el relay UDP: " + e.getMessage());
             }
-        } catch (Exception e) {
-            System.err.println("Error crítico en el servidor UDP: " + e.getMessage());
         }
     }
-}
 
+    private static boolean startsWith(ByteBuffer buffer, byte[] prefix) {
+        if (buffer.remaining() < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(buffer.position() + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -3,73 +3,95 @@ import com.zeroc.Ice.Current;
 import demo.VoiceChat;
 import demo.VoiceMessageInfo;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class VoiceChatI implements VoiceChat {
-    private static final String AUDIO_DIR = "server_audio_files";
-    private final Map<String, String> activeCalls = new ConcurrentHashMap<>();
-
-    public VoiceChatI() {
-        // Create audio directory if it doesn't exist
-        try {
-            Files.createDirectories(Paths.get(AUDIO_DIR));
-        } catch (IOException e) {
-            System.err.println("Failed to create audio directory: " + e.getMessage());
-        }
+    private static final int VOICE_MESSAGE_THREADS = ServerConfig.getInt("chat.ice.voiceMessageThreads", 4);
+    // Each queued message holds its whole byte[]; beyond this the client gets an error instead of the heap filling up.
+    private static final int VOICE_MESSAGE_QUEUE = ServerConfig.getInt("chat.ice.voiceMessageQueue", 64);
+    // Call state is shared with the TCP/UDP paths; the ICE identity name is the username.
+    private final CallSessionRegistry sessions;
+    // Session resolved once per sender, reused while the registry still publishes it.
+    private final Map<String, AudioStream> audioStreams = new ConcurrentHashMap<>();
+    private final UdpServer udpServer;
+    // Voice messages are stored and fanned out here, off the Ice thread pool that also carries sendAudio.
+    private final ExecutorService voiceMessages = new ThreadPoolExecutor(VOICE_MESSAGE_THREADS, VOICE_MESSAGE_THREADS,
+            0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(VOICE_MESSAGE_QUEUE), runnable -> {
+                Thread t = new Thread(runnable, "ice-voice-message");
+                t.setDaemon(true);
+                return t;
+            });
+
+    public VoiceChatI(CallSessionRegistry sessions, UdpServer udpServer) {
+        this.sessions = sessions;
+        this.udpServer = udpServer;
     }
 
     @Override
     public void sendAudio(byte[] data, Current current) {
         // For real-time call audio streaming
         String sender = current.id.name;
-        String recipient = activeCalls.get(sender);
-
-        if (recipient != null) {
-            try {
-                ChatController.getInstance().streamAudioToUser(recipient, data);
-            } catch (Exception e) {
-                System.err.println("Error relaying audio: " + e.getMessage());
+        AudioStream stream = audioStreams.get(sender);
+        if (stream == null || !sessions.isCurrent(stream.session)) {
+            CallSession session = sessions.getActive(sender);
+            if (session == null) {
+                audioStreams.remove(sender);
+                return;
             }
+            stream = new AudioStream(session, session.partnerOf(sender));
+            audioStreams.put(sender, stream);
         }
+
+        // Binary over the UDP relay, not Base64 JSON on the chat socket.
+        int sequence = stream.sequence.getAndIncrement();
+        // Timestamp in 16 kHz ticks of arrival time: the payload is opaque to the server.
+        int timestamp = (int) (System.nanoTime() / 62_500);
+        udpServer.sendMedia(stream.session, stream.recipient, MediaHeader.PAYLOAD_OPAQUE, sequence, timestamp, data);
     }
 
     @Override
-    public String sendVoiceMessage(byte[] data, VoiceMessageInfo info, Current current) {
+    public CompletionStage<String> sendVoiceMessageAsync(byte[] data, VoiceMessageInfo info, Current current) {
+        // AMD: the Ice thread returns at once; the reply is sent when the future completes.
+        CompletableFuture<String> result = new CompletableFuture<>();
         try {
-            // Generate unique filename
-            String filename = String.format("%s_%s_%d.webm",
-                    info.sender,
-                    info.recipient.replace("/", "_"),
-                    System.currentTimeMillis());
-
-            Path filePath = Paths.get(AUDIO_DIR, filename);
-
-            // Save audio data to file
-            try (FileOutputStream fos = new FileOutputStream(filePath.toFile())) {
-                fos.write(data);
-            }
-
-            System.out.println("Saved voice message: " + filename +
-                    " (" + data.length + " bytes, " + info.duration + "ms)");
-
-            // Notify recipient and save metadata via ChatController
-            try {
-                ChatController.getInstance().processAudioMessage(info.sender, info.recipient, filePath.toString());
-            } catch (Exception e) {
-                System.err.println("Error notifying ChatController: " + e.getMessage());
-            }
-
-            return filename;
+            voiceMessages.execute(() -> storeVoiceMessage(data, info, result));
+        } catch (RejectedExecutionException e) {
+            System.err.println("Voice message from " + info.sender + " rejected: queue full");
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
 
+    private void storeVoiceMessage(byte[] data, VoiceMessageInfo info, CompletableFuture<String> result) {
+        String id;
+        try {
+            // Content-addressed: the same recording sent twice is stored once
+            id = ChatController.getInstance().getAudioStore().put(data);
         } catch (IOException e) {
             System.err.println("Error saving voice message: " + e.getMessage());
-            return null;
+            result.complete(null);
+            return;
+        }
+        System.out.println("Saved voice message: " + id +
+                " (" + data.length + " bytes, " + info.duration + "ms)");
+
+        // The sender only waits for the file; the DB write and fan-out follow on this thread
+        result.complete(id);
+        try {
+            ChatController.getInstance().processAudioMessage(info.sender, info.recipient, id);
+        } catch (Exception e) {
+            System.err.println("Error notifying ChatController: " + e.getMessage());
         }
     }
 
@@ -77,10 +99,10 @@ public class VoiceChatI implements VoiceChat {
     public void initiateCall(String recipient, Current current) {
         String caller = current.id.name; // Get caller from ICE context
         System.out.println("Call initiated: " + caller + " -> " + recipient);
-        activeCalls.put(caller, recipient);
 
         try {
-            ChatController.getInstance().requestCall(caller, recipient);
+            // Browser clients offer no relay codecs, so the session falls back to pcm16.
+            ChatController.getInstance().requestCall(caller, recipient, Collections.emptyList());
         } catch (Exception e) {
             System.err.println("Error initiating call via ChatController: " + e.getMessage());
         }
@@ -90,10 +112,9 @@ public class VoiceChatI implements VoiceChat {
     public void acceptCall(String caller, Current current) {
         String recipient = current.id.name;
         System.out.println("Call accepted: " + caller + " <-> " + recipient);
-        activeCalls.put(recipient, caller); // Add reverse mapping for bidirectional audio
 
         try {
-            ChatController.getInstance().acceptCall(recipient, caller);
+            ChatController.getInstance().acceptCall(recipient, caller, Collections.emptyList());
         } catch (Exception e) {
             System.err.println("Error accepting call via ChatController: " + e.getMessage());
         }
@@ -103,7 +124,6 @@ public class VoiceChatI implements VoiceChat {
     public void rejectCall(String caller, Current current) {
         String recipient = current.id.name;
         System.out.println("Call rejected: " + caller + " X " + recipient);
-        activeCalls.remove(caller);
 
         try {
             ChatController.getInstance().rejectCall(recipient, caller);
@@ -115,8 +135,7 @@ public class VoiceChatI implements VoiceChat {
     @Override
     public void endCall(String participant, Current current) {
         System.out.println("Call ended with: " + participant);
-        activeCalls.remove(participant);
-        activeCalls.remove(current.id.name);
+        audioStreams.remove(current.id.name);
 
         try {
             ChatController.getInstance().endCall(current.id.name);
@@ -125,4 +144,14 @@ public class VoiceChatI implements VoiceChat {
         }
     }
 
-}
\ No newline at end of file
+    private static final class AudioStream {
+        final CallSession session;
+        final String recipient;
+        final AtomicInteger sequence = new AtomicInteger();
+
+        AudioStream(CallSession session, String recipient) {
+            this.session = session;
+            this.recipient = recipient;
+        }
+    }
+}
@@ -19,7 +19,7 @@ public interface VoiceChat extends com.zeroc.Ice.Object
 {
     void sendAudio(byte[] data, com.zeroc.Ice.Current current);
 
-    String sendVoiceMessage(byte[] data, VoiceMessageInfo info, com.zeroc.Ice.Current current);
+    java.util.concurrent.CompletionStage<java.lang.String> sendVoiceMessageAsync(byte[] data, VoiceMessageInfo info, com.zeroc.Ice.Current current);
 
     void initiateCall(String recipient, com.zeroc.Ice.Current current);
 
@@ -87,11 +87,10 @@ public interface VoiceChat extends com.zeroc.Ice.Object
         iceP_data = istr.readByteSeq();
         iceP_info = VoiceMessageInfo.ice_read(istr);
         inS.endReadParams();
-        String ret = obj.sendVoiceMessage(iceP_data, iceP_info, current);
-        com.zeroc.Ice.OutputStream ostr = inS.startWriteParams();
-        ostr.writeString(ret);
-        inS.endWriteParams(ostr);
-        return inS.setResult(ostr);
+        return inS.setResultFuture(obj.sendVoiceMessageAsync(iceP_data, iceP_info, current), (ostr, ret) ->
+            {
+                ostr.writeString(ret);
+            });
     }
 
     /**
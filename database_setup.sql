@@ -59,7 +59,46 @@ CREATE TABLE IF NOT EXISTS private_messages (
     FOREIGN KEY (recipient_username) REFERENCES users(username) ON DELETE CASCADE
 );
 
+-- 7. Read State Table (per-conversation read marker used by the login sync summary)
+CREATE TABLE IF NOT EXISTS chat_read_state (
+    username VARCHAR(255) NOT NULL,
+    chat_type VARCHAR(20) NOT NULL, -- 'general', 'group' or 'private'
+    chat_name VARCHAR(255) NOT NULL,
+    last_read_at TIMESTAMP NOT NULL,
+    PRIMARY KEY (username, chat_type, chat_name),
+    FOREIGN KEY (username) REFERENCES users(username) ON DELETE CASCADE
+);
+
 -- Indexes for performance
-CREATE INDEX IF NOT EXISTS idx_public_messages_sent_at ON public_messages(sent_at);
-CREATE INDEX IF NOT EXISTS idx_group_messages_group_sent_at ON group_messages(group_name, sent_at);
-CREATE INDEX IF NOT EXISTS idx_private_messages_users_sent_at ON private_messages(sender_username, recipient_username, sent_at);
+-- History is paged newest-first with keyset cursors: WHERE (sent_at, id) < (?, ?) ORDER BY sent_at DESC, id DESC.
+-- The composite (..., sent_at, id) indexes serve both the filter and the order, so deep pages cost the same as the first.
+DROP INDEX IF EXISTS idx_public_messages_sent_at;
+DROP INDEX IF EXISTS idx_group_messages_group_sent_at;
+DROP INDEX IF EXISTS idx_private_messages_users_sent_at;
+CREATE INDEX IF NOT EXISTS idx_public_messages_sent_at_id ON public_messages(sent_at, id);
+CREATE INDEX IF NOT EXISTS idx_group_messages_group_sent_at_id ON group_messages(group_name, sent_at, id);
+CREATE INDEX IF NOT EXISTS idx_private_messages_users_sent_at_id ON private_messages(sender_username, recipient_username, sent_at, id);
+
+-- 8. Audio Blobs (content-addressed voice notes, see AudioBlobStore)
+-- blob_id is the SHA-256 of the file plus its extension; message rows of type 'AUDIO' store it as message_content.
+-- ref_count is incremented with each message insert and recomputed from the message tables by the garbage collector.
+-- format, duration_ms and waveform (64 peak levels as hex) are filled in by AudioTranscoder; processed_at stays NULL until then.
+-- variant_id points to the transcoded copy, stored as its own blob; that reference keeps the copy alive for the garbage collector.
+-- last_seen_at is refreshed every time the same content is stored again; the garbage collector's grace period counts from it.
+CREATE TABLE IF NOT EXISTS audio_blobs (
+    blob_id VARCHAR(80) PRIMARY KEY,
+    size_bytes BIGINT NOT NULL DEFAULT 0,
+    ref_count INTEGER NOT NULL DEFAULT 0,
+    format VARCHAR(16),
+    duration_ms INTEGER,
+    waveform VARCHAR(128),
+    processed_at TIMESTAMP,
+    variant_id VARCHAR(80),
+    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    last_seen_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+);
+ALTER TABLE audio_blobs ADD COLUMN IF NOT EXISTS variant_id VARCHAR(80);
+ALTER TABLE audio_blobs ADD COLUMN IF NOT EXISTS last_seen_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP;
+DROP INDEX IF EXISTS idx_audio_blobs_unreferenced;
+CREATE INDEX IF NOT EXISTS idx_audio_blobs_unreferenced_seen ON audio_blobs(last_seen_at) WHERE ref_count = 0;
+CREATE INDEX IF NOT EXISTS idx_audio_blobs_unprocessed ON audio_blobs(created_at) WHERE processed_at IS NULL;
@@ -50,13 +50,18 @@ async function sendMessageHandler(req, res) {
     return res.status(401).json({ success: false, message: 'Invalid session' });
   }
 
-  const { command, text, recipient, group_name, type, to, sdp, candidate } = req.body;
+  const { command, text, recipient, group_name, type, to, sdp, candidate, chat_type, chat_name, high_water_mark } = req.body;
 
   try {
     const message = { command, text };
     if (recipient) message.recipient = recipient;
     if (group_name) message.group_name = group_name;
 
+    // mark_read
+    if (chat_type) message.chat_type = chat_type;
+    if (chat_name) message.chat_name = chat_name;
+    if (high_water_mark) message.high_water_mark = high_water_mark;
+
     // WebRTC fields
     if (type) message.type = type;
     if (to) message.to = to;
@@ -83,16 +88,17 @@ async function getChatHistoryHandler(req, res) {
     return res.status(401).json({ success: false, message: 'Invalid session' });
   }
 
-  const { type, name, limit, offset } = req.body;
+  const { type, name, limit, cursor } = req.body;
 
   try {
     const message = {
       command: 'get_chat_history',
       type: type || 'general',
       name: name || 'General',
-      limit: limit || 50,
-      offset: offset || 0
+      limit: limit || 50
     };
+    // Cursor opaco devuelto por la página anterior (next_cursor); sin él se piden los más recientes
+    if (cursor) message.cursor = cursor;
 
     // Enviar mensaje al servidor TCP y esperar respuesta
     const response = await sendTCPMessage(session.socket, message);
@@ -103,7 +109,9 @@ async function getChatHistoryHandler(req, res) {
         success: true,
         messages: response.messages || [],
         chat_type: response.chat_type,
-        chat_name: response.chat_name
+        chat_name: response.chat_name,
+        next_cursor: response.next_cursor || null,
+        has_more: !!response.has_more
       });
     } else {
       res.json({ success: false, message: 'Respuesta inesperada del servidor' });
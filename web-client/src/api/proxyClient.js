@@ -72,14 +72,14 @@ export async function inviteToGroup(groupName, username, sessionId) {
   return res.json();
 }
 
-export async function getChatHistory(type, name, limit, offset, sessionId) {
+export async function getChatHistory(type, name, limit, cursor, sessionId) {
   const res = await fetch(`${BASE_URL}/chat-history`, {
     method: 'POST',
     headers: {
       'Content-Type': 'application/json',
       'Authorization': `Bearer ${sessionId}`
     },
-    body: JSON.stringify({ type, name, limit, offset }),
+    body: JSON.stringify({ type, name, limit, cursor }),
   });
   if (!res.ok) throw new Error('Error obteniendo historial');
   return res.json();
@@ -247,6 +247,47 @@ export default class ChatList {
     chatListContent.appendChild(chatItem);
   }
 
+  findChatItem(type, name) {
+    return this.container.querySelector(`[data-type="${type}"][data-name="${name}"]`);
+  }
+
+  // Resumen de la conversación: vista previa del último mensaje y contador de no leídos.
+  updateSummary(type, name, preview, unread) {
+    const item = this.findChatItem(type, name);
+    if (!item) return;
+    if (preview) {
+      item.querySelector('.chat-preview').textContent = preview;
+    }
+    this.setUnread(item, unread);
+  }
+
+  incrementUnread(type, name) {
+    const item = this.findChatItem(type, name);
+    if (!item) return;
+    const current = parseInt(item.dataset.unread || '0', 10);
+    this.setUnread(item, current + 1);
+  }
+
+  clearUnread(type, name) {
+    const item = this.findChatItem(type, name);
+    if (item) this.setUnread(item, 0);
+  }
+
+  setUnread(item, unread) {
+    item.dataset.unread = String(unread);
+    let badge = item.querySelector('.unread-badge');
+    if (!unread) {
+      if (badge) badge.remove();
+      return;
+    }
+    if (!badge) {
+      badge = document.createElement('div');
+      badge.className = 'unread-badge';
+      item.appendChild(badge);
+    }
+    badge.textContent = unread;
+  }
+
   getSelectedChat() {
     return this.selectedChat;
   }
@@ -43,13 +43,31 @@ const messageHistory = {
   group: {}
 };
 
-// Contadores de mensajes cargados para paginación
-const loadedCounts = {
-  general: 0,
+// Paginación por cursor: { cursor, hasMore } de cada chat cuyo historial ya se pidió.
+// next_cursor apunta al mensaje más antiguo recibido; se usa para "cargar más".
+const historyPages = {
+  general: null,
   private: {},
   group: {}
 };
 
+function getHistoryPage(type, name) {
+  return type === 'general' ? historyPages.general : historyPages[type][name];
+}
+
+function setHistoryPage(type, name, page) {
+  if (type === 'general') {
+    historyPages.general = page;
+  } else {
+    historyPages[type][name] = page;
+  }
+}
+
+function getMessageList(type, name) {
+  if (type === 'general') return messageHistory.general;
+  return messageHistory[type][name] || [];
+}
+
 // Asegurar que el login esté visible al inicio
 loginContainer.style.display = 'block';
 appContainer.style.display = 'none';
@@ -291,11 +309,8 @@ function initializeApp() {
     currentChatName = 'General';
     chatWindow.setCurrentChat('general', 'General');
     messageForm.setCurrentChat({ type: 'general', name: 'General' });
+    // selectChat dispara la carga de la página más reciente del historial
     chatList.selectChat('general', 'General');
-    // Esperar un poco para que lleguen los mensajes del historial inicial
-    setTimeout(() => {
-      loadChatHistory('general', 'General');
-    }, 1000);
   }, 500);
 }
 
@@ -346,23 +361,14 @@ function startMessageStream() {
 function processIncomingMessage(message) {
   console.log('Mensaje recibido:', message);
 
-  if (message.type === 'notification') {
+  if (message.type === 'connected') {
+    // El resumen que envía el servidor al iniciar sesión puede llegar antes que este stream.
+    sendMessage({ command: 'get_sync_summary' }, sessionId).catch(err => console.error('Error pidiendo resumen:', err));
+  } else if (message.type === 'sync_summary') {
+    applySyncSummary(message.conversations || []);
+  } else if (message.type === 'notification') {
     const notificationText = message.message || '';
 
-    // Detectar notificaciones del historial inicial de grupos
-    if (notificationText.includes('--- Mensajes de ')) {
-      // Extraer el nombre del grupo de la notificación
-      const match = notificationText.match(/--- Mensajes de (.+) ---/);
-      if (match && match[1]) {
-        const groupName = match[1];
-        // Agregar el grupo a la lista si no existe
-        if (!chatListContainer.querySelector(`[data-type="group"][data-name="${groupName}"]`)) {
-          chatList.addGroupChat(groupName);
-        }
-      }
-      return;
-    }
-
     // Detectar notificaciones del historial inicial
     if (notificationText.includes('--- Mensajes') || notificationText.includes('--- Conversación') || notificationText.includes('--- Últimos')) {
       // No mostrar estas notificaciones, solo guardarlas como referencia
@@ -401,7 +407,9 @@ function processIncomingMessage(message) {
 
       // Mostrar si estamos en el chat general
       if (currentChatType === 'general' && currentChatName === 'General') {
-        chatWindow.addMessage(messageWithTime);
+        if (!message.from_history) chatWindow.addMessage(messageWithTime);
+      } else if (!exists && !message.from_history) {
+        chatList.incrementUnread('general', 'General');
       }
 
     } else if (sub_type === 'private_from' || sub_type === 'private_to' ||
@@ -426,7 +434,9 @@ function processIncomingMessage(message) {
 
       // Mostrar si estamos en ese chat privado
       if (currentChatType === 'private' && currentChatName === otherUser) {
-        chatWindow.addMessage(messageWithTime);
+        if (!message.from_history) chatWindow.addMessage(messageWithTime);
+      } else if (!exists && !message.from_history && sub_type !== 'private_to' && sub_type !== 'private_audio_to') {
+        chatList.incrementUnread('private', otherUser);
       }
 
     } else if ((sub_type === 'group' || sub_type === 'group_audio') && group) {
@@ -451,7 +461,9 @@ function processIncomingMessage(message) {
 
       // Mostrar si estamos en ese grupo
       if (currentChatType === 'group' && currentChatName === group) {
-        chatWindow.addMessage(messageWithTime);
+        if (!message.from_history) chatWindow.addMessage(messageWithTime);
+      } else if (!exists && !message.from_history) {
+        chatList.incrementUnread('group', group);
       }
     }
 
@@ -462,10 +474,6 @@ function processIncomingMessage(message) {
   } else if (message.type === 'chat_history_response') {
     // Los mensajes del historial ya se procesaron en loadChatHistory
     // Este tipo de mensaje se maneja directamente en loadChatHistory
-  } else if (message.type === 'call_audio') {
-    if (voiceChatClient && voiceChatClient.isInCall) {
-      voiceChatClient.playAudioPacket(message.data);
-    }
   } else if (message.type === 'call_request') {
     // Incoming call notification
     if (callControls) {
@@ -511,156 +519,110 @@ function processIncomingMessage(message) {
   }
 }
 
+// Resumen de conversaciones del login: crea las entradas de la lista con su último
+// mensaje y los no leídos. Los mensajes se piden por páginas al abrir cada chat.
+function applySyncSummary(conversations) {
+  conversations.forEach(conversation => {
+    const type = conversation.chat_type;
+    const name = conversation.chat_name;
+    if (type === 'group' && !chatList.findChatItem('group', name)) {
+      chatList.addGroupChat(name);
+    } else if (type === 'private') {
+      chatList.addPrivateChat(name);
+    }
+    const last = conversation.last_message;
+    const preview = last ? `${last.sender}: ${last.text}` : null;
+    const isOpen = type === currentChatType && name === currentChatName;
+    const unread = isOpen ? 0 : conversation.unread;
+    chatList.updateSummary(type, name, preview, unread && conversation.unread_capped ? `${unread}+` : unread);
+    if (isOpen && conversation.unread > 0) {
+      markChatRead(type, name);
+    }
+  });
+}
+
+function markChatRead(type, name) {
+  chatList.clearUnread(type, name);
+  sendMessage({ command: 'mark_read', chat_type: type, chat_name: name }, sessionId)
+    .catch(err => console.error('Error marcando como leído:', err));
+}
+
 async function loadChatHistory(type, name) {
   // Limpiar la ventana de chat primero
   chatWindow.chatWindow.innerHTML = '';
+  markChatRead(type, name);
 
-  // Primero mostrar los mensajes que ya tenemos en memoria
-  // Los mensajes ya están ordenados cronológicamente (más antiguos primero)
-  if (type === 'general' && messageHistory.general.length > 0) {
-    messageHistory.general.forEach(msg => {
-      chatWindow.addMessage(msg);
-    });
-    // Actualizar contador
-    loadedCounts.general = messageHistory.general.length;
-  } else if (type === 'private' && messageHistory.private[name] && messageHistory.private[name].length > 0) {
-    messageHistory.private[name].forEach(msg => {
-      chatWindow.addMessage(msg);
-    });
-    // Actualizar contador
-    loadedCounts.private[name] = messageHistory.private[name].length;
-  } else if (type === 'group' && messageHistory.group[name] && messageHistory.group[name].length > 0) {
-    messageHistory.group[name].forEach(msg => {
-      chatWindow.addMessage(msg);
-    });
-    // Actualizar contador
-    loadedCounts.group[name] = messageHistory.group[name].length;
-  }
+  // Primero mostrar los mensajes que ya tenemos en memoria (orden cronológico)
+  getMessageList(type, name).forEach(msg => chatWindow.addMessage(msg));
 
-  // Si no hay mensajes en memoria, solicitar al servidor
-  let shouldLoadMore = false;
-  if (type === 'general') {
-    shouldLoadMore = messageHistory.general.length === 0;
-  } else if (type === 'private') {
-    shouldLoadMore = !messageHistory.private[name] || messageHistory.private[name].length === 0;
-  } else if (type === 'group') {
-    shouldLoadMore = !messageHistory.group[name] || messageHistory.group[name].length === 0;
+  // La primera vez que se abre el chat se pide la página más reciente, aunque
+  // ya hayan llegado mensajes en vivo (el historial anterior no está en memoria).
+  if (getHistoryPage(type, name)) {
+    return;
   }
-
-  if (shouldLoadMore) {
-    try {
-      // Solicitar los primeros 50 mensajes
-      const response = await getChatHistory(type, name, 50, 0, sessionId);
-      if (response && response.messages && Array.isArray(response.messages)) {
-        // Procesar cada mensaje
-        response.messages.forEach(msg => {
-          // Solo procesar mensajes de tipo "chat", ignorar notificaciones
-          if (msg.type === 'chat') {
-            processIncomingMessage(msg);
-          }
-        });
-
-        // Actualizar contador
-        if (type === 'general') {
-          loadedCounts.general = response.messages.filter(m => m.type === 'chat').length;
-        } else if (type === 'private') {
-          loadedCounts.private[name] = response.messages.filter(m => m.type === 'chat').length;
-        } else if (type === 'group') {
-          loadedCounts.group[name] = response.messages.filter(m => m.type === 'chat').length;
+  try {
+    const response = await getChatHistory(type, name, 50, null, sessionId);
+    if (response && response.messages && Array.isArray(response.messages)) {
+      setHistoryPage(type, name, { cursor: response.next_cursor, hasMore: response.has_more });
+      response.messages.forEach(msg => {
+        // Solo procesar mensajes de tipo "chat", ignorar notificaciones
+        if (msg.type === 'chat') {
+          processIncomingMessage({ ...msg, from_history: true });
         }
+      });
 
-        // Volver a cargar el historial para mostrarlos
-        setTimeout(() => {
-          chatWindow.chatWindow.innerHTML = '';
-          // Mostrar mensajes en orden cronológico (más antiguos primero, más recientes al final)
-          if (type === 'general' && messageHistory.general.length > 0) {
-            messageHistory.general.forEach(msg => {
-              chatWindow.addMessage(msg);
-            });
-          } else if (type === 'private' && messageHistory.private[name] && messageHistory.private[name].length > 0) {
-            messageHistory.private[name].forEach(msg => {
-              chatWindow.addMessage(msg);
-            });
-          } else if (type === 'group' && messageHistory.group[name] && messageHistory.group[name].length > 0) {
-            messageHistory.group[name].forEach(msg => {
-              chatWindow.addMessage(msg);
-            });
-          }
-
-          // Mostrar botón de cargar más si hay más mensajes
-          if (response.messages.filter(m => m.type === 'chat').length >= 50) {
-            chatWindow.showLoadMoreButton();
-          }
-        }, 200);
+      // Volver a pintar el chat si sigue abierto
+      if (currentChatType === type && currentChatName === name) {
+        chatWindow.chatWindow.innerHTML = '';
+        getMessageList(type, name).forEach(msg => chatWindow.addMessage(msg));
+        if (response.has_more) {
+          chatWindow.showLoadMoreButton();
+        }
       }
-    } catch (error) {
-      console.error('Error cargando historial:', error);
     }
+  } catch (error) {
+    console.error('Error cargando historial:', error);
   }
 }
 
 
 async function loadMoreMessages(type, name) {
+  const page = getHistoryPage(type, name);
+  if (!page || !page.hasMore) {
+    chatWindow.hideLoadMoreButton();
+    return;
+  }
   try {
-    let currentCount = 0;
-    if (type === 'general') {
-      currentCount = loadedCounts.general;
-    } else if (type === 'private') {
-      currentCount = loadedCounts.private[name] || 0;
-    } else if (type === 'group') {
-      currentCount = loadedCounts.group[name] || 0;
-    }
+    // Cargar los 50 mensajes anteriores al más antiguo que ya tenemos
+    const response = await getChatHistory(type, name, 50, page.cursor, sessionId);
+    const older = (response.messages || []).filter(m => m.type === 'chat');
+    setHistoryPage(type, name, { cursor: response.next_cursor, hasMore: response.has_more });
 
-    // Cargar 50 mensajes más
-    const response = await getChatHistory(type, name, 50, currentCount, sessionId);
-    if (response.messages && Array.isArray(response.messages) && response.messages.length > 0) {
+    if (older.length > 0) {
       // Guardar el scroll actual
       const scrollHeight = chatWindow.chatWindow.scrollHeight;
       const scrollTop = chatWindow.chatWindow.scrollTop;
 
-      // Procesar y agregar mensajes al inicio
-      response.messages.forEach(msg => {
-        if (msg.type === 'chat') {
-          processIncomingMessage(msg);
-
-          // Agregar mensaje al inicio de la ventana
-          const messageWithTime = {
-            sender: msg.sender,
-            text: msg.text,
-            sub_type: msg.sub_type,
-            sent_at: msg.sent_at || new Date().toISOString(),
-            group: msg.group,
-            party: msg.party
-          };
-          chatWindow.addMessage(messageWithTime, true);
-        }
-      });
-
-      // Actualizar contador
-      if (type === 'general') {
-        loadedCounts.general += response.messages.length;
-      } else if (type === 'private') {
-        if (!loadedCounts.private[name]) {
-          loadedCounts.private[name] = 0;
-        }
-        loadedCounts.private[name] += response.messages.length;
-      } else if (type === 'group') {
-        if (!loadedCounts.group[name]) {
-          loadedCounts.group[name] = 0;
-        }
-        loadedCounts.group[name] += response.messages.length;
+      older.forEach(msg => processIncomingMessage({ ...msg, from_history: true }));
+      // Llegan en orden cronológico: se anteponen del más nuevo al más viejo
+      for (let i = older.length - 1; i >= 0; i--) {
+        const msg = older[i];
+        chatWindow.addMessage({
+          sender: msg.sender,
+          text: msg.text,
+          sub_type: msg.sub_type,
+          sent_at: msg.sent_at || new Date().toISOString(),
+          group: msg.group,
+          party: msg.party
+        }, true);
       }
 
       // Restaurar scroll para mantener la posición
       const newScrollHeight = chatWindow.chatWindow.scrollHeight;
       chatWindow.chatWindow.scrollTop = scrollTop + (newScrollHeight - scrollHeight);
+    }
 
-      // Si no hay más mensajes, ocultar el botón
-      if (response.messages.length < 50) {
-        chatWindow.hideLoadMoreButton();
-      }
-    } else {
-      // No hay más mensajes
+    if (!response.has_more) {
       chatWindow.hideLoadMoreButton();
     }
   } catch (error) {
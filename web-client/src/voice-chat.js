@@ -232,13 +232,6 @@ export class VoiceChatClient {
         }
     }
 
-    async playAudioPacket(base64Data) {
-        // NOTE: Real-time audio playback of WebM chunks is not possible
-        // WebM requires complete container headers to decode
-        // Solutions: WebRTC, PCM raw audio, or accumulate & play at end
-        console.log('📞 Call audio packet received (playback not implemented - see call_audio_limitation.md)');
-    }
-
     async rejectCall(caller) {
         try {
             await this.proxy.rejectCall(caller);